@@ -1,100 +1,79 @@
 package com.kirgor.enklib.common;
 
-import java.util.ArrayDeque;
-import java.util.concurrent.Semaphore;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
- * Base class for async runners, which run on separate thread and have items queue to be processed.
+ * Base class for async runners, which run on pool of worker threads and have items queue to be processed one by one.
+ * <p/>
+ * See {@link BatchAsyncRunner} for details of queueing, overflow policies and durability.
+ * Batch size still can be set, in this case worker drains several items at once and processes them in a row.
  *
  * @param <T> Type of items to be processed.
  */
-public abstract class AsyncRunner<T> {
-    private boolean isUsed;
-    private boolean isRunning;
-    private Semaphore semaphore = new Semaphore(0);
-    private ArrayDeque<T> items = new ArrayDeque<T>();
+public abstract class AsyncRunner<T> extends BatchAsyncRunner<T> {
+    private static final Logger LOGGER = Logger.getLogger(AsyncRunner.class.getName());
 
     /**
-     * Starts processing the items queue. This method can be called only once.
-     *
-     * @param isDaemon Specifies whether underlying thread will be daemon thread.
+     * Creates runner with single worker and unbounded queue.
      */
-    public void start(boolean isDaemon) {
-        synchronized (this) {
-            if (!isUsed) {
-                isUsed = true;
-                isRunning = true;
-                Thread thread = new Thread(new RunnableImpl());
-                thread.setDaemon(isDaemon);
-                thread.start();
-            } else {
-                throw new IllegalStateException("Async runner has been already used once.");
-            }
-        }
+    public AsyncRunner() {
     }
 
     /**
-     * Stops processing the queue forever. In order to continue processing
-     * items you need to create new instance of async runner.
-     */
-    public void stop() {
-        synchronized (this) {
-            isRunning = false;
-            items.clear();
-        }
-    }
-
-    /**
-     * Adds an item to the processing queue. Can be called even before the start.
+     * Creates runner with specified number of workers and unbounded queue.
      *
-     * @param item Item to add.
+     * @param workerCount Number of threads, which process items concurrently.
      */
-    public void addItem(T item) {
-        synchronized (this) {
-            items.add(item);
-            semaphore.release();
-        }
+    public AsyncRunner(int workerCount) {
+        super(workerCount);
     }
 
     /**
-     * Adds multiple items to the processing queue. Can be called even before the start.
-     * This method is preferred to calling addItem multiple times in row, because it will
-     * make synchronization only once.
+     * Creates runner.
      *
-     * @param items Items to add.
+     * @param workerCount    Number of threads, which process items concurrently.
+     * @param capacity       Maximum number of items in the queue. Non-positive value means unbounded queue.
+     * @param overflowPolicy Specifies what happens with items added to the full queue.
      */
-    public void addItems(Iterable<T> items) {
-        synchronized (this) {
-            for (T i : items) {
-                this.items.add(i);
-            }
-            semaphore.release();
-        }
+    public AsyncRunner(int workerCount, int capacity, OverflowPolicy overflowPolicy) {
+        super(workerCount, capacity, overflowPolicy);
     }
 
     /**
      * Processes the item, which was just picked from the queue.
+     * It's called concurrently if runner has multiple workers.
      *
      * @param item Item to process.
      */
     protected abstract void processItem(T item);
 
-    class RunnableImpl implements Runnable {
-        @Override
-        public void run() {
-            while (isRunning) {
-                try {
-                    semaphore.acquire();
-                } catch (InterruptedException ignored) {
-                }
+    /**
+     * Handles exception thrown by processItem(). Worker continues with the next item afterwards.
+     * Default implementation logs the exception.
+     * <p/>
+     * The item is acknowledged in the write-ahead log once this method returns, otherwise single poison item would
+     * keep the log from ever being trimmed. Items, which must not be lost, should be saved elsewhere
+     * (e.g. dead-letter queue) or added to the runner again with addItem() to be retried.
+     *
+     * @param item Item, which has failed to be processed.
+     * @param e    Thrown exception.
+     */
+    protected void handleException(T item, RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Async runner has failed to process item.", e);
+    }
 
-                T item;
-                synchronized (AsyncRunner.this) {
-                    item = items.poll();
-                }
-                if (item != null) {
-                    processItem(item);
-                }
+    /**
+     * Calls processItem() for each item and handles its exceptions separately.
+     */
+    @Override
+    protected final void processBatch(List<T> items) {
+        for (T item : items) {
+            try {
+                processItem(item);
+            } catch (RuntimeException e) {
+                handleException(item, e);
             }
         }
     }
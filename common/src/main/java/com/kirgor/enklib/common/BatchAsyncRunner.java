@@ -0,0 +1,573 @@
+package com.kirgor.enklib.common;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Base class for async runners, which run on pool of worker threads and have items queue to be processed in batches.
+ * <p/>
+ * Queue is lock-free, so any number of threads can add items concurrently. Each added item lets exactly one
+ * worker pick it up. With single worker items are processed in the order they were added, with multiple workers
+ * the order is not guaranteed.
+ * <p/>
+ * Queue can be bounded, in this case {@link OverflowPolicy} specifies what happens with items added to the full queue.
+ * <p/>
+ * Worker drains up to batch size items from the queue, waiting for more items up to batch delay, and passes them
+ * to processBatch(), so bigger batch delay trades latency for throughput of bulk operations (e.g. JDBC batches).
+ * Subclass {@link AsyncRunner} processes items one by one.
+ * <p/>
+ * Items are kept in memory unless {@link WriteAheadLog} is set. In this case each queued item is appended to the log
+ * and acknowledged after it's processed or its exception is handled, so items, which were not processed because of
+ * crash or stopNow(), are processed when the runner with the same log is created again. Note that the log keeps segments
+ * since the oldest unacknowledged item until then.
+ *
+ * @param <T> Type of items to be processed.
+ */
+public abstract class BatchAsyncRunner<T> {
+    private static final Logger LOGGER = Logger.getLogger(BatchAsyncRunner.class.getName());
+    private static final long BLOCK_CHECK_INTERVAL = 100;
+
+    private final int workerCount;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ConcurrentLinkedQueue<Entry<T>> items = new ConcurrentLinkedQueue<Entry<T>>();
+    private final Semaphore available = new Semaphore(0);
+    private final Semaphore vacant;
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger peakPendingCount = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong processedCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    // Producers share the read lock, so stop can't slip between their check and enqueue
+    private final ReentrantReadWriteLock stopLock = new ReentrantReadWriteLock();
+
+    private int batchSize = 1;
+    private long batchDelay;
+    private volatile WriteAheadLog<T> writeAheadLog;
+    private boolean isUsed;
+    private volatile boolean isStopped;
+    private Thread[] workers = new Thread[0];
+
+    /**
+     * Creates runner with single worker and unbounded queue.
+     */
+    public BatchAsyncRunner() {
+        this(1, 0, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates runner with specified number of workers and unbounded queue.
+     *
+     * @param workerCount Number of threads, which process items concurrently.
+     */
+    public BatchAsyncRunner(int workerCount) {
+        this(workerCount, 0, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates runner.
+     *
+     * @param workerCount    Number of threads, which process items concurrently.
+     * @param capacity       Maximum number of items in the queue. Non-positive value means unbounded queue.
+     * @param overflowPolicy Specifies what happens with items added to the full queue.
+     */
+    public BatchAsyncRunner(int workerCount, int capacity, OverflowPolicy overflowPolicy) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Async runner needs at least one worker.");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy of async runner is not set.");
+        }
+        this.workerCount = workerCount;
+        this.capacity = Math.max(capacity, 0);
+        this.overflowPolicy = overflowPolicy;
+        this.vacant = capacity > 0 ? new Semaphore(capacity) : null;
+    }
+
+    /**
+     * Starts processing the items queue. This method can be called only once.
+     *
+     * @param isDaemon Specifies whether underlying threads will be daemon threads.
+     */
+    public void start(boolean isDaemon) {
+        synchronized (this) {
+            if (!isUsed) {
+                isUsed = true;
+                workers = new Thread[workerCount];
+                for (int i = 0; i < workerCount; i++) {
+                    Thread thread = createThread(new RunnableImpl(), i);
+                    thread.setDaemon(isDaemon);
+                    workers[i] = thread;
+                }
+                for (Thread thread : workers) {
+                    thread.start();
+                }
+            } else {
+                throw new IllegalStateException("Async runner has been already used once.");
+            }
+        }
+    }
+
+    /**
+     * Sets maximum number of items passed to processBatch() at once. Default is 1.
+     * It can be set only before the start.
+     */
+    public synchronized void setBatchSize(int batchSize) {
+        checkNotUsed();
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size of async runner must be positive.");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets time in milliseconds, which worker waits for more items to fill the batch. Default is 0, so batch
+     * consists only of items already waiting in the queue. It can be set only before the start.
+     */
+    public synchronized void setBatchDelay(long batchDelay) {
+        checkNotUsed();
+        this.batchDelay = Math.max(batchDelay, 0);
+    }
+
+    /**
+     * Sets log, which keeps queued items on disk until they are processed, and queues items recovered from it.
+     * It can be set only once before the start and should be set before any items are added, so recovered
+     * items are processed first. Log is not closed by the runner, it should be closed after awaitTermination().
+     * <p/>
+     * Recovered items are queued even if they exceed the capacity.
+     *
+     * @param writeAheadLog Opened log.
+     */
+    public synchronized void setWriteAheadLog(WriteAheadLog<T> writeAheadLog) {
+        checkNotUsed();
+        if (this.writeAheadLog != null) {
+            throw new IllegalStateException("Write-ahead log of async runner has been already set.");
+        }
+        this.writeAheadLog = writeAheadLog;
+        for (WriteAheadLog.Record<T> record : writeAheadLog.takeRecovered()) {
+            boolean isVacancyTaken = vacant != null && vacant.tryAcquire();
+            enqueue(new Entry<T>(record.getItem(), record.getSequence(), isVacancyTaken));
+        }
+    }
+
+    /**
+     * Stops processing the queue forever. Items, which have been already added, are processed before workers exit,
+     * items added after the stop are rejected. In order to continue processing items you need to create
+     * new instance of async runner.
+     * <p/>
+     * This method doesn't wait for workers, use awaitTermination() for that.
+     */
+    public void stop() {
+        stopLock.writeLock().lock();
+        try {
+            if (isStopped) {
+                return;
+            }
+            isStopped = true;
+            // Extra permit per worker wakes it up after the queue is drained, so it sees the empty queue and exits
+            available.release(workerCount);
+        } finally {
+            stopLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Stops processing the queue forever and discards items, which are not picked by workers yet.
+     * Items, which are being processed right now, are finished.
+     * Discarded items stay in the write-ahead log if it's set.
+     *
+     * @return Number of discarded items.
+     */
+    public int stopNow() {
+        int discarded = 0;
+        stopLock.writeLock().lock();
+        try {
+            boolean wasStopped = isStopped;
+            isStopped = true;
+            Entry<T> entry;
+            while ((entry = items.poll()) != null) {
+                release(entry);
+                discarded++;
+            }
+            if (!wasStopped) {
+                available.release(workerCount);
+            }
+        } finally {
+            stopLock.writeLock().unlock();
+        }
+        return discarded;
+    }
+
+    /**
+     * Waits until all workers exit after the stop.
+     *
+     * @param timeout Maximum time to wait in milliseconds.
+     * @return True if all workers have exited, false if timeout has elapsed.
+     * @throws InterruptedException If current thread is interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        Thread[] threads;
+        synchronized (this) {
+            threads = workers;
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Thread thread : threads) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining > 0) {
+                thread.join(remaining);
+            }
+            if (thread.isAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds an item to the processing queue. Can be called even before the start.
+     * <p/>
+     * If the queue is full, item is handled according to the overflow policy.
+     * Note that producer is blocked forever if the queue is full before the start and policy is
+     * {@link OverflowPolicy#BLOCK}.
+     *
+     * @param item Item to add.
+     * @return True if item has been queued or processed, false if it has been dropped or runner is stopped.
+     * @throws IllegalStateException If item can't be written to the write-ahead log.
+     */
+    public boolean addItem(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("Item of async runner can't be null.");
+        }
+        if (isStopped) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        if (vacant != null && !vacant.tryAcquire()) {
+            switch (overflowPolicy) {
+                case DROP:
+                    droppedCount.incrementAndGet();
+                    return false;
+                case CALLER_RUNS:
+                    processBatchSafely(Collections.singletonList(item));
+                    return true;
+                default:
+                    if (!awaitVacancy()) {
+                        droppedCount.incrementAndGet();
+                        return false;
+                    }
+            }
+        }
+
+        stopLock.readLock().lock();
+        try {
+            // Workers may have already exited, so the item would never be processed
+            if (isStopped) {
+                if (vacant != null) {
+                    vacant.release();
+                }
+                droppedCount.incrementAndGet();
+                return false;
+            }
+
+            long sequence = -1;
+            WriteAheadLog<T> log = writeAheadLog;
+            if (log != null) {
+                try {
+                    sequence = log.append(item);
+                } catch (IOException e) {
+                    if (vacant != null) {
+                        vacant.release();
+                    }
+                    throw new IllegalStateException("Can't write item to write-ahead log.", e);
+                }
+            }
+            enqueue(new Entry<T>(item, sequence, vacant != null));
+            return true;
+        } finally {
+            stopLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds multiple items to the processing queue. Can be called even before the start.
+     * Each item is handled the same way as with addItem.
+     *
+     * @param items Items to add.
+     * @return Number of items, which have been queued or processed.
+     */
+    public int addItems(Iterable<T> items) {
+        int result = 0;
+        for (T i : items) {
+            if (addItem(i)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets number of items, which are waiting in the queue.
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * Gets maximum number of items, which have been waiting in the queue at once, since the creation
+     * or the last resetPeakPendingCount() call.
+     */
+    public int getPeakPendingCount() {
+        return peakPendingCount.get();
+    }
+
+    /**
+     * Resets peak number of waiting items to the current one, so it can be sampled periodically.
+     */
+    public void resetPeakPendingCount() {
+        peakPendingCount.set(pendingCount.get());
+    }
+
+    /**
+     * Gets number of items, which have been handed over to processing, including failed ones.
+     */
+    public long getProcessedCount() {
+        return processedCount.get();
+    }
+
+    /**
+     * Gets number of processBatch() calls, so processed count divided by it is average batch size.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Gets number of items, which have been dropped because the queue was full or runner was stopped.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Gets maximum number of items in the queue or 0 if the queue is unbounded.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets number of worker threads.
+     */
+    public int getWorkerCount() {
+        return workerCount;
+    }
+
+    /**
+     * Processes the items, which were just picked from the queue, in the order they were added.
+     * It's called concurrently if runner has multiple workers.
+     *
+     * @param items Items to process, which are not more than batch size.
+     */
+    protected abstract void processBatch(List<T> items);
+
+    /**
+     * Handles exception thrown by processBatch(). Worker continues with the next batch afterwards.
+     * Default implementation logs the exception.
+     * <p/>
+     * Items are acknowledged in the write-ahead log once this method returns, otherwise single poison batch would
+     * keep the log from ever being trimmed. Items, which must not be lost, should be saved elsewhere
+     * (e.g. dead-letter queue) or added to the runner again with addItems() to be retried.
+     *
+     * @param items Items, which have failed to be processed.
+     * @param e     Thrown exception.
+     */
+    protected void handleBatchException(List<T> items, RuntimeException e) {
+        LOGGER.log(Level.WARNING, "Async runner has failed to process batch of " + items.size() + " items.", e);
+    }
+
+    /**
+     * Creates worker thread. It can be overridden to name threads or run workers on specific thread implementation.
+     *
+     * @param runnable Worker loop.
+     * @param index    Index of the worker.
+     */
+    protected Thread createThread(Runnable runnable, int index) {
+        return new Thread(runnable, getClass().getSimpleName() + "-worker-" + index);
+    }
+
+    private boolean awaitVacancy() {
+        try {
+            // Stop doesn't release vacancies, so blocked producers check it periodically
+            while (!vacant.tryAcquire(BLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                if (isStopped) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void enqueue(Entry<T> entry) {
+        updatePeakPendingCount(pendingCount.incrementAndGet());
+        items.offer(entry);
+        available.release();
+    }
+
+    private void release(Entry<T> entry) {
+        pendingCount.decrementAndGet();
+        if (entry.isVacancyTaken) {
+            vacant.release();
+        }
+    }
+
+    private void acknowledge(List<Entry<T>> entries) {
+        WriteAheadLog<T> log = writeAheadLog;
+        if (log == null) {
+            return;
+        }
+        long[] sequences = new long[entries.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = entries.get(i).sequence;
+        }
+        try {
+            log.acknowledge(sequences);
+        } catch (IOException e) {
+            // Items will be processed once more after the restart, which is allowed by at least once delivery
+            LOGGER.log(Level.WARNING, "Async runner has failed to acknowledge items in write-ahead log.", e);
+        }
+    }
+
+    private void processBatchSafely(List<T> batch) {
+        processedCount.addAndGet(batch.size());
+        batchCount.incrementAndGet();
+        try {
+            processBatch(batch);
+        } catch (RuntimeException e) {
+            handleBatchException(batch, e);
+        }
+    }
+
+    private void updatePeakPendingCount(int pending) {
+        int peak;
+        do {
+            peak = peakPendingCount.get();
+        } while (pending > peak && !peakPendingCount.compareAndSet(peak, pending));
+    }
+
+    private void checkNotUsed() {
+        if (isUsed) {
+            throw new IllegalStateException("Async runner has been already started.");
+        }
+    }
+
+    /**
+     * Specifies what happens with items added to the full queue.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Producer waits until there is room in the queue.
+         */
+        BLOCK,
+        /**
+         * Item is dropped and addItem() returns false.
+         */
+        DROP,
+        /**
+         * Item is processed on the producer thread, which naturally slows producers down.
+         */
+        CALLER_RUNS
+    }
+
+    /**
+     * Queued item with its sequence number in the write-ahead log.
+     */
+    private static final class Entry<T> {
+        private final T item;
+        private final long sequence;
+        private final boolean isVacancyTaken;
+
+        private Entry(T item, long sequence, boolean isVacancyTaken) {
+            this.item = item;
+            this.sequence = sequence;
+            this.isVacancyTaken = isVacancyTaken;
+        }
+    }
+
+    class RunnableImpl implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                List<Entry<T>> entries = new ArrayList<Entry<T>>(Math.min(batchSize, 1024));
+                boolean isDrained = !collect(entries);
+                if (!entries.isEmpty()) {
+                    List<T> batch = new ArrayList<T>(entries.size());
+                    for (Entry<T> entry : entries) {
+                        batch.add(entry.item);
+                    }
+                    processBatchSafely(batch);
+                    acknowledge(entries);
+                }
+                if (isDrained) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Waits for the first item and then collects more of them until the batch is full or batch delay elapses.
+         *
+         * @return False if the queue has been drained after the stop, so worker should exit.
+         */
+        private boolean collect(List<Entry<T>> batch) {
+            try {
+                available.acquire();
+            } catch (InterruptedException ignored) {
+                return true;
+            }
+            if (!poll(batch)) {
+                return false;
+            }
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(batchDelay);
+            while (batch.size() < batchSize) {
+                // There is no point to wait for more items after the stop
+                long remaining = isStopped ? 0 : deadline - System.nanoTime();
+                try {
+                    if (!available.tryAcquire(Math.max(remaining, 0), TimeUnit.NANOSECONDS)) {
+                        break;
+                    }
+                } catch (InterruptedException ignored) {
+                    break;
+                }
+                if (!poll(batch)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean poll(List<Entry<T>> batch) {
+            Entry<T> entry = items.poll();
+            if (entry == null) {
+                // Permit without item comes from stop, when the queue is drained or discarded
+                return !isStopped;
+            }
+            release(entry);
+            batch.add(entry);
+            return true;
+        }
+    }
+}
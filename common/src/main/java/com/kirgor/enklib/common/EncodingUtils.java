@@ -1,6 +1,7 @@
 package com.kirgor.enklib.common;
 
 import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.codec.binary.Hex;
 
 /**
@@ -22,4 +23,20 @@ public abstract class EncodingUtils {
     public static byte[] hexToBytes(String hex) throws DecoderException {
         return Hex.decodeHex(hex.toCharArray());
     }
+
+    /**
+     * Converts byte array to URL-safe Base64 string without padding (for example, "DSRqng"),
+     * which is suitable for cookies and URLs as is.
+     */
+    public static String bytesToBase64Url(byte[] bytes) {
+        return Base64.encodeBase64URLSafeString(bytes);
+    }
+
+    /**
+     * Converts URL-safe Base64 string (for example, "DSRqng") to byte array.
+     * Characters outside of Base64 alphabet are ignored.
+     */
+    public static byte[] base64UrlToBytes(String base64) {
+        return Base64.decodeBase64(base64);
+    }
 }
@@ -0,0 +1,26 @@
+package com.kirgor.enklib.common;
+
+import java.io.IOException;
+
+/**
+ * Converts items of {@link WriteAheadLog} to bytes and back.
+ *
+ * @param <T> Type of items.
+ */
+public interface ItemCodec<T> {
+    /**
+     * Encodes item to bytes.
+     *
+     * @param item Item to encode.
+     * @throws IOException If item can't be encoded.
+     */
+    byte[] encode(T item) throws IOException;
+
+    /**
+     * Decodes item from bytes, which were returned by encode() method.
+     *
+     * @param bytes Encoded item.
+     * @throws IOException If bytes are not valid.
+     */
+    T decode(byte[] bytes) throws IOException;
+}
@@ -0,0 +1,43 @@
+package com.kirgor.enklib.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Implementation of {@link ItemCodec}, which uses Java serialization.
+ *
+ * @param <T> Type of items.
+ */
+public class SerializableItemCodec<T extends Serializable> implements ItemCodec<T> {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] encode(T item) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(bytes);
+        output.writeObject(item);
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T decode(byte[] bytes) throws IOException {
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return (T) input.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Can't decode item of write-ahead log.", e);
+        } finally {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.kirgor.enklib.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable queue of items on disk, which lets {@link AsyncRunner} survive crashes and restarts.
+ * <p/>
+ * Items are appended to memory-mapped segment files of fixed size, each record has length, CRC of the payload
+ * and sequence number. When segment is full, the next one is created, and segments are deleted when all their items
+ * are acknowledged. Items can be acknowledged out of order, the log keeps the highest sequence number, below which
+ * all items are acknowledged, and periodically saves it to the checkpoint file.
+ * <p/>
+ * Mapped pages survive JVM crash anyway, fsync is needed to survive OS crash or power loss. With zero sync interval
+ * append waits until its record is synced, and concurrent appends share single fsync (group commit).
+ * Otherwise fsync is done at most once per sync interval by appends and by background timer, which syncs the tail
+ * of records after the last append, so items of the last interval can be lost on power loss.
+ * <p/>
+ * Delivery is at least once: items, which were acknowledged after the last checkpoint or out of order, are recovered
+ * again after the restart. Items, which are never acknowledged, keep their segments on disk until they are recovered.
+ *
+ * @param <T> Type of items.
+ */
+public class WriteAheadLog<T> implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(WriteAheadLog.class.getName());
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    private static final int RECORD_HEADER_LENGTH = 4 + 4 + 8;
+    private static final int CHECKPOINT_SLOT_LENGTH = 8 + 8 + 8;
+
+    private final File directory;
+    private final ItemCodec<T> codec;
+    private final int segmentSize;
+    private final long syncInterval;
+    private final long checkpointInterval;
+
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private MappedByteBuffer current;
+    private long nextSequence;
+    private List<Record<T>> recovered;
+
+    private final Object syncLock = new Object();
+    private boolean isSyncing;
+    private long syncedSequence;
+    private volatile long lastSyncTime;
+    private final Timer syncTimer;
+
+    private final Object acknowledgeLock = new Object();
+    private long watermark;
+    private BitSet acknowledged = new BitSet();
+
+    private final Object checkpointLock = new Object();
+    private final MappedByteBuffer checkpoint;
+    private long checkpointGeneration;
+    private long checkpointWatermark;
+    private long lastCheckpointTime;
+
+    /**
+     * Opens log with 64 MB segments, which syncs each append and saves checkpoint once per second.
+     *
+     * @param directory Directory of the log, which is created if it doesn't exist.
+     * @param codec     Codec of items.
+     * @throws IOException If log can't be opened or recovered.
+     */
+    public WriteAheadLog(File directory, ItemCodec<T> codec) throws IOException {
+        this(directory, codec, 64 * 1024 * 1024, 0, 1000);
+    }
+
+    /**
+     * Opens log and recovers items, which are not acknowledged yet.
+     *
+     * @param directory          Directory of the log, which is created if it doesn't exist.
+     * @param codec              Codec of items.
+     * @param segmentSize        Size of segment file in bytes, which limits size of single encoded item.
+     * @param syncInterval       Minimum time in milliseconds between fsyncs. Zero means each append waits for fsync.
+     * @param checkpointInterval Minimum time in milliseconds between checkpoint saves.
+     * @throws IOException If log can't be opened or recovered.
+     */
+    public WriteAheadLog(File directory, ItemCodec<T> codec, int segmentSize, long syncInterval,
+                         long checkpointInterval) throws IOException {
+        if (segmentSize <= RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Segment size of write-ahead log is too small.");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create write-ahead log directory " + directory + ".");
+        }
+        this.directory = directory;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.syncInterval = syncInterval;
+        this.checkpointInterval = checkpointInterval;
+
+        checkpoint = map(new File(directory, CHECKPOINT_FILE_NAME), CHECKPOINT_SLOT_LENGTH * 2);
+        readCheckpoint();
+        watermark = checkpointWatermark;
+        recover();
+
+        syncedSequence = nextSequence - 1;
+        lastCheckpointTime = System.currentTimeMillis();
+        Segment segment = new Segment(directory, nextSequence);
+        // Segment without valid records might be left with the same name, so it's replaced
+        if (!segments.isEmpty() && segments.get(segments.size() - 1).firstSequence == nextSequence) {
+            segments.remove(segments.size() - 1);
+            if (!segment.file.delete()) {
+                throw new IOException("Can't replace write-ahead log segment " + segment.file + ".");
+            }
+        }
+        current = map(segment.file, segmentSize);
+        segments.add(segment);
+        deleteAcknowledgedSegments(watermark);
+
+        if (syncInterval > 0) {
+            syncTimer = new Timer("WriteAheadLog-sync", true);
+            syncTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    syncTail();
+                }
+            }, syncInterval, syncInterval);
+        } else {
+            syncTimer = null;
+        }
+    }
+
+    /**
+     * Gets items, which were not acknowledged when the log was opened, in the order they were appended.
+     * Items are handed over only once, so subsequent calls return empty list.
+     */
+    public synchronized List<Record<T>> takeRecovered() {
+        List<Record<T>> result = recovered;
+        recovered = Collections.emptyList();
+        return result;
+    }
+
+    /**
+     * Appends item to the log. If sync interval is zero, returns after item is synced to disk.
+     *
+     * @param item Item to append.
+     * @return Sequence number of the item, which is used to acknowledge it.
+     * @throws IOException If item can't be encoded or written.
+     */
+    public long append(T item) throws IOException {
+        byte[] payload = codec.encode(item);
+        int length = RECORD_HEADER_LENGTH + payload.length;
+        if (length > segmentSize) {
+            throw new IOException("Item of " + payload.length + " bytes doesn't fit into write-ahead log segment.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        long sequence;
+        synchronized (this) {
+            checkOpen();
+            if (current.remaining() < length) {
+                roll();
+            }
+            sequence = nextSequence++;
+            int position = current.position();
+            current.position(position + 4);
+            current.putInt((int) crc.getValue());
+            current.putLong(sequence);
+            current.put(payload);
+            // Length is written last, so record without it is treated as the end of the segment
+            current.putInt(position, length);
+        }
+
+        if (syncInterval <= 0 || System.currentTimeMillis() - lastSyncTime >= syncInterval) {
+            sync(sequence);
+        }
+        return sequence;
+    }
+
+    /**
+     * Acknowledges processed items, so they are not recovered after the restart.
+     * Saves checkpoint and deletes fully acknowledged segments if checkpoint interval has elapsed.
+     *
+     * @param sequences Sequence numbers of the items returned by append().
+     * @throws IOException If checkpoint can't be saved.
+     */
+    public void acknowledge(long... sequences) throws IOException {
+        boolean isCheckpointDue;
+        synchronized (acknowledgeLock) {
+            for (long sequence : sequences) {
+                if (sequence > watermark) {
+                    // Bit set is indexed by int, gap this large means that some item is never going to be acknowledged
+                    long offset = sequence - watermark - 1;
+                    if (offset >= Integer.MAX_VALUE) {
+                        throw new IOException("Item " + sequence + " is too far ahead of unacknowledged item "
+                                + (watermark + 1) + " in write-ahead log.");
+                    }
+                    acknowledged.set((int) offset);
+                }
+            }
+            int count = acknowledged.nextClearBit(0);
+            if (count > 0) {
+                watermark += count;
+                acknowledged = acknowledged.get(count, Math.max(count, acknowledged.length()));
+            }
+            isCheckpointDue = System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval;
+        }
+        if (isCheckpointDue) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Saves the highest sequence number, below which all items are acknowledged, and deletes segments,
+     * which contain only acknowledged items.
+     *
+     * @throws IOException If checkpoint can't be saved.
+     */
+    public void checkpoint() throws IOException {
+        long value;
+        synchronized (checkpointLock) {
+            synchronized (acknowledgeLock) {
+                value = watermark;
+                lastCheckpointTime = System.currentTimeMillis();
+            }
+            if (value <= checkpointWatermark) {
+                return;
+            }
+            writeCheckpoint(value);
+        }
+        deleteAcknowledgedSegments(value);
+    }
+
+    /**
+     * Gets the highest sequence number, below which all items are acknowledged.
+     */
+    public long getAcknowledgedSequence() {
+        synchronized (acknowledgeLock) {
+            return watermark;
+        }
+    }
+
+    /**
+     * Gets number of segment files, including the current one.
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Syncs the current segment and saves checkpoint. Log can't be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if (syncTimer != null) {
+            syncTimer.cancel();
+        }
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            current.force();
+            current = null;
+        }
+        checkpoint();
+        checkpoint.force();
+    }
+
+    /**
+     * Syncs records, which were appended after the last sync, so burst of appends doesn't stay unsynced
+     * until the next append.
+     */
+    private void syncTail() {
+        long last;
+        synchronized (this) {
+            if (current == null) {
+                return;
+            }
+            last = nextSequence - 1;
+        }
+        try {
+            sync(last);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Can't sync write-ahead log.", e);
+        }
+    }
+
+    private void sync(long sequence) throws IOException {
+        synchronized (syncLock) {
+            while (syncedSequence < sequence && isSyncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for write-ahead log sync.");
+                }
+            }
+            if (syncedSequence >= sequence) {
+                return;
+            }
+            isSyncing = true;
+        }
+
+        // All records written so far are covered by this fsync, since previous segments are synced on roll
+        long target = -1;
+        try {
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                checkOpen();
+                buffer = current;
+                target = nextSequence - 1;
+            }
+            buffer.force();
+        } finally {
+            synchronized (syncLock) {
+                isSyncing = false;
+                if (target > syncedSequence) {
+                    syncedSequence = target;
+                    lastSyncTime = System.currentTimeMillis();
+                }
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    private void roll() throws IOException {
+        current.force();
+        Segment segment = new Segment(directory, nextSequence);
+        current = map(segment.file, segmentSize);
+        segments.add(segment);
+    }
+
+    private void deleteAcknowledgedSegments(long value) {
+        synchronized (this) {
+            // Segment is acknowledged when the next one starts right after the checkpoint or below it
+            while (segments.size() > 1 && segments.get(1).firstSequence - 1 <= value) {
+                if (!segments.get(0).file.delete()) {
+                    // File might be still mapped on some platforms, so it's deleted on the next checkpoint
+                    break;
+                }
+                segments.remove(0);
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Segment[] found = new Segment[files != null ? files.length : 0];
+        for (int i = 0; i < found.length; i++) {
+            String name = files[i].getName();
+            try {
+                long firstSequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                found[i] = new Segment(directory, firstSequence);
+            } catch (NumberFormatException e) {
+                throw new IOException("Unexpected file " + files[i] + " in write-ahead log directory.", e);
+            }
+        }
+        Arrays.sort(found);
+
+        recovered = new ArrayList<Record<T>>();
+        long last = watermark;
+        for (Segment segment : found) {
+            last = Math.max(last, scan(segment));
+            segments.add(segment);
+        }
+        nextSequence = last + 1;
+    }
+
+    /**
+     * Reads valid records of the segment and keeps ones, which are not acknowledged.
+     *
+     * @return Sequence number of the last valid record or 0 if there are none.
+     */
+    private long scan(Segment segment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segment.file, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+
+        long expected = segment.firstSequence;
+        CRC32 crc = new CRC32();
+        // Torn or partially synced tail ends the segment
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            int length = buffer.getInt();
+            if (length < RECORD_HEADER_LENGTH || length - 4 > buffer.remaining()) {
+                break;
+            }
+            int checksum = buffer.getInt();
+            long sequence = buffer.getLong();
+            byte[] payload = new byte[length - RECORD_HEADER_LENGTH];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if (sequence != expected || checksum != (int) crc.getValue()) {
+                break;
+            }
+            if (sequence > watermark) {
+                recovered.add(new Record<T>(sequence, codec.decode(payload)));
+            }
+            expected++;
+        }
+        return expected - 1;
+    }
+
+    private void readCheckpoint() {
+        for (int slot = 0; slot < 2; slot++) {
+            int offset = slot * CHECKPOINT_SLOT_LENGTH;
+            long generation = checkpoint.getLong(offset);
+            long value = checkpoint.getLong(offset + 8);
+            // Two slots are written in turns, so torn write of one of them leaves the other valid
+            if (checkpoint.getLong(offset + 16) == checksum(generation, value) && generation >= checkpointGeneration) {
+                checkpointGeneration = generation;
+                checkpointWatermark = value;
+            }
+        }
+    }
+
+    private void writeCheckpoint(long value) {
+        long generation = checkpointGeneration + 1;
+        int offset = (int) (generation % 2) * CHECKPOINT_SLOT_LENGTH;
+        checkpoint.putLong(offset, generation);
+        checkpoint.putLong(offset + 8, value);
+        checkpoint.putLong(offset + 16, checksum(generation, value));
+        checkpoint.force();
+        checkpointGeneration = generation;
+        checkpointWatermark = value;
+    }
+
+    private void checkOpen() throws IOException {
+        if (current == null) {
+            throw new IOException("Write-ahead log is closed.");
+        }
+    }
+
+    private static long checksum(long generation, long value) {
+        CRC32 crc = new CRC32();
+        for (int i = 56; i >= 0; i -= 8) {
+            crc.update((int) (generation >>> i));
+            crc.update((int) (value >>> i));
+        }
+        return crc.getValue();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // Mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Item of the log with its sequence number.
+     *
+     * @param <T> Type of item.
+     */
+    public static final class Record<T> {
+        private final long sequence;
+        private final T item;
+
+        private Record(long sequence, T item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+
+        /**
+         * Gets sequence number of the item, which is used to acknowledge it.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the item.
+         */
+        public T getItem() {
+            return item;
+        }
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+        private final long firstSequence;
+        private final File file;
+
+        private Segment(File directory, long firstSequence) {
+            this.firstSequence = firstSequence;
+            this.file = new File(directory, String.format("%020d%s", firstSequence, SEGMENT_SUFFIX));
+        }
+
+        @Override
+        public int compareTo(Segment other) {
+            return firstSequence < other.firstSequence ? -1 : (firstSequence == other.firstSequence ? 0 : 1);
+        }
+    }
+}
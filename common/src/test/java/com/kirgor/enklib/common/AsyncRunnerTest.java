@@ -2,6 +2,12 @@ package com.kirgor.enklib.common;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 public class AsyncRunnerTest {
@@ -23,8 +29,216 @@ public class AsyncRunnerTest {
         assertEquals(12, runner.getSum());
     }
 
-    final class SumAsyncRunner extends AsyncRunner<Integer> {
-        private int sum = 0;
+    @Test
+    public void addItems() throws InterruptedException {
+        SumAsyncRunner runner = new SumAsyncRunner();
+        runner.start(true);
+
+        assertEquals(3, runner.addItems(Arrays.asList(1, 2, 3)));
+        assertEquals(3, runner.addItems(Arrays.asList(1, 2, 3)));
+
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(12, runner.getSum());
+    }
+
+    @Test
+    public void multipleWorkers() throws InterruptedException {
+        final AtomicInteger sum = new AtomicInteger();
+        AsyncRunner<Integer> runner = new AsyncRunner<Integer>(4) {
+            @Override
+            protected void processItem(Integer item) {
+                sum.addAndGet(item);
+            }
+        };
+        runner.start(true);
+
+        Thread[] producers = new Thread[4];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread(new ProducerRunnable(runner, 1000));
+            producers[i].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(4 * 1000, sum.get());
+        assertEquals(0, runner.getPendingCount());
+    }
+
+    @Test
+    public void dropPolicy() throws InterruptedException {
+        SumAsyncRunner runner = new SumAsyncRunner(2, AsyncRunner.OverflowPolicy.DROP);
+
+        assertTrue(runner.addItem(1));
+        assertTrue(runner.addItem(2));
+        assertFalse(runner.addItem(3));
+        assertEquals(2, runner.getPendingCount());
+        assertEquals(1, runner.getDroppedCount());
+
+        runner.start(true);
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(3, runner.getSum());
+    }
+
+    @Test
+    public void callerRunsPolicy() throws InterruptedException {
+        final List<Thread> threads = new ArrayList<Thread>();
+        AsyncRunner<Integer> runner = new AsyncRunner<Integer>(1, 1, AsyncRunner.OverflowPolicy.CALLER_RUNS) {
+            @Override
+            protected void processItem(Integer item) {
+                synchronized (threads) {
+                    threads.add(Thread.currentThread());
+                }
+            }
+        };
+
+        runner.addItem(1);
+        runner.addItem(2);
+        assertEquals(Arrays.asList(Thread.currentThread()), threads);
+
+        runner.start(true);
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(2, threads.size());
+        assertNotSame(Thread.currentThread(), threads.get(1));
+    }
+
+    @Test
+    public void blockPolicy() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger sum = new AtomicInteger();
+        final AsyncRunner<Integer> runner = new AsyncRunner<Integer>(1, 1, AsyncRunner.OverflowPolicy.BLOCK) {
+            @Override
+            protected void processItem(Integer item) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+                sum.addAndGet(item);
+            }
+        };
+        runner.start(true);
+
+        Thread producer = new Thread(new ProducerRunnable(runner, 3));
+        producer.start();
+        producer.join(200);
+        assertTrue(producer.isAlive());
+
+        release.countDown();
+        producer.join(1000);
+        assertFalse(producer.isAlive());
+
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(3, sum.get());
+        assertEquals(0, runner.getDroppedCount());
+    }
+
+    @Test
+    public void stopDrainsQueue() throws InterruptedException {
+        SumAsyncRunner runner = new SumAsyncRunner();
+        for (int i = 0; i < 100; i++) {
+            runner.addItem(1);
+        }
+        runner.start(true);
+        runner.stop();
+
+        assertFalse(runner.addItem(1));
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(100, runner.getSum());
+    }
+
+    @Test
+    public void stopRacesWithProducers() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            final AtomicInteger sum = new AtomicInteger();
+            final AtomicInteger accepted = new AtomicInteger();
+            final AsyncRunner<Integer> runner = new AsyncRunner<Integer>(2) {
+                @Override
+                protected void processItem(Integer item) {
+                    sum.addAndGet(item);
+                }
+            };
+            runner.start(true);
+
+            Thread[] producers = new Thread[3];
+            for (int i = 0; i < producers.length; i++) {
+                producers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < 200; j++) {
+                            if (runner.addItem(1)) {
+                                accepted.incrementAndGet();
+                            }
+                        }
+                    }
+                });
+                producers[i].start();
+            }
+            runner.stop();
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            assertTrue(runner.awaitTermination(1000));
+            assertEquals(accepted.get(), sum.get());
+            assertEquals(0, runner.getPendingCount());
+        }
+    }
+
+    @Test
+    public void stopNowDiscardsQueue() throws InterruptedException {
+        SumAsyncRunner runner = new SumAsyncRunner();
+        for (int i = 0; i < 100; i++) {
+            runner.addItem(1);
+        }
+
+        assertEquals(100, runner.stopNow());
+        runner.start(true);
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(0, runner.getSum());
+        assertEquals(0, runner.getPendingCount());
+    }
+
+    @Test
+    public void exceptionDoesNotStopWorker() throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        SumAsyncRunner runner = new SumAsyncRunner() {
+            @Override
+            protected void processItem(Integer item) {
+                if (item < 0) {
+                    throw new IllegalArgumentException();
+                }
+                super.processItem(item);
+            }
+
+            @Override
+            protected void handleException(Integer item, RuntimeException e) {
+                failures.incrementAndGet();
+            }
+        };
+        runner.start(true);
+        runner.addItems(Arrays.asList(1, -1, 2));
+
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(3, runner.getSum());
+        assertEquals(1, failures.get());
+    }
+
+    class SumAsyncRunner extends AsyncRunner<Integer> {
+        private volatile int sum = 0;
+
+        SumAsyncRunner() {
+        }
+
+        SumAsyncRunner(int capacity, OverflowPolicy overflowPolicy) {
+            super(1, capacity, overflowPolicy);
+        }
 
         int getSum() {
             return sum;
@@ -36,4 +250,21 @@ public class AsyncRunnerTest {
             System.out.println("SUM = " + sum);
         }
     }
+
+    static final class ProducerRunnable implements Runnable {
+        private final AsyncRunner<Integer> runner;
+        private final int count;
+
+        ProducerRunnable(AsyncRunner<Integer> runner, int count) {
+            this.runner = runner;
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < count; i++) {
+                runner.addItem(1);
+            }
+        }
+    }
 }
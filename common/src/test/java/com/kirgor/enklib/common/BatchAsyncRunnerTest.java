@@ -0,0 +1,72 @@
+package com.kirgor.enklib.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchAsyncRunnerTest {
+    @Test
+    public void processBatch() throws InterruptedException {
+        CollectingRunner runner = new CollectingRunner();
+        runner.setBatchSize(4);
+        for (int i = 0; i < 10; i++) {
+            runner.addItem(i);
+        }
+        assertEquals(10, runner.getPeakPendingCount());
+
+        runner.start(true);
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2, 3), Arrays.asList(4, 5, 6, 7), Arrays.asList(8, 9)),
+                runner.getBatches());
+        assertEquals(10, runner.getProcessedCount());
+        assertEquals(3, runner.getBatchCount());
+        assertEquals(0, runner.getPendingCount());
+
+        runner.resetPeakPendingCount();
+        assertEquals(0, runner.getPeakPendingCount());
+    }
+
+    @Test
+    public void batchDelay() throws InterruptedException {
+        CollectingRunner runner = new CollectingRunner();
+        runner.setBatchSize(100);
+        runner.setBatchDelay(300);
+        runner.start(true);
+
+        runner.addItem(1);
+        Thread.sleep(50);
+        runner.addItem(2);
+        Thread.sleep(400);
+        runner.addItem(3);
+
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        assertEquals(Arrays.asList(Arrays.asList(1, 2), Arrays.asList(3)), runner.getBatches());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batchSizeAfterStart() {
+        CollectingRunner runner = new CollectingRunner();
+        runner.start(true);
+        runner.stop();
+        runner.setBatchSize(10);
+    }
+
+    static final class CollectingRunner extends BatchAsyncRunner<Integer> {
+        private final List<List<Integer>> batches = new ArrayList<List<Integer>>();
+
+        synchronized List<List<Integer>> getBatches() {
+            return batches;
+        }
+
+        @Override
+        protected synchronized void processBatch(List<Integer> items) {
+            batches.add(new ArrayList<Integer>(items));
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.kirgor.enklib.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EncodingUtilsTest {
+    @Test
+    public void bytesToHex() {
+        assertEquals("0d246a9e", EncodingUtils.bytesToHex(new byte[]{0x0d, 0x24, 0x6a, (byte) 0x9e}));
+    }
+
+    @Test
+    public void hexToBytes() throws Exception {
+        assertArrayEquals(new byte[]{0x0d, 0x24, 0x6a, (byte) 0x9e}, EncodingUtils.hexToBytes("0d246a9e"));
+    }
+
+    @Test
+    public void bytesToBase64Url() {
+        assertEquals("DSRqng", EncodingUtils.bytesToBase64Url(new byte[]{0x0d, 0x24, 0x6a, (byte) 0x9e}));
+        assertEquals("-_8", EncodingUtils.bytesToBase64Url(new byte[]{(byte) 0xfb, (byte) 0xff}));
+    }
+
+    @Test
+    public void base64UrlToBytes() {
+        assertArrayEquals(new byte[]{0x0d, 0x24, 0x6a, (byte) 0x9e}, EncodingUtils.base64UrlToBytes("DSRqng"));
+        assertArrayEquals(new byte[]{(byte) 0xfb, (byte) 0xff}, EncodingUtils.base64UrlToBytes("-_8"));
+    }
+}
@@ -0,0 +1,283 @@
+package com.kirgor.enklib.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recover() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 1024);
+        long first = log.append("a");
+        long second = log.append("b");
+        long third = log.append("c");
+        long fourth = log.append("d");
+        log.acknowledge(first, third);
+        assertEquals(first, log.getAcknowledgedSequence());
+        log.close();
+
+        log = open(directory, 1024);
+        assertEquals(Arrays.asList("b", "c", "d"), items(log.takeRecovered()));
+        assertTrue(log.takeRecovered().isEmpty());
+        assertEquals(fourth + 1, log.append("e"));
+
+        // Out of order acknowledgement of the third item is not saved, so it's recovered again
+        log.acknowledge(second, third, fourth, fourth + 1);
+        assertEquals(fourth + 1, log.getAcknowledgedSequence());
+        log.close();
+
+        log = open(directory, 1024);
+        assertTrue(log.takeRecovered().isEmpty());
+        assertEquals(fourth + 2, log.append("f"));
+        log.close();
+    }
+
+    @Test
+    public void rollAndDeleteSegments() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 256);
+        List<Long> sequences = new ArrayList<Long>();
+        for (int i = 0; i < 100; i++) {
+            sequences.add(log.append("item " + i));
+        }
+        int segmentCount = log.getSegmentCount();
+        assertTrue(segmentCount > 2);
+
+        for (int i = 0; i < 90; i++) {
+            log.acknowledge(sequences.get(i));
+        }
+        assertTrue(log.getSegmentCount() < segmentCount);
+        log.close();
+
+        log = open(directory, 256);
+        List<WriteAheadLog.Record<String>> recovered = log.takeRecovered();
+        assertEquals(10, recovered.size());
+        assertEquals("item 90", recovered.get(0).getItem());
+        for (WriteAheadLog.Record<String> record : recovered) {
+            log.acknowledge(record.getSequence());
+        }
+        log.close();
+
+        log = open(directory, 256);
+        assertEquals(1, log.getSegmentCount());
+        assertEquals(2, directory.list().length);
+        log.close();
+    }
+
+    @Test
+    public void tornTail() throws IOException {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 1024);
+        log.append("a");
+        log.append("b");
+        log.close();
+
+        // Corrupt payload of the second record
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "00000000000000000001.log"), "rw");
+        int firstLength = file.readInt();
+        file.seek(firstLength + 16);
+        file.write(0x55);
+        file.close();
+
+        log = open(directory, 1024);
+        assertEquals(Arrays.asList("a"), items(log.takeRecovered()));
+        assertEquals(2, log.append("c"));
+        log.close();
+    }
+
+    @Test
+    public void asyncRunnerReplay() throws Exception {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 4096);
+        CollectingAsyncRunner runner = new CollectingAsyncRunner();
+        runner.setWriteAheadLog(log);
+        runner.addItems(Arrays.asList("a", "b", "c"));
+        assertEquals(3, runner.stopNow());
+        log.close();
+
+        log = open(directory, 4096);
+        runner = new CollectingAsyncRunner();
+        runner.setWriteAheadLog(log);
+        runner.addItem("d");
+        runner.start(true);
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        log.close();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), runner.getItems());
+
+        log = open(directory, 4096);
+        assertTrue(log.takeRecovered().isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void failedItemsAreAcknowledgedAfterHandling() throws Exception {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 4096);
+        final List<String> deadLetters = new ArrayList<String>();
+        CollectingAsyncRunner runner = new CollectingAsyncRunner() {
+            @Override
+            protected void processItem(String item) {
+                if (item.startsWith("bad")) {
+                    throw new IllegalStateException("Downstream is not available.");
+                }
+                super.processItem(item);
+            }
+
+            @Override
+            protected void handleException(String item, RuntimeException e) {
+                deadLetters.add(item);
+            }
+        };
+        runner.setWriteAheadLog(log);
+        runner.addItems(Arrays.asList("a", "bad1", "b", "bad2"));
+        runner.start(true);
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        log.close();
+        assertEquals(Arrays.asList("a", "b"), runner.getItems());
+        assertEquals(Arrays.asList("bad1", "bad2"), deadLetters);
+
+        // Failed items don't hold the watermark
+        log = open(directory, 4096);
+        assertEquals(4, log.getAcknowledgedSequence());
+        assertTrue(log.takeRecovered().isEmpty());
+        log.close();
+    }
+
+    @Test
+    public void retryFailedItems() throws Exception {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 4096);
+        final AtomicInteger failures = new AtomicInteger();
+        CollectingAsyncRunner runner = new CollectingAsyncRunner() {
+            @Override
+            protected void processItem(String item) {
+                if (item.equals("flaky") && failures.incrementAndGet() < 3) {
+                    throw new IllegalStateException("Downstream is not available.");
+                }
+                super.processItem(item);
+            }
+
+            @Override
+            protected void handleException(String item, RuntimeException e) {
+                addItem(item);
+            }
+        };
+        runner.setWriteAheadLog(log);
+        runner.start(true);
+        runner.addItems(Arrays.asList("a", "flaky", "b"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (runner.getItems().size() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        // Retried item goes to the tail of the queue, so the order depends on timing
+        assertEquals(3, runner.getItems().size());
+        assertTrue(runner.getItems().containsAll(Arrays.asList("a", "flaky", "b")));
+
+        // Retried item is appended again, so all sequences are acknowledged
+        assertEquals(5, log.getAcknowledgedSequence());
+        log.close();
+    }
+
+    @Test
+    public void failedBatchIsAcknowledgedAfterHandling() throws Exception {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = open(directory, 4096);
+        final List<String> deadLetters = new ArrayList<String>();
+        BatchAsyncRunner<String> runner = new BatchAsyncRunner<String>() {
+            @Override
+            protected void processBatch(List<String> items) {
+                if (items.contains("bad")) {
+                    throw new IllegalStateException("Downstream is not available.");
+                }
+            }
+
+            @Override
+            protected void handleBatchException(List<String> items, RuntimeException e) {
+                deadLetters.addAll(items);
+            }
+        };
+        runner.setBatchSize(2);
+        runner.setWriteAheadLog(log);
+        runner.addItems(Arrays.asList("a", "b", "c", "bad", "d"));
+        runner.start(true);
+        runner.stop();
+        assertTrue(runner.awaitTermination(1000));
+        log.close();
+        assertEquals(Arrays.asList("c", "bad"), deadLetters);
+
+        log = open(directory, 4096);
+        assertTrue(log.takeRecovered().isEmpty());
+        log.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void acknowledgeTooFarAhead() throws Exception {
+        WriteAheadLog<String> log = open(folder.newFolder(), 4096);
+        try {
+            log.acknowledge(log.getAcknowledgedSequence() + Integer.MAX_VALUE + 1L);
+        } finally {
+            log.close();
+        }
+    }
+
+    @Test
+    public void syncTimer() throws Exception {
+        File directory = folder.newFolder();
+        WriteAheadLog<String> log = new WriteAheadLog<String>(directory, new SerializableItemCodec<String>(),
+                4096, 50, 0);
+        for (int i = 0; i < 10; i++) {
+            log.append("item " + i);
+        }
+        Thread.sleep(200);
+        log.close();
+
+        log = open(directory, 4096);
+        assertEquals(10, log.takeRecovered().size());
+        log.close();
+    }
+
+    private static WriteAheadLog<String> open(File directory, int segmentSize) throws IOException {
+        return new WriteAheadLog<String>(directory, new SerializableItemCodec<String>(), segmentSize, 0, 0);
+    }
+
+    private static List<String> items(List<WriteAheadLog.Record<String>> records) {
+        List<String> result = new ArrayList<String>();
+        for (WriteAheadLog.Record<String> record : records) {
+            result.add(record.getItem());
+        }
+        return result;
+    }
+
+    static class CollectingAsyncRunner extends AsyncRunner<String> {
+        private final List<String> items = new ArrayList<String>();
+
+        synchronized List<String> getItems() {
+            return items;
+        }
+
+        @Override
+        protected void processItem(String item) {
+            synchronized (this) {
+                items.add(item);
+            }
+        }
+    }
+}
@@ -1,33 +1,33 @@
 package com.kirgor.enklib.ejb;
 
-import com.kirgor.enklib.common.EncodingUtils;
-import com.kirgor.enklib.ejb.annotation.InjectStoredProcedureProxy;
-import com.kirgor.enklib.ejb.annotation.SkipSecurityCheck;
 import com.kirgor.enklib.ejb.exception.APIException;
 import com.kirgor.enklib.ejb.exception.InjectStoredProcedureProxyException;
+import com.kirgor.enklib.sql.Cursor;
 import com.kirgor.enklib.sql.Session;
-import org.apache.commons.codec.DecoderException;
 
 import javax.ejb.EJB;
 import javax.interceptor.AroundInvoke;
 import javax.interceptor.Interceptors;
 import javax.interceptor.InvocationContext;
-import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
-import javax.sql.DataSource;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.NewCookie;
 import javax.ws.rs.core.Response;
-import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
+import javax.ws.rs.ext.Providers;
 import java.lang.reflect.Method;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Base class for beans, which is designed for simple use of RESTful API (via JAX-RS),
@@ -41,11 +41,17 @@ import java.util.Random;
 public class Bean {
     @EJB
     private ConfigBean configBean;
+    private Config invocationConfig;
     private Session session;
+    private boolean transactionActive;
+    private CursorStreamingOutput pendingStream;
     @Context
     private HttpServletRequest httpServletRequest;
+    @Context
+    private Providers providers;
     private String currentSecurityToken;
     private Object currentUserPrincipal;
+    private InvocationDescriptor invocationDescriptor;
 
     /**
      * Gets {@link Session}, which is available for current invocation. It is the same session
@@ -71,6 +77,17 @@ public class Bean {
         return currentSecurityToken;
     }
 
+    /**
+     * Gets address of the client, which is used for throttling authentication attempts.
+     * Returns null if there is no current HTTP request.
+     * <p/>
+     * Default implementation returns remote address of the request. Override-method should be used if service
+     * is behind reverse proxy, which passes client address in header (e.g. X-Forwarded-For).
+     */
+    protected String getClientAddress() {
+        return httpServletRequest != null ? httpServletRequest.getRemoteAddr() : null;
+    }
+
     /**
      * Gets principal of current logged in user (e.g. ID or email).
      * Returns null if there is none.
@@ -94,57 +111,76 @@ public class Bean {
      * @throws Exception
      */
     protected void beforeInvoke(Method method, Object[] params) throws Exception {
-        Config config = configBean.getConfig();
-
-        // Create session for proxies
-        session = createSession();
-        session.setAutoCommit(true);
-
-        // Instantiate proxies and inject them
-        for (Field field : getClass().getDeclaredFields()) {
-            if (field.getAnnotation(InjectStoredProcedureProxy.class) != null) {
-                try {
-                    Object proxy = createProxy(field.getType(), session);
-                    field.setAccessible(true);
-                    field.set(this, proxy);
-                } catch (Exception ex) {
-                    throw new InjectStoredProcedureProxyException(ex, field.getType());
-                }
-            }
-        }
-
-        // Extract security token and current user principal
+        Config config = getConfig();
+        InvocationDescriptor descriptor = getInvocationDescriptor(method);
+
+        // Extract security token and current user principal before touching the database,
+        // so unauthenticated requests are rejected cheaply
+        session = null;
+        transactionActive = false;
+        pendingStream = null;
         currentSecurityToken = null;
         currentUserPrincipal = null;
         if (httpServletRequest != null) {
-            for (Cookie cookie : httpServletRequest.getCookies()) {
-                if (cookie.getName().equals(configBean.getConfig().getSecurityCookieName())) {
-                    currentSecurityToken = cookie.getValue();
-                    currentUserPrincipal = config.getSecurityTokenStorage().get(currentSecurityToken);
+            Cookie[] cookies = httpServletRequest.getCookies();
+            if (cookies != null) {
+                for (Cookie cookie : cookies) {
+                    if (cookie.getName().equals(config.getSecurityCookieName())) {
+                        currentSecurityToken = cookie.getValue();
+                        if (config.isSignedSecurityTokenMode()) {
+                            currentUserPrincipal = config.getSignedSecurityTokens().verify(currentSecurityToken);
+                        } else {
+                            currentUserPrincipal = config.getSecurityTokenStorage().get(currentSecurityToken);
+                        }
+                    }
                 }
             }
 
-            if (currentUserPrincipal == null && method.getAnnotation(SkipSecurityCheck.class) == null) {
+            if (currentUserPrincipal == null && descriptor.isSecurityCheckRequired()) {
                 throw new APIException(401);
             }
         }
+
+        // Create session for proxies, it doesn't take connection until the first query
+        if (descriptor.isTransactional()) {
+            session = descriptor.isReadOnly() ? createReadOnlySession() : createSession();
+            session.setAutoCommit(false);
+            if (descriptor.isReadOnly()) {
+                session.setReadOnly(true);
+            }
+            transactionActive = true;
+        } else {
+            session = createSession();
+            session.setAutoCommit(true);
+        }
+
+        // Instantiate proxies and inject them
+        for (InvocationDescriptor.InjectableField field : descriptor.getInjectableFields()) {
+            try {
+                field.set(this, createProxy(field.getType(), session));
+            } catch (Exception ex) {
+                throw new InjectStoredProcedureProxyException(ex, field.getType());
+            }
+        }
     }
 
 
     /**
      * Called by interceptor after bean method has been invoked.
      * <p/>
-     * It's important to call base method in override-method, since it closes SQL session.
+     * It's important to call base method in override-method, since it closes SQL session. Transaction of methods
+     * annotated with {@link com.kirgor.enklib.ejb.annotation.Transactional} is committed before, right after
+     * the method has returned, so commit failure is passed to the exception handlers like any method exception.
      *
      * @param method Method, which has just been invoked.
      * @param params Method params.
      * @throws Exception
      */
     protected void afterInvoke(Method method, Object[] params) throws Exception {
-        // Close the session
-        if (session != null) {
-            session.close();
+        if (session == null) {
+            return;
         }
+        session.close();
     }
 
     /**
@@ -168,14 +204,86 @@ public class Bean {
 
     /**
      * Creates {@link Session} instance, connected to the database.
+     * <p/>
+     * Default implementation creates lazy session, which takes connection from the pool on the first query only.
+     * If read replicas are configured, proxy methods annotated with {@link com.kirgor.enklib.sql.proxy.annotation.ReadOnly}
+     * are called on them outside of transactions.
      *
      * @throws NamingException
      * @throws SQLException
      */
     protected Session createSession() throws Exception {
-        Config config = configBean.getConfig();
-        DataSource dataSource = InitialContext.doLookup(config.getDataSourceJNDI());
-        return new Session(dataSource, config.getDialect());
+        Config config = getConfig();
+        Session result = new Session(config.getDataSource(), config.getDialect(), true);
+        if (config.isReplicated()) {
+            result.setReadOnlyDataSource(config.getReadOnlyDataSource());
+        }
+        return result;
+    }
+
+    /**
+     * Creates {@link Session} instance for read-only transaction.
+     * <p/>
+     * Default implementation creates lazy session on read replicas, if they are configured, or on the primary database.
+     *
+     * @throws NamingException
+     * @throws SQLException
+     */
+    protected Session createReadOnlySession() throws Exception {
+        Config config = getConfig();
+        return new Session(config.getReadOnlyDataSource(), config.getDialect(), true);
+    }
+
+    /**
+     * Commits active transaction after successful invocation.
+     */
+    private void commitTransaction() throws SQLException {
+        if (transactionActive) {
+            transactionActive = false;
+            session.commit();
+        }
+    }
+
+    /**
+     * Hands current session over to the streamed response, if bean method has returned response created by ok(Cursor).
+     */
+    private void handOverStream(Object result) {
+        CursorStreamingOutput stream = pendingStream;
+        if (stream == null || !(result instanceof Response) || ((Response) result).getEntity() != stream) {
+            discardStream();
+            return;
+        }
+        pendingStream = null;
+        stream.handOver(session, transactionActive);
+        // Entity may be never written, so the session is released when the request completes in that case
+        httpServletRequest.setAttribute(CursorStreamingOutput.REQUEST_ATTRIBUTE, stream);
+        session = null;
+        transactionActive = false;
+    }
+
+    /**
+     * Closes cursor of the streamed response, which hasn't been handed over.
+     */
+    private void discardStream() {
+        if (pendingStream != null) {
+            pendingStream.discard();
+            pendingStream = null;
+        }
+    }
+
+    /**
+     * Rolls back active transaction, so exception handlers and afterInvoke() don't see partial changes.
+     * Rollback failure is ignored, because the original exception is more important and connection
+     * is discarded anyway.
+     */
+    private void rollbackTransaction() {
+        if (transactionActive) {
+            transactionActive = false;
+            try {
+                session.rollback();
+            } catch (SQLException ignored) {
+            }
+        }
     }
 
     /**
@@ -187,7 +295,7 @@ public class Bean {
      * @throws Exception
      */
     protected <T> T createProxy(Class<T> interfaceClass, Session session) throws Exception {
-        return configBean.getConfig().getStoredProcedureProxyFactory().getProxy(interfaceClass, session);
+        return getConfig().getStoredProcedureProxyFactory().getProxy(interfaceClass, session);
     }
 
     /**
@@ -249,10 +357,61 @@ public class Bean {
      * This is shorthand method for simple response 200 OK with list of entities.
      */
     protected Response ok(List<Object> entityList) {
-        for (int i = 0; i < entityList.size(); i++) {
-            entityList.set(i, mapResponseEntity(entityList.get(i)));
+        // Passed list is not modified, so it may be immutable, and isn't copied at all if mapping is identity
+        if (!isResponseEntityMapped()) {
+            return buildResponse(Response.ok(entityList));
+        }
+        Object[] mapped = new Object[entityList.size()];
+        int i = 0;
+        for (Object entity : entityList) {
+            mapped[i++] = mapResponseEntity(entity);
+        }
+        return buildResponse(Response.ok(Arrays.asList(mapped)));
+    }
+
+    /**
+     * This is shorthand method for response 200 OK, which streams entities from the cursor as JSON array,
+     * so big result sets are not loaded into memory.
+     * <p/>
+     * Entities are mapped with mapper from getStreamedEntityMapper() and serialized one by one, while response
+     * is written after the bean method has returned. Because of that, once the bean method has returned this response,
+     * current {@link Session} is handed over to it, and the response closes the session after writing.
+     * If the method throws or returns other response, the cursor is closed and the session is handled as usual.
+     * If the response entity is not written at all, the session is closed by {@link StreamedResponseListener}.
+     * <p/>
+     * Response is sent before the end of streaming, so its failure can't be reported with status code. Therefore,
+     * cursors are not streamed in write transactions, only in read-only ones or without transaction.
+     *
+     * @param cursor Cursor, which is created by current session or its stored procedure proxies.
+     * @throws IllegalStateException If it's not JAX-RS request or bean method is in write transaction.
+     */
+    protected Response ok(Cursor<?> cursor) {
+        if (providers == null || httpServletRequest == null) {
+            throw new IllegalStateException("Cursor can be streamed only in JAX-RS request.");
+        }
+        if (transactionActive && !invocationDescriptor.isReadOnly()) {
+            throw new IllegalStateException("Cursor can't be streamed in write transaction, "
+                    + "it must be fetched before commit or method must be read-only.");
+        }
+        discardStream();
+        pendingStream = new CursorStreamingOutput(getStreamedEntityMapper(), providers, cursor);
+        return buildResponse(Response.ok(pendingStream, MediaType.APPLICATION_JSON_TYPE));
+    }
+
+    /**
+     * Gets mapper of entities streamed from cursors, see {@link #ok(Cursor)}.
+     * <p/>
+     * Streamed entities are mapped after the bean instance has returned to the pool, where it may serve
+     * other request, so mapResponseEntity() of the instance can't be used. Default implementation returns null,
+     * which means no mapping, and throws {@link IllegalStateException} if bean overrides mapResponseEntity(),
+     * so such beans must override this method to stream cursors.
+     */
+    protected ResponseEntityMapper getStreamedEntityMapper() {
+        if (isResponseEntityMapped()) {
+            throw new IllegalStateException(getClass().getName() + " overrides mapResponseEntity(), "
+                    + "so it must override getStreamedEntityMapper() to stream cursors.");
         }
-        return buildResponse(Response.ok(entityList));
+        return null;
     }
 
     /**
@@ -314,24 +473,32 @@ public class Bean {
      * Base method for the login process. Should be called in JAX-RS method, which is API endpoint for login.
      * <p/>
      * Handles situations with not found user or wrong password, generates security tokens, stores them in
-     * configured {@link SecurityTokenStorage} and passes them back to user via response cookies.
+     * configured {@link SecurityTokenStorage} (or issues {@link SignedSecurityTokens} in signed security token mode)
+     * and passes them back to user via response cookies.
      *
      * @param principal Principal of user, which tries to login.
      * @param password  Specified password.
      * @return {@link Response} which should be passed to API user. Returns simple 200 OK response with security token
      *         cookie if login succeeded, otherwise calls handleUserNotFound() or handleWrongPassword() method.
-     * @throws Exception
+     * @throws Exception {@link APIException} with 429 status, if principal or client exceeds authentication rate limit
+     *                   or principal is locked out after failed attempts.
      */
     protected Response login(Object principal, String password) throws Exception {
-        Config config = configBean.getConfig();
+        Config config = getConfig();
+        LoginThrottle throttle = checkAuthenticationRate(config, principal);
 
         AuthenticationDAO.User user = config.getAuthenticationDAO().getUserByPrincipal(session, config.getStoredProcedureProxyFactory(), principal);
         if (user != null) {
             String expectedHash = user.getPasswordHash();
             String actualHash = calculateHash(config, password, user.getPasswordSalt());
             if (expectedHash.equals(actualHash)) {
-                String securityToken = generateRandomCode(config.getSecurityTokenLength());
-                config.getSecurityTokenStorage().add(securityToken, principal);
+                String securityToken;
+                if (config.isSignedSecurityTokenMode()) {
+                    securityToken = config.getSignedSecurityTokens().issue(principal);
+                } else {
+                    securityToken = config.getSecurityTokenGenerator().generate(config.getSecurityTokenLength());
+                    config.getSecurityTokenStorage().add(securityToken, principal);
+                }
                 NewCookie newCookie = new NewCookie(
                         config.getSecurityCookieName(), securityToken,
                         config.getSecurityCookiePath(),
@@ -341,11 +508,20 @@ public class Bean {
                         config.getSecurityCookieMaxAge(),
                         config.isSecurityCookieSecure());
 
+                if (throttle != null) {
+                    throttle.recordSuccess(principal);
+                }
                 return buildResponse(Response.ok().cookie(newCookie));
             } else {
+                if (throttle != null) {
+                    throttle.recordFailure(principal);
+                }
                 return handleWrongPassword(principal);
             }
         } else {
+            if (throttle != null) {
+                throttle.recordFailure(principal);
+            }
             return handleUserNotFound(principal);
         }
     }
@@ -357,7 +533,12 @@ public class Bean {
      * @throws Exception
      */
     protected Response logout() throws Exception {
-        configBean.getConfig().getSecurityTokenStorage().remove(getCurrentSecurityToken());
+        Config config = getConfig();
+        if (config.isSignedSecurityTokenMode()) {
+            config.getSignedSecurityTokens().revoke(getCurrentSecurityToken());
+        } else {
+            config.getSecurityTokenStorage().remove(getCurrentSecurityToken());
+        }
         return ok();
     }
 
@@ -376,11 +557,12 @@ public class Bean {
      * @throws Exception
      */
     protected Response register(Object principal, String password, Object extraData) throws Exception {
-        Config config = configBean.getConfig();
+        Config config = getConfig();
+        checkAuthenticationRate(config, principal);
 
         Object user = config.getAuthenticationDAO().getUserByPrincipal(session, config.getStoredProcedureProxyFactory(), principal);
         if (user == null) {
-            String salt = generateRandomCode(config.getPasswordSaltLength());
+            String salt = config.getSecurityTokenGenerator().generate(config.getPasswordSaltLength());
             String hash = calculateHash(config, password, salt);
             config.getAuthenticationDAO().addNewUser(session, config.getStoredProcedureProxyFactory(), principal, hash, salt, extraData);
             return ok();
@@ -389,42 +571,185 @@ public class Bean {
         }
     }
 
-    private static String generateRandomCode(int length) {
-        byte[] bytes = new byte[length];
-        Random random = new Random();
-        random.nextBytes(bytes);
-        return EncodingUtils.bytesToHex(bytes);
+    /**
+     * Base method for bulk registration (e.g. migration of users from other system), which registers many users
+     * with few database round trips, if {@link AuthenticationDAO} implements {@link BulkAuthenticationDAO},
+     * and hashes passwords in parallel. Rate limits of authentication attempts are not applied.
+     * <p/>
+     * Registrations are processed in batches of configured size. Failed registrations (existing users,
+     * duplicate principals, hashing and insert errors) are collected into the result.
+     *
+     * @param registrations Users to register.
+     * @param listener      Listener of progress, which is called after each batch. May be null.
+     * @return Number of registered users and failed registrations.
+     * @throws Exception If lookup of existing users fails or insert fails inside transaction.
+     */
+    protected BulkRegistrationResult registerAll(List<UserRegistration> registrations, BulkRegistrationListener listener) throws Exception {
+        return new BulkRegistrar(getConfig(), session).register(registrations, listener);
+    }
+
+    /**
+     * Gets configuration captured for the current invocation.
+     */
+    private Config getConfig() {
+        Config result = invocationConfig;
+        return result != null ? result : configBean.getConfig();
+    }
+
+    private InvocationDescriptor getInvocationDescriptor(Method method) throws IllegalAccessException {
+        InvocationDescriptor result = invocationDescriptor;
+        if (result == null || result.getMethod() != method) {
+            result = InvocationDescriptor.get(getClass(), method);
+        }
+        return result;
+    }
+
+    private boolean isResponseEntityMapped() {
+        try {
+            return InvocationDescriptor.isResponseEntityMapped(getClass());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Rejects authentication attempt with 429 status, if it's throttled.
+     *
+     * @return Throttle, which has allowed the attempt, or null if there is none.
+     */
+    private LoginThrottle checkAuthenticationRate(Config config, Object principal) throws Exception {
+        LoginThrottle throttle = config.getLoginThrottle();
+        if (throttle != null && !throttle.tryAcquire(principal, getClientAddress())) {
+            throw new APIException("Too many authentication attempts.", 429);
+        }
+        return throttle;
     }
 
-    private static String calculateHash(Config config, String password, String salt) throws NoSuchAlgorithmException, UnsupportedEncodingException, DecoderException {
-        byte[] bytes = password.getBytes("UTF-8");
-        MessageDigest messageDigest = config.getMessageDigest();
-        messageDigest.update(EncodingUtils.hexToBytes(salt));
-        for (int i = 0; i < config.getPasswordHashIterations(); i++) {
-            bytes = messageDigest.digest(bytes);
-            messageDigest.reset();
+    private static String calculateHash(Config config, final String password, final String salt) throws Exception {
+        final PasswordHasher passwordHasher = config.getPasswordHasher();
+        ExecutorService executor = config.getPasswordHashExecutor();
+        if (executor == null) {
+            return passwordHasher.hash(password, salt);
+        }
+
+        Future<String> future;
+        try {
+            future = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return passwordHasher.hash(password, salt);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            throw new APIException("Too many concurrent password hashing requests.", ex, 503);
+        }
+
+        try {
+            return future.get(config.getPasswordHashTimeout(), TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            future.cancel(true);
+            throw new APIException("Password hashing has timed out.", ex, 503);
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof Exception) {
+                throw (Exception) ex.getCause();
+            }
+            throw ex;
         }
-        return EncodingUtils.bytesToHex(bytes);
     }
 
     public static class Interceptor {
         @AroundInvoke
         protected Object intercept(InvocationContext ic) throws Exception {
             Bean bean = (Bean) ic.getTarget();
+            // Configuration can be reloaded meanwhile, so the whole invocation uses the same snapshot,
+            // which components are not released until the invocation completes
+            Config config = bean.configBean.getConfig();
+            while (config != null && !config.enter()) {
+                config = bean.configBean.getConfig();
+            }
+            bean.invocationConfig = config;
+            if (config == null) {
+                return intercept(ic, bean, null);
+            }
+            Object requestScope = config.beginRequest();
+            try {
+                return intercept(ic, bean, config);
+            } finally {
+                config.endRequest(requestScope);
+                config.exit();
+            }
+        }
+
+        private static Object intercept(InvocationContext ic, Bean bean, Config config) throws Exception {
+            InvocationDescriptor descriptor = InvocationDescriptor.get(bean.getClass(), ic.getMethod());
+            bean.invocationDescriptor = descriptor;
+
+            // Without metrics only null checks are added to the invocation
+            EndpointMetrics metrics = getEndpointMetrics(config, descriptor);
+            long start = metrics != null ? System.nanoTime() : 0;
+            long invokeStart = 0;
             try {
                 bean.beforeInvoke(ic.getMethod(), ic.getParameters());
-                return ic.proceed();
+                if (metrics != null) {
+                    invokeStart = System.nanoTime();
+                }
+                Object result = ic.proceed();
+                bean.handOverStream(result);
+                bean.commitTransaction();
+                return result;
             } catch (APIException ex) {
-                if (ic.getMethod().getReturnType().isAssignableFrom(Response.class)) {
+                if (metrics != null) {
+                    metrics.recordException();
+                    if (ex.getHttpStatus() == 401) {
+                        metrics.recordAuthenticationFailure();
+                    }
+                }
+                bean.rollbackTransaction();
+                if (descriptor.isResponseReturned()) {
                     return bean.handleAPIException(ex, ic.getMethod(), ic.getParameters());
                 } else {
                     return bean.handleException(ex, ic.getMethod(), ic.getParameters());
                 }
             } catch (Exception ex) {
+                if (metrics != null) {
+                    metrics.recordException();
+                }
+                bean.rollbackTransaction();
                 return bean.handleException(ex, ic.getMethod(), ic.getParameters());
             } finally {
-                bean.afterInvoke(ic.getMethod(), ic.getParameters());
+                bean.discardStream();
+                if (metrics == null) {
+                    bean.afterInvoke(ic.getMethod(), ic.getParameters());
+                } else {
+                    long afterStart = System.nanoTime();
+                    Session session = bean.session;
+                    try {
+                        bean.afterInvoke(ic.getMethod(), ic.getParameters());
+                    } finally {
+                        metrics.record(start, invokeStart, afterStart, System.nanoTime());
+                        long holdTime = session != null ? session.getConnectionHoldTime() : 0;
+                        if (holdTime > 0) {
+                            metrics.recordConnectionHoldTime(holdTime);
+                        }
+                    }
+                }
+            }
+        }
+
+        private static EndpointMetrics getEndpointMetrics(Config config, InvocationDescriptor descriptor) {
+            if (config == null) {
+                return null;
+            }
+            try {
+                InvocationMetrics metrics = config.getInvocationMetrics();
+                return metrics != null ? metrics.getEndpoint(descriptor.getEndpointName()) : null;
+            } catch (Exception ex) {
+                // Configuration failure is reported by beforeInvoke()
+                return null;
             }
         }
     }
-}
\ No newline at end of file
+}
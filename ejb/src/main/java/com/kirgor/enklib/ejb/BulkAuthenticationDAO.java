@@ -0,0 +1,39 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.sql.Session;
+import com.kirgor.enklib.sql.proxy.StoredProcedureProxyFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link AuthenticationDAO}, which can look up and add users in batches, so bulk registration
+ * (e.g. migration of users from other system) takes few database round trips.
+ * <p/>
+ * Batch insert can be done with {@link Session#executeBatch(String, List)}.
+ */
+public interface BulkAuthenticationDAO extends AuthenticationDAO {
+    /**
+     * Gets principals, which are already registered, among specified ones.
+     *
+     * @param session                     {@link Session} instance, which is connected to the database.
+     * @param storedProcedureProxyFactory Factory, which can be used to generate stored procedure proxy for convenience.
+     * @param principals                  Principals to check.
+     * @return Principals of existing users.
+     * @throws Exception
+     */
+    Set<Object> getExistingPrincipals(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory,
+                                      Collection<Object> principals) throws Exception;
+
+    /**
+     * Adds new users to the database. Either all users of the batch are added or exception is thrown.
+     *
+     * @param session                     {@link Session} instance, which is connected to the database.
+     * @param storedProcedureProxyFactory Factory, which can be used to generate stored procedure proxy for convenience.
+     * @param registrations               Users to add with hashed passwords.
+     * @throws Exception
+     */
+    void addNewUsers(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory,
+                     List<UserRegistration> registrations) throws Exception;
+}
@@ -0,0 +1,235 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.sql.Session;
+import com.kirgor.enklib.sql.proxy.StoredProcedureProxyFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Registers many users at once: looks up existing users and inserts new ones in batches
+ * (if {@link AuthenticationDAO} is {@link BulkAuthenticationDAO}) and hashes passwords of each batch
+ * in parallel on the password hash executor of {@link Config}.
+ * <p/>
+ * Hashing tasks share the bounded executor with request hashing, so only limited number of them is submitted at once
+ * and rejected task runs on the calling thread. If there is no executor, passwords are hashed on the calling thread.
+ * <p/>
+ * Failed registrations are collected into the result rather than stopping the whole process. If batch insert fails
+ * in auto-commit mode, batch is rolled back and its users are inserted one by one to find the failed ones.
+ * In transaction, failed insert fails the whole registration, because transaction can't continue.
+ */
+class BulkRegistrar {
+    private static final int HASH_TASK_SIZE = 8;
+
+    private final AuthenticationDAO authenticationDAO;
+    private final CachingAuthenticationDAO cache;
+    private final StoredProcedureProxyFactory storedProcedureProxyFactory;
+    private final PasswordHasher passwordHasher;
+    private final SecurityTokenGenerator saltGenerator;
+    private final int saltLength;
+    private final int batchSize;
+    private final int parallelism;
+    private final ExecutorService hashExecutor;
+    private final Session session;
+
+    BulkRegistrar(Config config, Session session) throws Exception {
+        AuthenticationDAO dao = config.getAuthenticationDAO();
+        if (dao instanceof CachingAuthenticationDAO) {
+            // Lookups go to the database, cache is only invalidated for registered users
+            cache = (CachingAuthenticationDAO) dao;
+            dao = cache.getAuthenticationDAO();
+        } else {
+            cache = null;
+        }
+        this.authenticationDAO = dao;
+        this.storedProcedureProxyFactory = config.getStoredProcedureProxyFactory();
+        this.passwordHasher = config.getPasswordHasher();
+        this.saltGenerator = config.getSecurityTokenGenerator();
+        this.saltLength = config.getPasswordSaltLength();
+        this.batchSize = config.getBulkRegistrationBatchSize();
+        this.parallelism = config.getBulkRegistrationParallelism() > 0
+                ? config.getBulkRegistrationParallelism()
+                : Runtime.getRuntime().availableProcessors();
+        this.hashExecutor = config.getPasswordHashExecutor();
+        this.session = session;
+    }
+
+    BulkRegistrationResult register(List<UserRegistration> registrations, BulkRegistrationListener listener) throws Exception {
+        BulkRegistrationResult result = new BulkRegistrationResult();
+        Set<Object> seenPrincipals = new HashSet<Object>();
+        for (int from = 0; from < registrations.size(); from += batchSize) {
+            List<UserRegistration> batch = registrations.subList(from, Math.min(from + batchSize, registrations.size()));
+
+            List<UserRegistration> candidates = new ArrayList<UserRegistration>();
+            for (UserRegistration registration : batch) {
+                if (seenPrincipals.add(registration.getPrincipal())) {
+                    candidates.add(registration);
+                } else {
+                    result.addFailure(registration, BulkRegistrationResult.Reason.DUPLICATE, null);
+                }
+            }
+            candidates = filterExisting(candidates, result);
+
+            Exception[] errors = hash(candidates);
+            List<UserRegistration> hashed = new ArrayList<UserRegistration>();
+            for (int i = 0; i < errors.length; i++) {
+                if (errors[i] == null) {
+                    hashed.add(candidates.get(i));
+                } else {
+                    result.addFailure(candidates.get(i), BulkRegistrationResult.Reason.HASH_FAILED, errors[i]);
+                }
+            }
+
+            insert(hashed, result);
+            if (listener != null) {
+                listener.progress(from + batch.size(), registrations.size(), result.getFailures().size());
+            }
+        }
+        return result;
+    }
+
+    private Exception[] hash(List<UserRegistration> registrations) throws Exception {
+        Exception[] errors = new Exception[registrations.size()];
+        if (hashExecutor == null) {
+            new HashTask(registrations, errors, 0, registrations.size()).run();
+            return errors;
+        }
+
+        LinkedList<Future<?>> futures = new LinkedList<Future<?>>();
+        try {
+            for (int from = 0; from < registrations.size(); from += HASH_TASK_SIZE) {
+                if (futures.size() >= parallelism) {
+                    futures.removeFirst().get();
+                }
+                HashTask task = new HashTask(registrations, errors, from, Math.min(from + HASH_TASK_SIZE, registrations.size()));
+                try {
+                    futures.add(hashExecutor.submit(task));
+                } catch (RejectedExecutionException ex) {
+                    // Executor is saturated, so the task is run on this thread
+                    task.run();
+                }
+            }
+            while (!futures.isEmpty()) {
+                futures.removeFirst().get();
+            }
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+        return errors;
+    }
+
+    private List<UserRegistration> filterExisting(List<UserRegistration> candidates, BulkRegistrationResult result) throws Exception {
+        List<UserRegistration> newUsers = new ArrayList<UserRegistration>();
+        if (authenticationDAO instanceof BulkAuthenticationDAO) {
+            List<Object> principals = new ArrayList<Object>();
+            for (UserRegistration registration : candidates) {
+                principals.add(registration.getPrincipal());
+            }
+            Set<Object> existing = ((BulkAuthenticationDAO) authenticationDAO)
+                    .getExistingPrincipals(session, storedProcedureProxyFactory, principals);
+            for (UserRegistration registration : candidates) {
+                if (existing.contains(registration.getPrincipal())) {
+                    result.addFailure(registration, BulkRegistrationResult.Reason.ALREADY_EXISTS, null);
+                } else {
+                    newUsers.add(registration);
+                }
+            }
+        } else {
+            for (UserRegistration registration : candidates) {
+                if (authenticationDAO.getUserByPrincipal(session, storedProcedureProxyFactory, registration.getPrincipal()) != null) {
+                    result.addFailure(registration, BulkRegistrationResult.Reason.ALREADY_EXISTS, null);
+                } else {
+                    newUsers.add(registration);
+                }
+            }
+        }
+        return newUsers;
+    }
+
+    private void insert(List<UserRegistration> registrations, BulkRegistrationResult result) throws Exception {
+        if (registrations.isEmpty()) {
+            return;
+        }
+        boolean autoCommit = session.isAutoCommit();
+
+        if (authenticationDAO instanceof BulkAuthenticationDAO) {
+            if (!autoCommit) {
+                ((BulkAuthenticationDAO) authenticationDAO).addNewUsers(session, storedProcedureProxyFactory, registrations);
+                registered(registrations, result);
+                return;
+            }
+
+            // Batch runs in own transaction, so it can be rolled back and retried one by one
+            session.setAutoCommit(false);
+            try {
+                ((BulkAuthenticationDAO) authenticationDAO).addNewUsers(session, storedProcedureProxyFactory, registrations);
+                session.commit();
+                registered(registrations, result);
+                return;
+            } catch (Exception ex) {
+                session.rollback();
+            } finally {
+                session.setAutoCommit(true);
+            }
+        }
+
+        for (UserRegistration registration : registrations) {
+            try {
+                authenticationDAO.addNewUser(session, storedProcedureProxyFactory, registration.getPrincipal(),
+                        registration.getPasswordHash(), registration.getPasswordSalt(), registration.getExtraData());
+            } catch (Exception ex) {
+                if (!autoCommit) {
+                    throw ex;
+                }
+                result.addFailure(registration, BulkRegistrationResult.Reason.INSERT_FAILED, ex);
+                continue;
+            }
+            registered(Collections.singletonList(registration), result);
+        }
+    }
+
+    private void registered(List<UserRegistration> registrations, BulkRegistrationResult result) {
+        result.addRegistered(registrations.size());
+        if (cache != null) {
+            for (UserRegistration registration : registrations) {
+                cache.invalidate(registration.getPrincipal());
+            }
+        }
+    }
+
+    private class HashTask implements Runnable {
+        private final List<UserRegistration> registrations;
+        private final Exception[] errors;
+        private final int from;
+        private final int to;
+
+        private HashTask(List<UserRegistration> registrations, Exception[] errors, int from, int to) {
+            this.registrations = registrations;
+            this.errors = errors;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void run() {
+            for (int i = from; i < to; i++) {
+                UserRegistration registration = registrations.get(i);
+                try {
+                    String salt = saltGenerator.generate(saltLength);
+                    registration.setHashed(passwordHasher.hash(registration.getPassword(), salt), salt);
+                } catch (Exception ex) {
+                    errors[i] = ex;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Receives progress of bulk registration after each batch.
+ */
+public interface BulkRegistrationListener {
+    /**
+     * Called after batch has been processed.
+     *
+     * @param processedCount Number of processed registrations, including failed ones.
+     * @param totalCount     Total number of registrations.
+     * @param failedCount    Number of failed registrations.
+     */
+    void progress(int processedCount, int totalCount, int failedCount);
+}
@@ -0,0 +1,87 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of bulk registration: number of registered users and failed registrations with reasons.
+ */
+public class BulkRegistrationResult {
+    private int registeredCount;
+    private final List<Failure> failures = new ArrayList<Failure>();
+
+    /**
+     * Gets number of users, which have been registered.
+     */
+    public int getRegisteredCount() {
+        return registeredCount;
+    }
+
+    /**
+     * Gets registrations, which have failed.
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    void addRegistered(int count) {
+        registeredCount += count;
+    }
+
+    void addFailure(UserRegistration registration, Reason reason, Exception exception) {
+        failures.add(new Failure(registration, reason, exception));
+    }
+
+    /**
+     * Reason of registration failure.
+     */
+    public static enum Reason {
+        /**
+         * User with the principal already exists.
+         */
+        ALREADY_EXISTS,
+        /**
+         * Principal has been met earlier in the same bulk registration.
+         */
+        DUPLICATE,
+        /**
+         * Password can't be hashed.
+         */
+        HASH_FAILED,
+        /**
+         * User can't be added to the database.
+         */
+        INSERT_FAILED
+    }
+
+    /**
+     * Failed registration.
+     */
+    public static class Failure {
+        private final UserRegistration registration;
+        private final Reason reason;
+        private final Exception exception;
+
+        private Failure(UserRegistration registration, Reason reason, Exception exception) {
+            this.registration = registration;
+            this.reason = reason;
+            this.exception = exception;
+        }
+
+        public UserRegistration getRegistration() {
+            return registration;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        /**
+         * Gets exception, which has caused failure, or null if there was none.
+         */
+        public Exception getException() {
+            return exception;
+        }
+    }
+}
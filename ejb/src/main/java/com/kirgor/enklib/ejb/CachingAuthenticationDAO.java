@@ -0,0 +1,155 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.sql.Session;
+import com.kirgor.enklib.sql.proxy.StoredProcedureProxyFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decorator of {@link AuthenticationDAO}, which caches users by principal for limited time,
+ * so repeated logins don't hit the database.
+ * <p/>
+ * Unknown principals are cached too, for shorter time, which protects the database from lookups of
+ * non-existent users. Principal is invalidated when new user is added through this instance, other changes
+ * of password hash or salt must be followed by invalidate() call or become visible after time to live.
+ * Lookup, which has raced with invalidation, is not cached, since it could have read the old state.
+ * <p/>
+ * It's applied automatically, when "authenticationDAOCacheTimeToLive" configuration field is positive.
+ */
+public class CachingAuthenticationDAO implements AuthenticationDAO {
+    private final AuthenticationDAO authenticationDAO;
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+    private final int maxCount;
+    private final ConcurrentHashMap<Object, Entry> cache = new ConcurrentHashMap<Object, Entry>();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates decorator.
+     *
+     * @param authenticationDAO  Decorated {@link AuthenticationDAO}.
+     * @param timeToLive         Time in milliseconds, during which found user is cached.
+     * @param negativeTimeToLive Time in milliseconds, during which unknown principal is cached.
+     * @param maxCount           Maximum number of cached principals.
+     */
+    public CachingAuthenticationDAO(AuthenticationDAO authenticationDAO, long timeToLive, long negativeTimeToLive, int maxCount) {
+        this.authenticationDAO = authenticationDAO;
+        this.timeToLive = timeToLive;
+        this.negativeTimeToLive = negativeTimeToLive;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addNewUser(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory,
+                           Object principal, String passwordHash, String passwordSalt, Object extraData) throws Exception {
+        try {
+            authenticationDAO.addNewUser(session, storedProcedureProxyFactory, principal, passwordHash, passwordSalt, extraData);
+        } finally {
+            invalidate(principal);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public User getUserByPrincipal(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory, Object principal) throws Exception {
+        if (principal == null) {
+            return authenticationDAO.getUserByPrincipal(session, storedProcedureProxyFactory, null);
+        }
+
+        long now = System.currentTimeMillis();
+        Entry entry = cache.get(principal);
+        if (entry != null) {
+            if (now < entry.expiresAt) {
+                hitCount.incrementAndGet();
+                return entry.user;
+            }
+            cache.remove(principal, entry);
+        }
+
+        // Result is not cached if any principal has been invalidated meanwhile, because it could be already stale
+        long invalidations = invalidationCount.get();
+        missCount.incrementAndGet();
+        User user = authenticationDAO.getUserByPrincipal(session, storedProcedureProxyFactory, principal);
+        long ttl = user != null ? timeToLive : negativeTimeToLive;
+        if (ttl > 0 && invalidationCount.get() == invalidations) {
+            if (cache.size() >= maxCount) {
+                evict(now);
+            }
+            cache.put(principal, new Entry(user, now + ttl));
+        }
+        return user;
+    }
+
+    /**
+     * Drops cached user with specified principal.
+     */
+    public void invalidate(Object principal) {
+        if (principal != null) {
+            invalidationCount.incrementAndGet();
+            cache.remove(principal);
+        }
+    }
+
+    /**
+     * Drops all cached users.
+     */
+    public void clear() {
+        invalidationCount.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * Gets decorated {@link AuthenticationDAO}.
+     */
+    public AuthenticationDAO getAuthenticationDAO() {
+        return authenticationDAO;
+    }
+
+    /**
+     * Gets number of lookups served by the cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets number of lookups, which went to the database.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    private void evict(long now) {
+        // Expired entries go first, then arbitrary ones, since the cache is only a shortcut
+        Iterator<Entry> iterator = cache.values().iterator();
+        while (iterator.hasNext()) {
+            if (now >= iterator.next().expiresAt) {
+                iterator.remove();
+            }
+        }
+        iterator = cache.values().iterator();
+        for (int i = cache.size() - maxCount + maxCount / 16 + 1; i > 0 && iterator.hasNext(); i--) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private static class Entry {
+        private final User user;
+        private final long expiresAt;
+
+        private Entry(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Default implementation of {@link SecurityTokenStorage}, which is safe for concurrent use and keeps bounded memory.
+ * <p/>
+ * Tokens expire after time to live, which is prolonged on each successful lookup if sliding expiration is on.
+ * Expired tokens are dropped lazily on lookup and by the periodic sweep, which is performed by the thread
+ * that happens to add a token when the sweep is due, so no background threads are used.
+ * <p/>
+ * When number of tokens exceeds the maximum, tokens closest to expiration are evicted, which means
+ * least recently used ones in case of sliding expiration.
+ * <p/>
+ * User sessions are not persistent between service restarts.
+ */
+public class ConcurrentSecurityTokenStorage implements SecurityTokenStorage, Configurable {
+    private static final long MIN_SWEEP_INTERVAL = 1000;
+    private static final Comparator<Candidate> LATEST_EXPIRATION_FIRST = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate o1, Candidate o2) {
+            return o1.expiresAt < o2.expiresAt ? 1 : (o1.expiresAt == o2.expiresAt ? 0 : -1);
+        }
+    };
+
+    private final ConcurrentHashMap<String, Token> tokens = new ConcurrentHashMap<String, Token>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final AtomicLong nextSweepTime = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    private final AtomicLong expirationCount = new AtomicLong();
+
+    private volatile long timeToLive = 3600 * 1000L;
+    private volatile boolean slidingExpiration = true;
+    private volatile int maxCount = 100000;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Takes time to live, sliding expiration and maximum token count from the configuration.
+     */
+    @Override
+    public void configure(Config config) {
+        setTimeToLive(config.getSecurityTokenTimeToLive() * 1000L);
+        setSlidingExpiration(config.isSecurityTokenSlidingExpiration());
+        setMaxCount(config.getSecurityTokenMaxCount());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(String token, Object principal) {
+        long now = System.currentTimeMillis();
+        Token previous = tokens.put(token, new Token(principal, expirationTime(now)));
+        if (previous == null && tokens.size() > maxCount) {
+            evict(now);
+        } else {
+            sweepIfDue(now);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get(String token) {
+        if (token == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        Token entry = tokens.get(token);
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            if (tokens.remove(token, entry)) {
+                expirationCount.incrementAndGet();
+            }
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        if (slidingExpiration) {
+            entry.expiresAt = expirationTime(now);
+        }
+        hitCount.incrementAndGet();
+        return entry.principal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(String token) {
+        if (token != null) {
+            tokens.remove(token);
+        }
+    }
+
+    /**
+     * Gets time to live of tokens in milliseconds. Non-positive value means, that tokens never expire.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets time to live of tokens in milliseconds. Non-positive value means, that tokens never expire.
+     * It's applied to tokens, which are added or prolonged afterwards.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Gets if token expiration time is prolonged on each successful lookup.
+     */
+    public boolean isSlidingExpiration() {
+        return slidingExpiration;
+    }
+
+    /**
+     * Sets if token expiration time is prolonged on each successful lookup.
+     */
+    public void setSlidingExpiration(boolean slidingExpiration) {
+        this.slidingExpiration = slidingExpiration;
+    }
+
+    /**
+     * Gets maximum number of stored tokens.
+     */
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /**
+     * Sets maximum number of stored tokens.
+     */
+    public void setMaxCount(int maxCount) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("Maximum token count must be positive.");
+        }
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * Gets number of stored tokens, which can include expired ones not swept yet.
+     */
+    public int getActiveCount() {
+        return tokens.size();
+    }
+
+    /**
+     * Gets number of lookups, which have found a valid token.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets number of lookups, which have found no token or expired one.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Gets number of tokens, which were evicted because of the maximum count.
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Gets number of tokens, which were dropped because of expiration.
+     */
+    public long getExpirationCount() {
+        return expirationCount.get();
+    }
+
+    /**
+     * Removes all expired tokens.
+     */
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Token> entry : tokens.entrySet()) {
+            if (entry.getValue().isExpired(now) && tokens.remove(entry.getKey(), entry.getValue())) {
+                expirationCount.incrementAndGet();
+            }
+        }
+    }
+
+    private long expirationTime(long now) {
+        long ttl = timeToLive;
+        return ttl > 0 ? now + ttl : Long.MAX_VALUE;
+    }
+
+    private void sweepIfDue(long now) {
+        long next = nextSweepTime.get();
+        if (now < next) {
+            return;
+        }
+
+        // Only the thread, which wins the race, does the sweep
+        long interval = Math.max(timeToLive / 2, MIN_SWEEP_INTERVAL);
+        if (nextSweepTime.compareAndSet(next, now + interval)) {
+            sweep();
+        }
+    }
+
+    private void evict(long now) {
+        // Concurrent adders don't wait, the overflow is fixed by the current eviction or the next one
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            nextSweepTime.set(now + Math.max(timeToLive / 2, MIN_SWEEP_INTERVAL));
+            sweep();
+
+            int excess = tokens.size() - maxCount;
+            if (excess <= 0) {
+                return;
+            }
+
+            // Evict some more than needed, so the full scan is not repeated on each next add
+            int batch = excess + maxCount / 16;
+            PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>(batch + 1, LATEST_EXPIRATION_FIRST);
+            for (Map.Entry<String, Token> entry : tokens.entrySet()) {
+                long expiresAt = entry.getValue().expiresAt;
+                if (candidates.size() < batch) {
+                    candidates.add(new Candidate(entry.getKey(), entry.getValue(), expiresAt));
+                } else if (expiresAt < candidates.peek().expiresAt) {
+                    candidates.poll();
+                    candidates.add(new Candidate(entry.getKey(), entry.getValue(), expiresAt));
+                }
+            }
+            for (Candidate candidate : candidates) {
+                if (tokens.remove(candidate.token, candidate.entry)) {
+                    evictionCount.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private static class Token {
+        private final Object principal;
+        private volatile long expiresAt;
+
+        private Token(Object principal, long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    private static class Candidate {
+        private final String token;
+        private final Token entry;
+        private final long expiresAt;
+
+        private Candidate(String token, Token entry, long expiresAt) {
+            this.token = token;
+            this.entry = entry;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -1,23 +1,80 @@
 package com.kirgor.enklib.ejb;
 
+import com.kirgor.enklib.ejb.annotation.PerRequest;
+import com.kirgor.enklib.sql.ReplicaSet;
 import com.kirgor.enklib.sql.dialect.Dialect;
 import com.kirgor.enklib.sql.proxy.StoredProcedureProxyFactory;
 import org.simpleframework.xml.Element;
+import org.simpleframework.xml.ElementList;
 import org.simpleframework.xml.Root;
 
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.File;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Contains configuration fields and methods to get various cached classes and class instances.
- * Single instance of this class is stored by {@link ConfigBean}.
+ * Single instance of this class is stored by {@link ConfigBean}, so configured components are shared
+ * by all requests and must be thread-safe, unless they are annotated with {@link PerRequest}.
  * This class is not supposed to be used by the end-user.
  */
 @Root(name = "config")
 @SuppressWarnings("UnusedDeclaration")
 public class Config {
+    /**
+     * Security token mode, in which tokens are random codes associated with principals by {@link SecurityTokenStorage}.
+     */
+    public static final String SECURITY_TOKEN_MODE_STORAGE = "storage";
+    /**
+     * Security token mode, in which tokens carry signed principals, see {@link SignedSecurityTokens}.
+     */
+    public static final String SECURITY_TOKEN_MODE_SIGNED = "signed";
+
+    private static final Logger LOGGER = Logger.getLogger(Config.class.getName());
+    private static final String MANAGED_THREAD_FACTORY_JNDI = "java:comp/DefaultManagedThreadFactory";
+    // Added to the count of active requests, when configuration is replaced, so the count becomes negative
+    private static final int RETIRED = Integer.MIN_VALUE / 2;
+
     @Element
     private String dataSourceJNDI;
+    @Element(required = false)
+    private boolean invocationMetricsEnabled = false;
+    @Element(required = false)
+    private boolean invocationMetricsJMXEnabled = true;
+    @Element(required = false)
+    private String invocationMetricsApplication = "default";
+    @Element(required = false)
+    private String invocationMetricsReporterClassName = null;
+    @Element(required = false)
+    private int invocationMetricsReportInterval = 60;
+    @Element(required = false)
+    private boolean configReloadEnabled = true;
+    @Element(required = false)
+    private int configReloadDelay = 500;
+    @ElementList(required = false, entry = "replicaDataSourceJNDI")
+    private List<String> replicaDataSourceJNDIs = new ArrayList<String>();
+    @Element(required = false)
+    private String replicaSelectionStrategy = "ROUND_ROBIN";
+    @Element(required = false)
+    private int replicaRetryDelay = 30;
     @Element
     private String dialectClassName;
     @Element
@@ -29,10 +86,74 @@ public class Config {
     @Element(required = false)
     private int passwordSaltLength = 32;
     @Element(required = false)
-    private String securityTokenStorageClassName = "com.kirgor.enklib.ejb.HashMapSecurityTokenStorage";
+    private int authenticationDAOCacheTimeToLive = 0;
+    @Element(required = false)
+    private int authenticationDAONegativeCacheTimeToLive = 5;
+    @Element(required = false)
+    private int authenticationDAOCacheMaxCount = 10000;
+    @Element(required = false)
+    private double authenticationRateLimit = 0;
+    @Element(required = false)
+    private int authenticationRateBurst = 5;
+    @Element(required = false)
+    private double authenticationAddressRateLimit = 0;
+    @Element(required = false)
+    private int authenticationAddressRateBurst = 20;
+    @Element(required = false)
+    private int authenticationLockoutThreshold = 0;
+    @Element(required = false)
+    private int authenticationLockoutHalfLife = 300;
+    @Element(required = false)
+    private int authenticationThrottleMaxKeys = 100000;
+    @Element(required = false)
+    private int bulkRegistrationBatchSize = 1000;
+    @Element(required = false)
+    private int bulkRegistrationParallelism = 0;
+    @Element(required = false)
+    private String passwordHasherClassName = "com.kirgor.enklib.ejb.DigestPasswordHasher";
+    @Element(required = false)
+    private String passwordKDFAlgorithm = "PBKDF2WithHmacSHA1";
+    @Element(required = false)
+    private int passwordKDFIterations = 100000;
+    @Element(required = false)
+    private int passwordHashLength = 32;
+    @Element(required = false)
+    private int passwordHashThreads = -1;
+    @Element(required = false)
+    private int passwordHashQueueCapacity = 64;
+    @Element(required = false)
+    private int passwordHashTimeout = 10;
+    @Element(required = false)
+    private String securityTokenStorageClassName = "com.kirgor.enklib.ejb.ConcurrentSecurityTokenStorage";
     @Element(required = false)
     private int securityTokenLength = 32;
     @Element(required = false)
+    private String securityTokenRandomAlgorithm = "SHA1PRNG";
+    @Element(required = false)
+    private int securityTokenTimeToLive = 0;
+    @Element(required = false)
+    private boolean securityTokenSlidingExpiration = true;
+    @Element(required = false)
+    private int securityTokenMaxCount = 100000;
+    @Element(required = false)
+    private String securityTokenMode = SECURITY_TOKEN_MODE_STORAGE;
+    @Element(required = false)
+    private String securityTokenSecret = null;
+    @Element(required = false)
+    private String securityTokenSignatureAlgorithm = "HmacSHA256";
+    @Element(required = false)
+    private int securityTokenRevocationCapacity = 10000;
+    @Element(required = false)
+    private String securityTokenRemoteStoreClassName = "com.kirgor.enklib.ejb.InMemoryRemoteSecurityTokenStore";
+    @Element(required = false)
+    private int securityTokenNearCacheTimeToLive = 60;
+    @Element(required = false)
+    private int securityTokenNegativeCacheTimeToLive = 5;
+    @Element(required = false)
+    private String securityTokenStorageFile = null;
+    @Element(required = false)
+    private int securityTokenStorageCapacity = 65536;
+    @Element(required = false)
     private String securityCookieName = "securityToken";
     @Element(required = false)
     private String securityCookiePath = "/";
@@ -50,13 +171,77 @@ public class Config {
     private Class dialectClass;
     private Class securityTokenStorageClass;
     private Class authenticationDAOClass;
+    private Class passwordHasherClass;
+    private Dialect dialect;
+    private SecurityTokenStorage securityTokenStorage;
+    private AuthenticationDAO authenticationDAO;
+    private PasswordHasher passwordHasher;
+    private LoginThrottle loginThrottle;
+    private ExecutorService passwordHashExecutor;
     private StoredProcedureProxyFactory storedProcedureProxyFactory;
+    private SignedSecurityTokens signedSecurityTokens;
+    private SecurityTokenGenerator securityTokenGenerator;
+    private InvocationMetrics invocationMetrics;
+    private volatile DataSource dataSource;
+    private volatile DataSource readOnlyDataSource;
+    private volatile boolean initialized;
     private MessageDigest messageDigest;
+    private final ThreadLocal<Map<Class, Object>> requestInstances = new ThreadLocal<Map<Class, Object>>();
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private volatile Config replacement;
 
     public String getDataSourceJNDI() {
         return dataSourceJNDI;
     }
 
+    public boolean isInvocationMetricsEnabled() {
+        return invocationMetricsEnabled;
+    }
+
+    public boolean isInvocationMetricsJMXEnabled() {
+        return invocationMetricsJMXEnabled;
+    }
+
+    public String getInvocationMetricsApplication() {
+        return invocationMetricsApplication;
+    }
+
+    public String getInvocationMetricsReporterClassName() {
+        return invocationMetricsReporterClassName;
+    }
+
+    public int getInvocationMetricsReportInterval() {
+        return invocationMetricsReportInterval;
+    }
+
+    public boolean isConfigReloadEnabled() {
+        return configReloadEnabled;
+    }
+
+    public int getConfigReloadDelay() {
+        return configReloadDelay;
+    }
+
+    public List<String> getReplicaDataSourceJNDIs() {
+        return replicaDataSourceJNDIs;
+    }
+
+    public String getReplicaSelectionStrategy() {
+        return replicaSelectionStrategy;
+    }
+
+    public int getReplicaRetryDelay() {
+        return replicaRetryDelay;
+    }
+
+    /**
+     * Indicates whether read replicas are configured.
+     */
+    public boolean isReplicated() {
+        return replicaDataSourceJNDIs != null && !replicaDataSourceJNDIs.isEmpty();
+    }
+
     public String getDialectClassName() {
         return dialectClassName;
     }
@@ -73,6 +258,102 @@ public class Config {
         return passwordSaltLength;
     }
 
+    /**
+     * Gets time in seconds, during which users found by {@link AuthenticationDAO} are cached.
+     * Zero means that cache is off. Cache is shared, so it can't be used with {@link PerRequest} AuthenticationDAO.
+     */
+    public int getAuthenticationDAOCacheTimeToLive() {
+        return authenticationDAOCacheTimeToLive;
+    }
+
+    public int getAuthenticationDAONegativeCacheTimeToLive() {
+        return authenticationDAONegativeCacheTimeToLive;
+    }
+
+    public int getAuthenticationDAOCacheMaxCount() {
+        return authenticationDAOCacheMaxCount;
+    }
+
+    /**
+     * Gets number of login and register attempts per second allowed for single principal.
+     * Zero means no limit.
+     */
+    public double getAuthenticationRateLimit() {
+        return authenticationRateLimit;
+    }
+
+    public int getAuthenticationRateBurst() {
+        return authenticationRateBurst;
+    }
+
+    public int getBulkRegistrationBatchSize() {
+        return bulkRegistrationBatchSize;
+    }
+
+    /**
+     * Gets maximum number of password hashing tasks, which bulk registration submits to the password hash executor
+     * at once. Zero means number of available processors.
+     */
+    public int getBulkRegistrationParallelism() {
+        return bulkRegistrationParallelism;
+    }
+
+    public double getAuthenticationAddressRateLimit() {
+        return authenticationAddressRateLimit;
+    }
+
+    public int getAuthenticationAddressRateBurst() {
+        return authenticationAddressRateBurst;
+    }
+
+    public int getAuthenticationLockoutThreshold() {
+        return authenticationLockoutThreshold;
+    }
+
+    public int getAuthenticationLockoutHalfLife() {
+        return authenticationLockoutHalfLife;
+    }
+
+    /**
+     * Gets maximum number of principals and client addresses, which are tracked by authentication throttling.
+     */
+    public int getAuthenticationThrottleMaxKeys() {
+        return authenticationThrottleMaxKeys;
+    }
+
+    public String getPasswordHasherClassName() {
+        return passwordHasherClassName;
+    }
+
+    public String getPasswordKDFAlgorithm() {
+        return passwordKDFAlgorithm;
+    }
+
+    public int getPasswordKDFIterations() {
+        return passwordKDFIterations;
+    }
+
+    public int getPasswordHashLength() {
+        return passwordHashLength;
+    }
+
+    /**
+     * Gets number of threads, which hash passwords. Negative value means number of available processors,
+     * zero means that passwords are hashed on request threads. Threads are created by the managed thread factory
+     * of the container, without it passwords are hashed on request threads too.
+     */
+    public int getPasswordHashThreads() {
+        return passwordHashThreads;
+    }
+
+    public int getPasswordHashQueueCapacity() {
+        return passwordHashQueueCapacity;
+    }
+
+    public int getPasswordHashTimeout() {
+        return passwordHashTimeout;
+    }
+
     public String getSecurityTokenStorageClassName() {
         return securityTokenStorageClassName;
     }
@@ -81,6 +362,62 @@ public class Config {
         return securityTokenLength;
     }
 
+    public String getSecurityTokenRandomAlgorithm() {
+        return securityTokenRandomAlgorithm;
+    }
+
+    /**
+     * Gets time to live of security tokens in seconds. If it's not set explicitly, security cookie max age is used.
+     * Non-positive value means, that tokens never expire.
+     */
+    public int getSecurityTokenTimeToLive() {
+        return securityTokenTimeToLive > 0 ? securityTokenTimeToLive : securityCookieMaxAge;
+    }
+
+    public boolean isSecurityTokenSlidingExpiration() {
+        return securityTokenSlidingExpiration;
+    }
+
+    public int getSecurityTokenMaxCount() {
+        return securityTokenMaxCount;
+    }
+
+    public String getSecurityTokenMode() {
+        return securityTokenMode;
+    }
+
+    public boolean isSignedSecurityTokenMode() {
+        return SECURITY_TOKEN_MODE_SIGNED.equals(securityTokenMode);
+    }
+
+    public String getSecurityTokenSignatureAlgorithm() {
+        return securityTokenSignatureAlgorithm;
+    }
+
+    public int getSecurityTokenRevocationCapacity() {
+        return securityTokenRevocationCapacity;
+    }
+
+    public String getSecurityTokenRemoteStoreClassName() {
+        return securityTokenRemoteStoreClassName;
+    }
+
+    public int getSecurityTokenNearCacheTimeToLive() {
+        return securityTokenNearCacheTimeToLive;
+    }
+
+    public int getSecurityTokenNegativeCacheTimeToLive() {
+        return securityTokenNegativeCacheTimeToLive;
+    }
+
+    public String getSecurityTokenStorageFile() {
+        return securityTokenStorageFile;
+    }
+
+    public int getSecurityTokenStorageCapacity() {
+        return securityTokenStorageCapacity;
+    }
+
     public String getSecurityCookieName() {
         return securityCookieName;
     }
@@ -109,38 +446,536 @@ public class Config {
         return securityCookieSecure;
     }
 
-    public Dialect getDialect() throws Exception {
-        if (dialectClass == null) {
-            dialectClass = Class.forName(dialectClassName);
+    /**
+     * Creates shared instances of configured components. It's called once by {@link ConfigBean} after
+     * configuration is loaded, but getters of components also call it lazily, if it hasn't succeeded yet.
+     * <p/>
+     * Classes annotated with {@link PerRequest} are not shared and instantiated once per request, see beginRequest().
+     *
+     * @throws Exception
+     */
+    public void init() throws Exception {
+        init(null);
+    }
+
+    /**
+     * Validates configuration and creates shared instances of configured components, reusing components
+     * of the previous configuration, which settings haven't changed. It's used when configuration is reloaded,
+     * so security tokens, compiled proxy classes and caches survive the reload.
+     *
+     * @param previous Previous configuration or null.
+     * @throws Exception If configuration is not valid or components can't be created.
+     */
+    public synchronized void init(Config previous) throws Exception {
+        if (initialized) {
+            return;
+        }
+        validate();
+        if (previous != null && !previous.initialized) {
+            previous = null;
+        }
+
+        dialectClass = Class.forName(dialectClassName);
+        securityTokenStorageClass = Class.forName(securityTokenStorageClassName);
+        authenticationDAOClass = Class.forName(authenticationDAOClassName);
+        passwordHasherClass = Class.forName(passwordHasherClassName);
+        if (authenticationDAOCacheTimeToLive > 0 && authenticationDAOClass.isAnnotationPresent(PerRequest.class)) {
+            throw new IllegalStateException("Authentication DAO annotated with @PerRequest can't be cached.");
+        }
+
+        if (previous != null && dialectSettings().equals(previous.dialectSettings())) {
+            dialect = previous.dialect;
+            // Proxy classes are compiled for the dialect, so they can be reused too
+            storedProcedureProxyFactory = previous.storedProcedureProxyFactory;
+        } else {
+            dialect = (Dialect) createShared(dialectClass);
+            storedProcedureProxyFactory = new StoredProcedureProxyFactory(dialect != null ? dialect : (Dialect) newInstance(dialectClass));
+        }
+        boolean storageReconfigured = false;
+        if (previous != null && securityTokenStorageSettings().equals(previous.securityTokenStorageSettings())) {
+            securityTokenStorage = previous.securityTokenStorage;
+        } else if (previous != null && isSameStorageFile(previous)) {
+            // File can't be used by two instances at once, so the instance is reconfigured, once init has succeeded
+            securityTokenStorage = previous.securityTokenStorage;
+            storageReconfigured = true;
+        } else {
+            securityTokenStorage = (SecurityTokenStorage) createShared(securityTokenStorageClass);
+        }
+        if (previous != null && authenticationDAOSettings().equals(previous.authenticationDAOSettings())) {
+            authenticationDAO = previous.authenticationDAO;
+        } else {
+            authenticationDAO = (AuthenticationDAO) createShared(authenticationDAOClass);
+            if (authenticationDAO != null && authenticationDAOCacheTimeToLive > 0) {
+                authenticationDAO = new CachingAuthenticationDAO(authenticationDAO,
+                        authenticationDAOCacheTimeToLive * 1000L,
+                        authenticationDAONegativeCacheTimeToLive * 1000L,
+                        authenticationDAOCacheMaxCount);
+            }
+        }
+        if (previous != null && authenticationRateSettings().equals(previous.authenticationRateSettings())) {
+            loginThrottle = previous.loginThrottle;
+        } else if (authenticationRateLimit > 0 || authenticationAddressRateLimit > 0 || authenticationLockoutThreshold > 0) {
+            loginThrottle = new LoginThrottle(
+                    authenticationRateLimit > 0
+                            ? new RateLimiter(authenticationRateLimit, authenticationRateBurst, authenticationThrottleMaxKeys)
+                            : null,
+                    authenticationAddressRateLimit > 0
+                            ? new RateLimiter(authenticationAddressRateLimit, authenticationAddressRateBurst, authenticationThrottleMaxKeys)
+                            : null,
+                    authenticationLockoutThreshold,
+                    authenticationLockoutHalfLife * 1000L,
+                    authenticationThrottleMaxKeys);
+        }
+        if (previous != null && passwordHasherSettings().equals(previous.passwordHasherSettings())) {
+            passwordHasher = previous.passwordHasher;
+        } else {
+            passwordHasher = (PasswordHasher) createShared(passwordHasherClass);
         }
-        return (Dialect) dialectClass.newInstance();
+        if (previous != null && passwordHashExecutorSettings().equals(previous.passwordHashExecutorSettings())) {
+            passwordHashExecutor = previous.passwordHashExecutor;
+        } else if (passwordHashExecutor == null && passwordHashThreads != 0) {
+            passwordHashExecutor = createPasswordHashExecutor();
+        }
+        if (previous != null && securityTokenGeneratorSettings().equals(previous.securityTokenGeneratorSettings())) {
+            securityTokenGenerator = previous.securityTokenGenerator;
+        } else {
+            securityTokenGenerator = securityTokenRandomAlgorithm != null && securityTokenRandomAlgorithm.length() > 0
+                    ? new SecurityTokenGenerator(securityTokenRandomAlgorithm)
+                    : new SecurityTokenGenerator();
+        }
+        if (isSignedSecurityTokenMode()) {
+            if (previous != null && signedSecurityTokensSettings().equals(previous.signedSecurityTokensSettings())) {
+                // Keeps revocations made before the reload
+                signedSecurityTokens = previous.signedSecurityTokens;
+            } else {
+                signedSecurityTokens = new SignedSecurityTokens(
+                        securityTokenSecret != null ? securityTokenSecret.getBytes("UTF-8") : null,
+                        securityTokenSignatureAlgorithm,
+                        getSecurityTokenTimeToLive() * 1000L,
+                        securityTokenRevocationCapacity);
+            }
+        }
+        if (previous != null && invocationMetricsSettings().equals(previous.invocationMetricsSettings())) {
+            // Metrics are cumulative, so they survive the reload
+            invocationMetrics = previous.invocationMetrics;
+        } else if (invocationMetricsEnabled) {
+            invocationMetrics = new InvocationMetrics(invocationMetricsApplication, invocationMetricsJMXEnabled);
+            if (invocationMetricsReporterClassName != null) {
+                MetricsReporter reporter = (MetricsReporter) newInstance(Class.forName(invocationMetricsReporterClassName));
+                try {
+                    invocationMetrics.startReporting(reporter, invocationMetricsReportInterval, getManagedThreadFactory());
+                } catch (NamingException e) {
+                    LOGGER.log(Level.WARNING, "Managed thread factory is not available, invocation metrics are not reported", e);
+                }
+            }
+        }
+        if (previous != null && equal(dataSourceJNDI, previous.dataSourceJNDI)) {
+            dataSource = previous.dataSource;
+            if (replicaSettings().equals(previous.replicaSettings())) {
+                readOnlyDataSource = previous.readOnlyDataSource;
+            }
+        }
+        if (storageReconfigured) {
+            ((Configurable) securityTokenStorage).configure(this);
+        }
+        initialized = true;
     }
 
-    public SecurityTokenStorage getSecurityTokenStorage() throws Exception {
-        if (securityTokenStorageClass == null) {
-            securityTokenStorageClass = Class.forName(securityTokenStorageClassName);
+    /**
+     * Marks start of request, which uses this configuration, so its components are not released meanwhile.
+     * It's called by {@link Bean} interceptor.
+     *
+     * @return False if configuration has been replaced, so the request must use the current one.
+     */
+    boolean enter() {
+        if (activeRequests.incrementAndGet() > 0) {
+            return true;
+        }
+        exit();
+        return false;
+    }
+
+    /**
+     * Marks end of request started by enter().
+     */
+    void exit() {
+        if (activeRequests.decrementAndGet() == RETIRED) {
+            releaseRetired();
+        }
+    }
+
+    /**
+     * Releases components of this configuration, which are not used by the next one, once requests,
+     * which use this configuration, have completed. New requests are not allowed to enter this configuration.
+     *
+     * @param next Configuration, which has replaced this one.
+     */
+    void retire(Config next) {
+        replacement = next;
+        if (activeRequests.addAndGet(RETIRED) == RETIRED) {
+            releaseRetired();
+        }
+    }
+
+    private void releaseRetired() {
+        if (released.compareAndSet(false, true)) {
+            try {
+                release(replacement);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Can't release components of replaced configuration", e);
+            }
+        }
+    }
+
+    /**
+     * Releases components of this configuration, which are not used by the next one,
+     * after the next configuration has replaced this one.
+     *
+     * @param next Configuration, which has replaced this one.
+     * @throws Exception
+     */
+    void release(Config next) throws Exception {
+        if (passwordHashExecutor != null && passwordHashExecutor != next.passwordHashExecutor) {
+            // Queued tasks are still completed, so in-flight requests get their hashes
+            passwordHashExecutor.shutdown();
+        }
+        if (securityTokenStorage instanceof Closeable && securityTokenStorage != next.securityTokenStorage) {
+            ((Closeable) securityTokenStorage).close();
+        }
+        if (invocationMetrics != null && invocationMetrics != next.invocationMetrics) {
+            invocationMetrics.close();
+        }
+    }
+
+    /**
+     * Checks configuration values, which can't be checked by XML mapping.
+     *
+     * @throws IllegalStateException If configuration is not valid.
+     */
+    private void validate() {
+        if (dataSourceJNDI == null || dataSourceJNDI.length() == 0) {
+            throw new IllegalStateException("Data source JNDI name is not set.");
+        }
+        if (securityTokenLength <= 0 || passwordSaltLength <= 0 || passwordHashLength <= 0) {
+            throw new IllegalStateException("Security token, password salt and hash lengths must be positive.");
+        }
+        if (passwordHashIterations <= 0 || passwordKDFIterations <= 0) {
+            throw new IllegalStateException("Password hash iterations must be positive.");
+        }
+        if (bulkRegistrationBatchSize <= 0) {
+            throw new IllegalStateException("Bulk registration batch size must be positive.");
+        }
+        if (passwordHashQueueCapacity <= 0 || passwordHashTimeout <= 0) {
+            throw new IllegalStateException("Password hash queue capacity and timeout must be positive.");
+        }
+        if (isSignedSecurityTokenMode()) {
+            if (getSecurityTokenTimeToLive() <= 0) {
+                throw new IllegalStateException("Signed security tokens require positive time to live.");
+            }
+        } else if (!SECURITY_TOKEN_MODE_STORAGE.equals(securityTokenMode)) {
+            throw new IllegalStateException("Unknown security token mode " + securityTokenMode + ".");
+        }
+        if (authenticationLockoutThreshold > 0 && authenticationLockoutHalfLife <= 0) {
+            throw new IllegalStateException("Authentication lockout half-life must be positive.");
+        }
+        if (authenticationThrottleMaxKeys <= 0) {
+            throw new IllegalStateException("Maximum number of authentication throttle keys must be positive.");
         }
-        return (SecurityTokenStorage) securityTokenStorageClass.newInstance();
+        if (isReplicated()) {
+            ReplicaSet.Strategy.valueOf(replicaSelectionStrategy);
+        }
+        if (invocationMetricsEnabled && invocationMetricsReporterClassName != null && invocationMetricsReportInterval <= 0) {
+            throw new IllegalStateException("Invocation metrics report interval must be positive.");
+        }
+    }
+
+    private List<Object> dialectSettings() {
+        return Arrays.<Object>asList(dialectClassName);
+    }
+
+    private List<Object> securityTokenStorageSettings() {
+        return Arrays.<Object>asList(securityTokenStorageClassName, getSecurityTokenTimeToLive(),
+                securityTokenSlidingExpiration, securityTokenMaxCount, securityTokenStorageFile, securityTokenStorageCapacity,
+                securityTokenRemoteStoreClassName, securityTokenNearCacheTimeToLive, securityTokenNegativeCacheTimeToLive);
+    }
+
+    private List<Object> authenticationDAOSettings() {
+        return Arrays.<Object>asList(authenticationDAOClassName, authenticationDAOCacheTimeToLive,
+                authenticationDAONegativeCacheTimeToLive, authenticationDAOCacheMaxCount);
+    }
+
+    private List<Object> authenticationRateSettings() {
+        return Arrays.<Object>asList(authenticationRateLimit, authenticationRateBurst, authenticationAddressRateLimit,
+                authenticationAddressRateBurst, authenticationLockoutThreshold, authenticationLockoutHalfLife,
+                authenticationThrottleMaxKeys);
+    }
+
+    private List<Object> passwordHasherSettings() {
+        return Arrays.<Object>asList(passwordHasherClassName, passwordHashAlgorithm, passwordHashIterations,
+                passwordKDFAlgorithm, passwordKDFIterations, passwordHashLength);
+    }
+
+    private List<Object> passwordHashExecutorSettings() {
+        return Arrays.<Object>asList(passwordHashThreads, passwordHashQueueCapacity);
+    }
+
+    private List<Object> securityTokenGeneratorSettings() {
+        return Arrays.<Object>asList(securityTokenRandomAlgorithm);
+    }
+
+    private List<Object> signedSecurityTokensSettings() {
+        return Arrays.<Object>asList(securityTokenSecret, securityTokenSignatureAlgorithm,
+                getSecurityTokenTimeToLive(), securityTokenRevocationCapacity);
+    }
+
+    private List<Object> invocationMetricsSettings() {
+        return Arrays.<Object>asList(invocationMetricsEnabled, invocationMetricsJMXEnabled, invocationMetricsApplication,
+                invocationMetricsReporterClassName, invocationMetricsReportInterval);
+    }
+
+    private List<Object> replicaSettings() {
+        return Arrays.<Object>asList(replicaDataSourceJNDIs, replicaSelectionStrategy, replicaRetryDelay);
+    }
+
+    private static boolean equal(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public Dialect getDialect() throws Exception {
+        ensureInitialized();
+        return dialect != null ? dialect : (Dialect) getPerRequest(dialectClass);
+    }
+
+    public SecurityTokenStorage getSecurityTokenStorage() throws Exception {
+        ensureInitialized();
+        return securityTokenStorage != null ? securityTokenStorage : (SecurityTokenStorage) getPerRequest(securityTokenStorageClass);
     }
 
     public AuthenticationDAO getAuthenticationDAO() throws Exception {
-        if (authenticationDAOClass == null) {
-            authenticationDAOClass = Class.forName(authenticationDAOClassName);
+        ensureInitialized();
+        return authenticationDAO != null ? authenticationDAO : (AuthenticationDAO) getPerRequest(authenticationDAOClass);
+    }
+
+    /**
+     * Gets rate limiter of login and register attempts per principal. Returns null if there is no limit.
+     */
+    public RateLimiter getAuthenticationRateLimiter() throws Exception {
+        ensureInitialized();
+        return loginThrottle != null ? loginThrottle.getPrincipalLimiter() : null;
+    }
+
+    /**
+     * Gets throttle of login and register attempts. Returns null if there are no limits and lockout is off.
+     */
+    public LoginThrottle getLoginThrottle() throws Exception {
+        ensureInitialized();
+        return loginThrottle;
+    }
+
+    /**
+     * Looks up the default ManagedThreadFactory of the container (Java EE 7). Components start their threads
+     * only through it, since EJB can't start its own threads.
+     *
+     * @throws NamingException If the container doesn't provide it.
+     */
+    static ThreadFactory getManagedThreadFactory() throws NamingException {
+        return InitialContext.doLookup(MANAGED_THREAD_FACTORY_JNDI);
+    }
+
+    /**
+     * Gets {@link DataSource} by configured JNDI name. Lookup is done once, then the instance is reused.
+     *
+     * @throws NamingException
+     */
+    public DataSource getDataSource() throws NamingException {
+        DataSource result = dataSource;
+        if (result == null) {
+            result = InitialContext.doLookup(dataSourceJNDI);
+            dataSource = result;
         }
-        return (AuthenticationDAO) authenticationDAOClass.newInstance();
+        return result;
     }
 
-    public StoredProcedureProxyFactory getStoredProcedureProxyFactory() throws Exception {
-        if (storedProcedureProxyFactory == null) {
-            storedProcedureProxyFactory = new StoredProcedureProxyFactory(getDialect());
+    /**
+     * Gets {@link DataSource} for read-only transactions. It's {@link ReplicaSet} of configured replicas,
+     * which falls back to the primary {@link DataSource}, or the primary itself if there are no replicas.
+     * Lookup is done once, then the instance is reused.
+     *
+     * @throws NamingException
+     */
+    public DataSource getReadOnlyDataSource() throws NamingException {
+        DataSource result = readOnlyDataSource;
+        if (result == null) {
+            if (!isReplicated()) {
+                result = getDataSource();
+            } else {
+                List<DataSource> replicas = new ArrayList<DataSource>();
+                for (String jndi : replicaDataSourceJNDIs) {
+                    replicas.add(InitialContext.<DataSource>doLookup(jndi));
+                }
+                result = new ReplicaSet(getDataSource(), replicas,
+                        ReplicaSet.Strategy.valueOf(replicaSelectionStrategy), replicaRetryDelay * 1000L);
+            }
+            readOnlyDataSource = result;
         }
+        return result;
+    }
+
+    /**
+     * Gets generator of security tokens and password salts.
+     */
+    public SecurityTokenGenerator getSecurityTokenGenerator() throws Exception {
+        ensureInitialized();
+        return securityTokenGenerator;
+    }
+
+    /**
+     * Gets registry of invocation metrics. Returns null if metrics are disabled.
+     */
+    public InvocationMetrics getInvocationMetrics() throws Exception {
+        ensureInitialized();
+        return invocationMetrics;
+    }
+
+    public PasswordHasher getPasswordHasher() throws Exception {
+        ensureInitialized();
+        return passwordHasher != null ? passwordHasher : (PasswordHasher) getPerRequest(passwordHasherClass);
+    }
+
+    /**
+     * Gets executor, which hashes passwords, so login and register storms can't take all request threads.
+     * Executor has bounded queue and rejects tasks when it's full. Returns null if passwords are hashed on request threads.
+     */
+    public ExecutorService getPasswordHashExecutor() throws Exception {
+        ensureInitialized();
+        return passwordHashExecutor;
+    }
+
+    public StoredProcedureProxyFactory getStoredProcedureProxyFactory() throws Exception {
+        ensureInitialized();
         return storedProcedureProxyFactory;
     }
 
+    /**
+     * Gets issuer of signed security tokens, which is available only in signed security token mode.
+     */
+    public SignedSecurityTokens getSignedSecurityTokens() throws Exception {
+        ensureInitialized();
+        return signedSecurityTokens;
+    }
+
+    /**
+     * Gets {@link MessageDigest} of password hash algorithm.
+     *
+     * @deprecated Returned instance is shared and not thread-safe, use {@link #getPasswordHasher()} instead.
+     */
+    @Deprecated
     public MessageDigest getMessageDigest() throws NoSuchAlgorithmException {
         if (messageDigest == null) {
             messageDigest = MessageDigest.getInstance(passwordHashAlgorithm);
         }
         return messageDigest;
     }
+
+    private void ensureInitialized() throws Exception {
+        if (!initialized) {
+            init();
+        }
+    }
+
+    private ExecutorService createPasswordHashExecutor() {
+        ThreadFactory threadFactory;
+        try {
+            threadFactory = getManagedThreadFactory();
+        } catch (NamingException e) {
+            LOGGER.log(Level.WARNING, "Managed thread factory is not available, passwords are hashed on request threads", e);
+            return null;
+        }
+        int threads = passwordHashThreads > 0 ? passwordHashThreads : Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, passwordHashQueueCapacity)), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Starts request on the current thread, so components annotated with {@link PerRequest} are instantiated
+     * once and reused by all getter calls until endRequest(). It's called by {@link Bean} interceptor.
+     *
+     * @return Scope of the enclosing request on this thread, which must be passed to endRequest().
+     */
+    Object beginRequest() {
+        Map<Class, Object> previous = requestInstances.get();
+        requestInstances.set(new HashMap<Class, Object>());
+        return previous;
+    }
+
+    /**
+     * Ends request started by beginRequest(). Instances of {@link PerRequest} classes, which implement
+     * {@link Closeable}, are closed.
+     *
+     * @param previous Value returned by beginRequest().
+     */
+    @SuppressWarnings("unchecked")
+    void endRequest(Object previous) {
+        Map<Class, Object> instances = requestInstances.get();
+        if (previous == null) {
+            requestInstances.remove();
+        } else {
+            requestInstances.set((Map<Class, Object>) previous);
+        }
+
+        if (instances != null) {
+            for (Object instance : instances.values()) {
+                if (instance instanceof Closeable) {
+                    try {
+                        ((Closeable) instance).close();
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Can't close per-request instance of " + instance.getClass().getName(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets instance of {@link PerRequest} class for the current request. Outside of requests new instance
+     * is created on each call and is not closed by configuration.
+     */
+    private Object getPerRequest(Class instanceClass) throws Exception {
+        Map<Class, Object> instances = requestInstances.get();
+        if (instances == null) {
+            return newInstance(instanceClass);
+        }
+        Object result = instances.get(instanceClass);
+        if (result == null) {
+            result = newInstance(instanceClass);
+            instances.put(instanceClass, result);
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether previous configuration has file-backed token storage of the same class and file.
+     */
+    private boolean isSameStorageFile(Config previous) {
+        if (!(previous.securityTokenStorage instanceof MappedFileSecurityTokenStorage)
+                || securityTokenStorageClass != previous.securityTokenStorageClass || securityTokenStorageFile == null) {
+            return false;
+        }
+        File previousFile = ((MappedFileSecurityTokenStorage) previous.securityTokenStorage).getFile();
+        return previousFile != null && new File(securityTokenStorageFile).getAbsoluteFile().equals(previousFile.getAbsoluteFile());
+    }
+
+    private Object createShared(Class instanceClass) throws Exception {
+        return instanceClass.isAnnotationPresent(PerRequest.class) ? null : newInstance(instanceClass);
+    }
+
+    private Object newInstance(Class instanceClass) throws Exception {
+        Object instance = instanceClass.newInstance();
+        if (instance instanceof Configurable) {
+            ((Configurable) instance).configure(this);
+        }
+        return instance;
+    }
 }
@@ -3,37 +3,182 @@ package com.kirgor.enklib.ejb;
 import com.kirgor.enklib.common.ConfigUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
 import javax.ejb.Singleton;
 import javax.ejb.Startup;
 import java.io.File;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Startup singleton bean, which is responsible for loading configuration file from WEB-INF/enklib-ejb.xml and
  * storing service {@link Config} instance (each application server deployment, which uses Enklib EJB, has own instance).
+ * <p/>
+ * If configuration file is a regular file, it's watched and reloaded when it changes, so settings can be tuned
+ * without redeploy. New {@link Config} is validated and initialized aside, reusing components which settings
+ * haven't changed, and then replaces the current one atomically. Components of the replaced configuration,
+ * which are not reused, are released once requests, which have started with it, complete. Invalid configuration
+ * is rejected and the current one stays in use.
+ * <p/>
+ * File is watched on the thread of the default ManagedThreadFactory of the container (Java EE 7), since EJB
+ * can't start its own threads. If the container doesn't provide it, configuration is not reloaded automatically,
+ * but reload() still can be called.
  */
 @Singleton
 @Startup
 public class ConfigBean {
-    private Config config;
+    private static final Logger LOGGER = Logger.getLogger(ConfigBean.class.getName());
+
+    private final Object reloadLock = new Object();
+    private final CopyOnWriteArrayList<ConfigListener> listeners = new CopyOnWriteArrayList<ConfigListener>();
+    private final AtomicLong reloadCount = new AtomicLong();
+    private final AtomicLong reloadFailureCount = new AtomicLong();
+    private volatile Config config;
+    private volatile long lastReloadTime;
+    private URL configFileUrl;
+    private ConfigWatcher watcher;
 
     @PostConstruct
     public void postConstruct() {
         try {
             String classesUrl = ConfigBean.class.getResource("/").toString();
             String webInfUrl = classesUrl.substring(0, classesUrl.lastIndexOf("/classes"));
+            configFileUrl = new URL(webInfUrl + "/enklib-ejb.xml");
+            config = load();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Can't read configuration file enklib-ejb.xml", e);
+            return;
+        }
 
-            URL configFileUrl = new URL(webInfUrl + "/enklib-ejb.xml");
-            InputStream inputStream = configFileUrl.openStream();
-            config = ConfigUtils.loadFromXMLStream(Config.class, inputStream);
-            inputStream.close();
+        try {
+            config.init();
         } catch (Exception e) {
-            System.out.println("Can't read configuration file enklib-ejb.xml");
+            LOGGER.log(Level.SEVERE, "Can't initialize components from enklib-ejb.xml", e);
+        }
+
+        if (config.isConfigReloadEnabled() && "file".equals(configFileUrl.getProtocol())) {
+            try {
+                ThreadFactory threadFactory = Config.getManagedThreadFactory();
+                watcher = new ConfigWatcher(this, new File(configFileUrl.toURI()).toPath(), config.getConfigReloadDelay(),
+                        threadFactory);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Can't watch configuration file enklib-ejb.xml, it will not be reloaded", e);
+            }
         }
     }
 
+    @PreDestroy
+    public void preDestroy() {
+        if (watcher != null) {
+            watcher.stop();
+        }
+    }
+
+    @Lock(LockType.READ)
     public Config getConfig() {
         return config;
     }
+
+    /**
+     * Loads configuration file again and replaces current configuration, if new one is valid.
+     *
+     * @return True if configuration has been replaced, otherwise false.
+     */
+    @Lock(LockType.READ)
+    public boolean reload() {
+        synchronized (reloadLock) {
+            Config previous = config;
+            Config next = null;
+            try {
+                next = load();
+                next.init(previous);
+            } catch (Exception e) {
+                if (next != null && previous != null) {
+                    releaseQuietly(next, previous);
+                }
+                reloadFailureCount.incrementAndGet();
+                LOGGER.log(Level.WARNING, "Can't reload configuration file enklib-ejb.xml, previous configuration is kept", e);
+                for (ConfigListener listener : listeners) {
+                    listener.configReloadFailed(e);
+                }
+                return false;
+            }
+
+            config = next;
+            reloadCount.incrementAndGet();
+            lastReloadTime = System.currentTimeMillis();
+            if (previous != null) {
+                previous.retire(next);
+            }
+            LOGGER.info("Configuration file enklib-ejb.xml has been reloaded");
+            for (ConfigListener listener : listeners) {
+                listener.configReloaded(previous, next);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Adds listener of configuration reloads.
+     */
+    @Lock(LockType.READ)
+    public void addConfigListener(ConfigListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes listener of configuration reloads.
+     */
+    @Lock(LockType.READ)
+    public void removeConfigListener(ConfigListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets number of successful reloads.
+     */
+    @Lock(LockType.READ)
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * Gets number of rejected reloads.
+     */
+    @Lock(LockType.READ)
+    public long getReloadFailureCount() {
+        return reloadFailureCount.get();
+    }
+
+    /**
+     * Gets time of the last successful reload in milliseconds or 0 if there was none.
+     */
+    @Lock(LockType.READ)
+    public long getLastReloadTime() {
+        return lastReloadTime;
+    }
+
+    private Config load() throws Exception {
+        InputStream inputStream = configFileUrl.openStream();
+        try {
+            return ConfigUtils.loadFromXMLStream(Config.class, inputStream);
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static void releaseQuietly(Config released, Config current) {
+        try {
+            released.release(current);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Can't release components of replaced configuration", e);
+        }
+    }
 }
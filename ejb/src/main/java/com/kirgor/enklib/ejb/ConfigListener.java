@@ -0,0 +1,23 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Listener of configuration reloads, which can be registered in {@link ConfigBean}
+ * (e.g. for logging, metrics or updating application own components).
+ */
+public interface ConfigListener {
+    /**
+     * Called after new configuration has replaced the previous one.
+     *
+     * @param previous Previous configuration, which may be still used by in-flight requests.
+     * @param current  New configuration.
+     */
+    void configReloaded(Config previous, Config current);
+
+    /**
+     * Called if configuration file has changed, but it can't be loaded or it's not valid.
+     * Previous configuration stays in use.
+     *
+     * @param ex Reason of the failure.
+     */
+    void configReloadFailed(Exception ex);
+}
@@ -0,0 +1,104 @@
+package com.kirgor.enklib.ejb;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches configuration file on the thread of container managed thread factory and reloads {@link ConfigBean}
+ * when the file changes.
+ * <p/>
+ * Editors often write file in several steps, so reload is delayed until there are no more changes during the delay.
+ */
+class ConfigWatcher implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ConfigWatcher.class.getName());
+
+    private final ConfigBean configBean;
+    private final Path file;
+    private final long delay;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Creates watcher and starts watching.
+     *
+     * @param configBean    Bean, which is reloaded.
+     * @param file          Configuration file.
+     * @param delay         Delay of reload in milliseconds.
+     * @param threadFactory Managed thread factory of the container.
+     * @throws IOException If watching is not supported.
+     */
+    ConfigWatcher(ConfigBean configBean, Path file, long delay, ThreadFactory threadFactory) throws IOException {
+        this.configBean = configBean;
+        this.file = file.toAbsolutePath();
+        this.delay = delay;
+
+        // Directory is watched, because files replaced by editors get new identity
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        thread = threadFactory.newThread(this);
+        thread.setName("enklib-config-watcher");
+        thread.start();
+    }
+
+    /**
+     * Stops watching.
+     */
+    void stop() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Can't close watch service of configuration file.", e);
+        }
+        thread.interrupt();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                boolean changed = pollChanges(key);
+
+                // Collect subsequent changes until the file is quiet
+                while (true) {
+                    key = watchService.poll(delay, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    changed |= pollChanges(key);
+                }
+
+                if (changed) {
+                    configBean.reload();
+                }
+            }
+        } catch (InterruptedException ignored) {
+        } catch (ClosedWatchServiceException ignored) {
+        }
+    }
+
+    private boolean pollChanges(WatchKey key) {
+        boolean result = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            Object context = event.context();
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || (context instanceof Path && file.getFileName().equals(context))) {
+                result = true;
+            }
+        }
+        key.reset();
+        return result;
+    }
+}
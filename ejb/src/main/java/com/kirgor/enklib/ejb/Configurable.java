@@ -0,0 +1,15 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Defines component, which is created by {@link Config} from class name and needs configuration values.
+ * Method configure() is called right after the instance is created.
+ */
+public interface Configurable {
+    /**
+     * Applies configuration to the component.
+     *
+     * @param config Service configuration.
+     * @throws Exception
+     */
+    void configure(Config config) throws Exception;
+}
@@ -0,0 +1,210 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.sql.Cursor;
+import com.kirgor.enklib.sql.Session;
+
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.ext.MessageBodyWriter;
+import javax.ws.rs.ext.Providers;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes entities fetched from {@link Cursor} as JSON array right to the response output, one by one,
+ * so memory use doesn't depend on the size of the result set.
+ * <p/>
+ * Each entity is mapped by {@link ResponseEntityMapper} and serialized by JSON {@link MessageBodyWriter}
+ * of the JAX-RS runtime. Once bean method has returned, stream gets the {@link Session} of the cursor: it closes
+ * the cursor, ends read-only transaction, if there is one, and closes the session after the last entity has been written.
+ * <p/>
+ * JAX-RS runtime doesn't write the entity of HEAD requests, entities replaced by filters and exception mappers, and so on.
+ * Such streams are released by {@link StreamedResponseListener} when the request completes.
+ */
+class CursorStreamingOutput implements StreamingOutput {
+    private static final Annotation[] NO_ANNOTATIONS = new Annotation[0];
+    private static final byte[] NULL = "null".getBytes(Charset.forName("US-ASCII"));
+
+    /**
+     * Name of the request attribute, which holds the stream, which has got the session.
+     */
+    static final String REQUEST_ATTRIBUTE = CursorStreamingOutput.class.getName();
+
+    private final ResponseEntityMapper mapper;
+    private final Providers providers;
+    private final Cursor<?> cursor;
+    private Session session;
+    private boolean transactional;
+    private boolean writing;
+    private boolean finished;
+
+    /**
+     * Creates stream.
+     *
+     * @param mapper    Mapper of response entities or null.
+     * @param providers JAX-RS providers, which give {@link MessageBodyWriter} instances.
+     * @param cursor    Cursor of entities.
+     */
+    CursorStreamingOutput(ResponseEntityMapper mapper, Providers providers, Cursor<?> cursor) {
+        this.mapper = mapper;
+        this.providers = providers;
+        this.cursor = cursor;
+    }
+
+    /**
+     * Passes session of the cursor to the stream, after bean method has returned.
+     *
+     * @param session       Session of the cursor, which is closed after writing. May be null.
+     * @param transactional Specifies whether session has read-only transaction, which is rolled back after writing.
+     */
+    synchronized void handOver(Session session, boolean transactional) {
+        this.session = session;
+        this.transactional = transactional;
+    }
+
+    /**
+     * Closes the cursor and the session of the stream, which has not been written, when the request completes.
+     */
+    void release() {
+        synchronized (this) {
+            // Stream, which is being written, is finished by the writer
+            if (writing) {
+                return;
+            }
+        }
+        try {
+            finish();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Closes the cursor of the stream, which is not going to be written.
+     */
+    void discard() {
+        try {
+            cursor.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void write(OutputStream output) throws IOException {
+        synchronized (this) {
+            if (finished) {
+                throw new IOException("Stream has been already released.");
+            }
+            writing = true;
+        }
+        try {
+            // Writers may close the stream after each entity, which must not end the response
+            OutputStream entityOutput = new FilterOutputStream(output) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            };
+            HeaderMap headers = new HeaderMap();
+            Class lastClass = null;
+            MessageBodyWriter writer = null;
+
+            output.write('[');
+            boolean first = true;
+            while (cursor.ready()) {
+                Object entity = cursor.fetchSingle();
+                if (mapper != null) {
+                    entity = mapper.map(entity);
+                }
+                if (!first) {
+                    output.write(',');
+                }
+                first = false;
+
+                if (entity == null) {
+                    output.write(NULL);
+                    continue;
+                }
+                Class entityClass = entity.getClass();
+                if (entityClass != lastClass) {
+                    writer = providers.getMessageBodyWriter(entityClass, entityClass, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE);
+                    if (writer == null) {
+                        throw new IOException("There is no JSON writer for " + entityClass.getName() + ".");
+                    }
+                    lastClass = entityClass;
+                }
+                writer.writeTo(entity, entityClass, entityClass, NO_ANNOTATIONS, MediaType.APPLICATION_JSON_TYPE, headers, entityOutput);
+            }
+            output.write(']');
+        } catch (IOException ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        } finally {
+            finish();
+        }
+    }
+
+    private synchronized void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        // Statement must not outlive the request, failure to close it is ignored, since the session is closed anyway
+        discard();
+        if (session == null) {
+            return;
+        }
+        try {
+            // Transaction is read-only, so there is nothing to commit
+            if (transactional) {
+                session.rollback();
+            }
+        } catch (Exception ignored) {
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Headers passed to writers. Response is already committed, so headers set by them are ignored.
+     */
+    private static class HeaderMap extends HashMap<String, List<Object>> implements MultivaluedMap<String, Object> {
+        @Override
+        public void putSingle(String key, Object value) {
+            List<Object> values = new ArrayList<Object>();
+            values.add(value);
+            put(key, values);
+        }
+
+        @Override
+        public void add(String key, Object value) {
+            List<Object> values = get(key);
+            if (values == null) {
+                values = new ArrayList<Object>();
+                put(key, values);
+            }
+            values.add(value);
+        }
+
+        @Override
+        public Object getFirst(String key) {
+            List<Object> values = get(key);
+            return values != null && !values.isEmpty() ? values.get(0) : null;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.common.EncodingUtils;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Default implementation of {@link PasswordHasher}, which applies {@link MessageDigest} to the password
+ * multiple times. Salt is fed to the digest before the first iteration only.
+ * <p/>
+ * {@link MessageDigest} is not thread-safe, so each thread keeps own instance.
+ */
+public class DigestPasswordHasher implements PasswordHasher, Configurable {
+    private String algorithm = "SHA-256";
+    private int iterations = 1024;
+    private ThreadLocal<MessageDigest> messageDigest = createThreadLocal(algorithm);
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Takes algorithm and number of iterations from the configuration.
+     */
+    @Override
+    public void configure(Config config) throws NoSuchAlgorithmException {
+        MessageDigest.getInstance(config.getPasswordHashAlgorithm());
+        algorithm = config.getPasswordHashAlgorithm();
+        iterations = config.getPasswordHashIterations();
+        messageDigest = createThreadLocal(algorithm);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String hash(String password, String salt) throws Exception {
+        byte[] bytes = password.getBytes("UTF-8");
+        MessageDigest messageDigest = this.messageDigest.get();
+        messageDigest.reset();
+        messageDigest.update(EncodingUtils.hexToBytes(salt));
+        for (int i = 0; i < iterations; i++) {
+            bytes = messageDigest.digest(bytes);
+            messageDigest.reset();
+        }
+        return EncodingUtils.bytesToHex(bytes);
+    }
+
+    private static ThreadLocal<MessageDigest> createThreadLocal(final String algorithm) {
+        return new ThreadLocal<MessageDigest>() {
+            @Override
+            protected MessageDigest initialValue() {
+                try {
+                    return MessageDigest.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
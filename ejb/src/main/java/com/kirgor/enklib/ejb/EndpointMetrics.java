@@ -0,0 +1,148 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of invocations of single bean method: latency of each invocation phase, time of holding
+ * database connection, number of exceptions and authentication failures.
+ * <p/>
+ * Phases are beforeInvoke() (authentication, session creation, proxy injection), the bean method itself
+ * together with exception handlers and afterInvoke() (commit, session closing).
+ */
+public class EndpointMetrics implements EndpointMetricsMXBean {
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final String name;
+    private final LatencyHistogram beforeInvokeLatency = new LatencyHistogram();
+    private final LatencyHistogram invokeLatency = new LatencyHistogram();
+    private final LatencyHistogram afterInvokeLatency = new LatencyHistogram();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final LatencyHistogram connectionHoldTime = new LatencyHistogram();
+    private final AtomicLong exceptionCount = new AtomicLong();
+    private final AtomicLong authenticationFailureCount = new AtomicLong();
+
+    EndpointMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records invocation. Times are values of {@link System#nanoTime()}.
+     *
+     * @param start       Time when invocation has started.
+     * @param invokeStart Time when bean method has been called or 0 if beforeInvoke() has failed.
+     * @param afterStart  Time when afterInvoke() has been called.
+     * @param end         Time when invocation has finished.
+     */
+    void record(long start, long invokeStart, long afterStart, long end) {
+        if (invokeStart != 0) {
+            beforeInvokeLatency.record(invokeStart - start);
+            invokeLatency.record(afterStart - invokeStart);
+        } else {
+            beforeInvokeLatency.record(afterStart - start);
+        }
+        afterInvokeLatency.record(end - afterStart);
+        totalLatency.record(end - start);
+    }
+
+    void recordConnectionHoldTime(long nanos) {
+        connectionHoldTime.record(nanos);
+    }
+
+    void recordException() {
+        exceptionCount.incrementAndGet();
+    }
+
+    void recordAuthenticationFailure() {
+        authenticationFailureCount.incrementAndGet();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    public LatencyHistogram getBeforeInvokeLatency() {
+        return beforeInvokeLatency;
+    }
+
+    public LatencyHistogram getInvokeLatency() {
+        return invokeLatency;
+    }
+
+    public LatencyHistogram getAfterInvokeLatency() {
+        return afterInvokeLatency;
+    }
+
+    public LatencyHistogram getTotalLatency() {
+        return totalLatency;
+    }
+
+    public LatencyHistogram getConnectionHoldTime() {
+        return connectionHoldTime;
+    }
+
+    @Override
+    public long getInvocationCount() {
+        return totalLatency.getCount();
+    }
+
+    @Override
+    public long getExceptionCount() {
+        return exceptionCount.get();
+    }
+
+    @Override
+    public long getAuthenticationFailureCount() {
+        return authenticationFailureCount.get();
+    }
+
+    @Override
+    public double getMeanBeforeInvokeMillis() {
+        return beforeInvokeLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanInvokeMillis() {
+        return invokeLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanAfterInvokeMillis() {
+        return afterInvokeLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanTotalMillis() {
+        return totalLatency.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMedianTotalMillis() {
+        return totalLatency.getPercentile(50) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP99TotalMillis() {
+        return totalLatency.getPercentile(99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMaxTotalMillis() {
+        return totalLatency.getMax() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getConnectionCount() {
+        return connectionHoldTime.getCount();
+    }
+
+    @Override
+    public double getMeanConnectionHoldMillis() {
+        return connectionHoldTime.getMean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getP99ConnectionHoldMillis() {
+        return connectionHoldTime.getPercentile(99) / NANOS_PER_MILLI;
+    }
+}
@@ -0,0 +1,34 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * JMX view of {@link EndpointMetrics}. Durations are in milliseconds.
+ */
+public interface EndpointMetricsMXBean {
+    String getName();
+
+    long getInvocationCount();
+
+    long getExceptionCount();
+
+    long getAuthenticationFailureCount();
+
+    double getMeanBeforeInvokeMillis();
+
+    double getMeanInvokeMillis();
+
+    double getMeanAfterInvokeMillis();
+
+    double getMeanTotalMillis();
+
+    double getMedianTotalMillis();
+
+    double getP99TotalMillis();
+
+    double getMaxTotalMillis();
+
+    long getConnectionCount();
+
+    double getMeanConnectionHoldMillis();
+
+    double getP99ConnectionHoldMillis();
+}
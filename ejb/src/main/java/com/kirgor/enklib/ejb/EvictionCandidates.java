@@ -0,0 +1,57 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects entries of bounded map with scores and evicts entries with the lowest scores.
+ * <p/>
+ * It's used by throttling maps, where score tells how much the entry restricts its key, so flood of new keys
+ * evicts entries of other new keys rather than lockouts and drained buckets, which attacker would like to reset.
+ *
+ * @param <V> Type of map values.
+ */
+class EvictionCandidates<V> {
+    private final List<Candidate<V>> candidates = new ArrayList<Candidate<V>>();
+
+    /**
+     * Adds map entry with its score, which is taken at the time of the scan.
+     */
+    void add(Object key, V value, double score) {
+        candidates.add(new Candidate<V>(key, value, score));
+    }
+
+    /**
+     * Removes entries with the lowest scores from the map, unless they have been replaced meanwhile.
+     *
+     * @param map   Map, which entries have been added.
+     * @param count Number of entries to remove.
+     */
+    void evict(ConcurrentMap<Object, V> map, int count) {
+        Collections.sort(candidates, new Comparator<Candidate<V>>() {
+            @Override
+            public int compare(Candidate<V> c1, Candidate<V> c2) {
+                return Double.compare(c1.score, c2.score);
+            }
+        });
+        for (int i = 0; i < count && i < candidates.size(); i++) {
+            Candidate<V> candidate = candidates.get(i);
+            map.remove(candidate.key, candidate.value);
+        }
+    }
+
+    private static class Candidate<V> {
+        private final Object key;
+        private final V value;
+        private final double score;
+
+        private Candidate(Object key, V value, double score) {
+            this.key = key;
+            this.value = value;
+            this.score = score;
+        }
+    }
+}
@@ -3,7 +3,8 @@ package com.kirgor.enklib.ejb;
 import java.util.HashMap;
 
 /**
- * Default implementation of {@link SecurityTokenStorage}, which uses {@link HashMap} to store token/principal pairs.
+ * Simple implementation of {@link SecurityTokenStorage}, which uses synchronized {@link HashMap} to store token/principal pairs.
+ * Tokens never expire, so {@link ConcurrentSecurityTokenStorage} is preferred for services with many users.
  * Obviously, user sessions will not be persistent between service restarts.
  */
 public class HashMapSecurityTokenStorage implements SecurityTokenStorage {
@@ -13,7 +14,7 @@ public class HashMapSecurityTokenStorage implements SecurityTokenStorage {
      * {@inheritDoc}
      */
     @Override
-    public void add(String token, Object principal) {
+    public synchronized void add(String token, Object principal) {
         hashMap.put(token, principal);
     }
 
@@ -21,7 +22,7 @@ public class HashMapSecurityTokenStorage implements SecurityTokenStorage {
      * {@inheritDoc}
      */
     @Override
-    public Object get(String token) {
+    public synchronized Object get(String token) {
         return hashMap.get(token);
     }
 
@@ -29,7 +30,7 @@ public class HashMapSecurityTokenStorage implements SecurityTokenStorage {
      * {@inheritDoc}
      */
     @Override
-    public void remove(String token) {
+    public synchronized void remove(String token) {
         hashMap.remove(token);
     }
 }
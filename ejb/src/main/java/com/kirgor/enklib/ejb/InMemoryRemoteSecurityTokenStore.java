@@ -0,0 +1,73 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process implementation of {@link RemoteSecurityTokenStore}, which stands in for the real shared store
+ * in single-node deployments and tests. Several {@link ReplicatedSecurityTokenStorage} instances sharing
+ * single instance of this class behave like service nodes sharing the cluster store.
+ */
+public class InMemoryRemoteSecurityTokenStore implements RemoteSecurityTokenStore {
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final CopyOnWriteArrayList<InvalidationListener> listeners = new CopyOnWriteArrayList<InvalidationListener>();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(String token, Object principal, long timeToLive) {
+        long expiresAt = timeToLive > 0 ? System.currentTimeMillis() + timeToLive : Long.MAX_VALUE;
+        entries.put(token, new Entry(principal, expiresAt));
+        notifyListeners(token);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get(String token) {
+        Entry entry = entries.get(token);
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(token, entry);
+            return null;
+        }
+        return entry.principal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(String token) {
+        entries.remove(token);
+        notifyListeners(token);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addInvalidationListener(InvalidationListener listener) {
+        listeners.add(listener);
+    }
+
+    private void notifyListeners(String token) {
+        for (InvalidationListener listener : listeners) {
+            listener.invalidated(token);
+        }
+    }
+
+    private static class Entry {
+        private final Object principal;
+        private final long expiresAt;
+
+        private Entry(Object principal, long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.ejb.annotation.InjectStoredProcedureProxy;
+import com.kirgor.enklib.ejb.annotation.SkipSecurityCheck;
+import com.kirgor.enklib.ejb.annotation.Transactional;
+
+import javax.ws.rs.core.Response;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable metadata of bean method invocation, which is computed once per bean class and method,
+ * so {@link Bean.Interceptor} doesn't use reflection on each call.
+ */
+final class InvocationDescriptor {
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Bean.class, Object.class);
+    private static final ConcurrentHashMap<Class, ClassDescriptor> CLASS_DESCRIPTORS = new ConcurrentHashMap<Class, ClassDescriptor>();
+
+    private final Method method;
+    private final String endpointName;
+    private final boolean securityCheckRequired;
+    private final boolean responseReturned;
+    private final boolean transactional;
+    private final boolean readOnly;
+    private final InjectableField[] injectableFields;
+
+    private InvocationDescriptor(Method method, ClassDescriptor classDescriptor) {
+        this.method = method;
+        this.endpointName = method.getDeclaringClass().getName() + "." + method.getName();
+        this.securityCheckRequired = method.getAnnotation(SkipSecurityCheck.class) == null;
+        this.responseReturned = method.getReturnType().isAssignableFrom(Response.class);
+        this.injectableFields = classDescriptor.injectableFields;
+
+        // Method annotation overrides the class one
+        Transactional transactional = method.getAnnotation(Transactional.class);
+        if (transactional == null) {
+            transactional = classDescriptor.transactional;
+        }
+        this.transactional = transactional != null;
+        this.readOnly = transactional != null && transactional.readOnly();
+    }
+
+    /**
+     * Gets descriptor of the method invoked on the bean of specified class.
+     *
+     * @param beanClass Class of the bean instance.
+     * @param method    Invoked method.
+     * @throws IllegalAccessException If injectable field is not accessible.
+     */
+    static InvocationDescriptor get(Class beanClass, Method method) throws IllegalAccessException {
+        ClassDescriptor classDescriptor = getClassDescriptor(beanClass);
+        InvocationDescriptor result = classDescriptor.methods.get(method);
+        if (result == null) {
+            result = new InvocationDescriptor(method, classDescriptor);
+            InvocationDescriptor existing = classDescriptor.methods.putIfAbsent(method, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether bean class overrides {@link Bean#mapResponseEntity(Object)}, so response entities
+     * should be mapped. Otherwise mapping is identity and can be skipped.
+     *
+     * @param beanClass Class of the bean instance.
+     * @throws IllegalAccessException If injectable field is not accessible.
+     */
+    static boolean isResponseEntityMapped(Class beanClass) throws IllegalAccessException {
+        return getClassDescriptor(beanClass).responseEntityMapped;
+    }
+
+    private static ClassDescriptor getClassDescriptor(Class beanClass) throws IllegalAccessException {
+        ClassDescriptor result = CLASS_DESCRIPTORS.get(beanClass);
+        if (result == null) {
+            result = new ClassDescriptor(beanClass);
+            ClassDescriptor existing = CLASS_DESCRIPTORS.putIfAbsent(beanClass, result);
+            if (existing != null) {
+                result = existing;
+            }
+        }
+        return result;
+    }
+
+    Method getMethod() {
+        return method;
+    }
+
+    /**
+     * Gets fully qualified name of the method for metrics (e.g. "com.example.UserBean.getProfile").
+     */
+    String getEndpointName() {
+        return endpointName;
+    }
+
+    /**
+     * Indicates whether method requires authenticated user, so it's not annotated with {@link SkipSecurityCheck}.
+     */
+    boolean isSecurityCheckRequired() {
+        return securityCheckRequired;
+    }
+
+    /**
+     * Indicates whether method returns {@link Response}, so API exceptions are converted to responses.
+     */
+    boolean isResponseReturned() {
+        return responseReturned;
+    }
+
+    /**
+     * Indicates whether method runs in single transaction, so it or its class is annotated with {@link Transactional}.
+     */
+    boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * Indicates whether method runs in read-only transaction.
+     */
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Gets fields of the bean annotated with {@link InjectStoredProcedureProxy}.
+     */
+    InjectableField[] getInjectableFields() {
+        return injectableFields;
+    }
+
+    /**
+     * Field of the bean, which stored procedure proxy is injected to.
+     */
+    static final class InjectableField {
+        private final Class<?> type;
+        private final MethodHandle setter;
+
+        private InjectableField(Field field) throws IllegalAccessException {
+            field.setAccessible(true);
+            this.type = field.getType();
+            this.setter = MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+        }
+
+        Class<?> getType() {
+            return type;
+        }
+
+        void set(Bean bean, Object value) throws Exception {
+            try {
+                setter.invokeExact(bean, value);
+            } catch (Exception ex) {
+                throw ex;
+            } catch (Error ex) {
+                throw ex;
+            } catch (Throwable ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    }
+
+    private static final class ClassDescriptor {
+        private final InjectableField[] injectableFields;
+        private final Transactional transactional;
+        private final boolean responseEntityMapped;
+        private final ConcurrentHashMap<Method, InvocationDescriptor> methods = new ConcurrentHashMap<Method, InvocationDescriptor>();
+
+        private ClassDescriptor(Class beanClass) throws IllegalAccessException {
+            ArrayList<InjectableField> fields = new ArrayList<InjectableField>();
+            for (Field field : beanClass.getDeclaredFields()) {
+                if (field.getAnnotation(InjectStoredProcedureProxy.class) != null) {
+                    fields.add(new InjectableField(field));
+                }
+            }
+            injectableFields = fields.toArray(new InjectableField[fields.size()]);
+            transactional = (Transactional) beanClass.getAnnotation(Transactional.class);
+
+            boolean mapped = false;
+            for (Class c = beanClass; c != null && c != Bean.class && !mapped; c = c.getSuperclass()) {
+                try {
+                    c.getDeclaredMethod("mapResponseEntity", Object.class);
+                    mapped = true;
+                } catch (NoSuchMethodException ignored) {
+                }
+            }
+            responseEntityMapped = mapped;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.kirgor.enklib.ejb;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of {@link EndpointMetrics} of bean methods, which are recorded by {@link Bean.Interceptor}.
+ * <p/>
+ * Metrics of each method are registered in the platform MBean server as
+ * "com.kirgor.enklib:type=InvocationMetrics,application=...,endpoint=..." and can be reported periodically
+ * to {@link MetricsReporter}. When configuration is reloaded, new registry is created before the retiring one
+ * is closed, so metrics of the newer registry replace the registered ones and the retiring registry
+ * unregisters only its own metrics.
+ */
+public class InvocationMetrics implements Closeable {
+    private static final Logger LOGGER = Logger.getLogger(InvocationMetrics.class.getName());
+    private static final AtomicLong GENERATION = new AtomicLong();
+    private static final Map<ObjectName, InvocationMetrics> REGISTRY_OWNERS = new HashMap<ObjectName, InvocationMetrics>();
+
+    private final String application;
+    private final ConcurrentHashMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+    private final boolean jmxEnabled;
+    private final long generation = GENERATION.incrementAndGet();
+    private ScheduledExecutorService reportExecutor;
+
+    /**
+     * Creates registry.
+     *
+     * @param application Name of application, which distinguishes metrics of several deployments in JMX.
+     * @param jmxEnabled  Specifies whether metrics are registered in the platform MBean server.
+     */
+    public InvocationMetrics(String application, boolean jmxEnabled) {
+        this.application = application;
+        this.jmxEnabled = jmxEnabled;
+    }
+
+    /**
+     * Gets metrics of the endpoint, creating them on the first call.
+     *
+     * @param name Endpoint name (e.g. "com.example.UserBean.getProfile").
+     */
+    public EndpointMetrics getEndpoint(String name) {
+        EndpointMetrics result = endpoints.get(name);
+        if (result == null) {
+            result = new EndpointMetrics(name);
+            EndpointMetrics existing = endpoints.putIfAbsent(name, result);
+            if (existing != null) {
+                return existing;
+            }
+            if (jmxEnabled) {
+                register(result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets metrics of all endpoints, which have been invoked.
+     */
+    public Collection<EndpointMetrics> getEndpoints() {
+        return Collections.unmodifiableCollection(new ArrayList<EndpointMetrics>(endpoints.values()));
+    }
+
+    /**
+     * Starts reporting metrics on thread of the specified factory.
+     *
+     * @param reporter      Reporter.
+     * @param interval      Interval of reporting in seconds.
+     * @param threadFactory Factory of the reporting thread, usually managed thread factory of the container.
+     */
+    public synchronized void startReporting(final MetricsReporter reporter, long interval, ThreadFactory threadFactory) {
+        if (reportExecutor != null) {
+            throw new IllegalStateException("Metrics reporting has been already started.");
+        }
+        reportExecutor = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        reportExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    reporter.report(getEndpoints());
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Can't report invocation metrics", e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops reporting and unregisters metrics from the MBean server.
+     */
+    @Override
+    public synchronized void close() {
+        if (reportExecutor != null) {
+            reportExecutor.shutdown();
+            reportExecutor = null;
+        }
+        if (jmxEnabled) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (String name : endpoints.keySet()) {
+                try {
+                    ObjectName objectName = objectName(name);
+                    synchronized (REGISTRY_OWNERS) {
+                        // Metrics could have been replaced by the newer registry
+                        if (REGISTRY_OWNERS.get(objectName) != this) {
+                            continue;
+                        }
+                        REGISTRY_OWNERS.remove(objectName);
+                        if (server.isRegistered(objectName)) {
+                            server.unregisterMBean(objectName);
+                        }
+                    }
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Can't unregister metrics of " + name, e);
+                }
+            }
+        }
+    }
+
+    private void register(EndpointMetrics metrics) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectName(metrics.getName());
+            synchronized (REGISTRY_OWNERS) {
+                InvocationMetrics owner = REGISTRY_OWNERS.get(objectName);
+                if (owner != null && owner.generation > generation) {
+                    // Retiring registry doesn't take the name back from the newer one
+                    return;
+                }
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+                server.registerMBean(metrics, objectName);
+                REGISTRY_OWNERS.put(objectName, this);
+            }
+        } catch (Exception e) {
+            // Metrics are still recorded and reported, they are just not visible in JMX
+            LOGGER.log(Level.WARNING, "Can't register metrics of " + metrics.getName() + " in JMX", e);
+        }
+    }
+
+    private ObjectName objectName(String endpoint) throws Exception {
+        return new ObjectName("com.kirgor.enklib:type=InvocationMetrics,application="
+                + ObjectName.quote(application) + ",endpoint=" + ObjectName.quote(endpoint));
+    }
+}
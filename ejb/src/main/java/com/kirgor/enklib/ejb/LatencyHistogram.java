@@ -0,0 +1,86 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in nanoseconds with power of two buckets, so recording is a few atomic
+ * increments and memory is fixed. Percentiles are approximate: they are upper bounds of buckets.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records duration.
+     *
+     * @param nanos Duration in nanoseconds. Negative values are recorded as zero.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        // Bucket i holds durations from 2^(i-1) to 2^i - 1 nanoseconds, bucket 0 holds zeros
+        buckets.incrementAndGet(BUCKET_COUNT - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long current;
+        do {
+            current = max.get();
+        } while (nanos > current && !max.compareAndSet(current, nanos));
+    }
+
+    /**
+     * Gets number of recorded durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Gets mean duration in nanoseconds or 0 if nothing has been recorded.
+     */
+    public double getMean() {
+        long n = count.get();
+        return n > 0 ? (double) sum.get() / n : 0;
+    }
+
+    /**
+     * Gets maximum duration in nanoseconds.
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Gets approximate percentile of durations in nanoseconds.
+     *
+     * @param percentile Percentile from 0 to 100.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= Math.max(rank, 1)) {
+                long upperBound = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(upperBound, max.get());
+            }
+        }
+        return max.get();
+    }
+}
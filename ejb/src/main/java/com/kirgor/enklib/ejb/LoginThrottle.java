@@ -0,0 +1,196 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throttles authentication attempts before any password hashing or user lookup is done,
+ * so brute-force attacks can't take CPU of the service.
+ * <p/>
+ * Attempts are rate limited by principal and by client address with {@link RateLimiter} token buckets.
+ * Besides, failed attempts of each principal are counted with exponential decay, and principal is locked out
+ * while its count is above the threshold. Count halves each half-life, so lockout ends by itself
+ * and occasional mistakes of the real user are forgotten. Number of counted principals is bounded the same way
+ * as number of rate limiter buckets: forgotten counts and then the lowest ones are evicted in a batch,
+ * so flood of new principals can't reset lockout of the principal, which is under attack.
+ */
+public class LoginThrottle {
+    private final RateLimiter principalLimiter;
+    private final RateLimiter addressLimiter;
+    private final int lockoutThreshold;
+    private final double decayPerNano;
+    private final int maxKeys;
+    private final Object evictionLock = new Object();
+    private final ConcurrentHashMap<Object, FailureCounter> failures = new ConcurrentHashMap<Object, FailureCounter>();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * Creates throttle.
+     *
+     * @param principalLimiter Rate limiter of attempts by principal or null.
+     * @param addressLimiter   Rate limiter of attempts by client address or null.
+     * @param lockoutThreshold Number of recent failed attempts, after which principal is locked out. 0 turns lockout off.
+     * @param lockoutHalfLife  Time in milliseconds, during which count of failed attempts halves.
+     * @param maxKeys          Maximum number of principals, which have failure counts at once.
+     */
+    public LoginThrottle(RateLimiter principalLimiter, RateLimiter addressLimiter,
+                         int lockoutThreshold, long lockoutHalfLife, int maxKeys) {
+        if (lockoutThreshold > 0 && lockoutHalfLife <= 0) {
+            throw new IllegalArgumentException("Lockout half-life must be positive.");
+        }
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Maximum number of keys must be positive.");
+        }
+        this.principalLimiter = principalLimiter;
+        this.addressLimiter = addressLimiter;
+        this.lockoutThreshold = lockoutThreshold;
+        this.decayPerNano = lockoutThreshold > 0 ? Math.log(2) / (lockoutHalfLife * 1e6) : 0;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Checks whether authentication attempt is allowed and takes permits of rate limiters.
+     *
+     * @param principal Principal, which tries to authenticate. May be null.
+     * @param address   Client address. May be null.
+     * @return True if attempt is allowed, otherwise it should be rejected.
+     */
+    public boolean tryAcquire(Object principal, String address) {
+        // Lockout is checked first, so locked out attempts don't spend permits of the address
+        boolean result = principal == null || !isLockedOut(principal);
+        boolean addressAcquired = false;
+        if (result && addressLimiter != null && address != null) {
+            result = addressAcquired = addressLimiter.tryAcquire(address);
+        }
+        if (result && principalLimiter != null && principal != null) {
+            result = principalLimiter.tryAcquire(principal);
+            if (!result && addressAcquired) {
+                // Rejected attempt doesn't count against the address
+                addressLimiter.release(address);
+            }
+        }
+        if (!result) {
+            rejectedCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Records failed attempt (wrong password or unknown principal).
+     */
+    public void recordFailure(Object principal) {
+        if (lockoutThreshold <= 0 || principal == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        FailureCounter counter = failures.get(principal);
+        if (counter == null) {
+            if (failures.size() >= maxKeys) {
+                evict(now);
+            }
+            FailureCounter newCounter = new FailureCounter(now);
+            counter = failures.putIfAbsent(principal, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.increment(now);
+    }
+
+    /**
+     * Records successful attempt, which clears failure count of the principal.
+     */
+    public void recordSuccess(Object principal) {
+        if (principal != null) {
+            failures.remove(principal);
+        }
+    }
+
+    /**
+     * Indicates whether principal is locked out because of failed attempts.
+     */
+    public boolean isLockedOut(Object principal) {
+        if (lockoutThreshold <= 0) {
+            return false;
+        }
+        FailureCounter counter = failures.get(principal);
+        // Count decays a bit between attempts, so threshold number of quick failures gives slightly less than threshold
+        return counter != null && counter.get(System.nanoTime()) > lockoutThreshold - 1;
+    }
+
+    /**
+     * Gets number of rejected attempts.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Gets number of principals, which have failure counts at the moment.
+     */
+    public int getKeyCount() {
+        return failures.size();
+    }
+
+    /**
+     * Gets rate limiter of attempts by principal or null.
+     */
+    public RateLimiter getPrincipalLimiter() {
+        return principalLimiter;
+    }
+
+    /**
+     * Gets rate limiter of attempts by client address or null.
+     */
+    public RateLimiter getAddressLimiter() {
+        return addressLimiter;
+    }
+
+    private void evict(long now) {
+        synchronized (evictionLock) {
+            if (failures.size() < maxKeys) {
+                return;
+            }
+            EvictionCandidates<FailureCounter> candidates = new EvictionCandidates<FailureCounter>();
+            for (Map.Entry<Object, FailureCounter> entry : failures.entrySet()) {
+                double count = entry.getValue().get(now);
+                if (count < 1) {
+                    failures.remove(entry.getKey(), entry.getValue());
+                } else {
+                    candidates.add(entry.getKey(), entry.getValue(), count);
+                }
+            }
+            int count = failures.size() - maxKeys + maxKeys / 16 + 1;
+            if (count > 0) {
+                candidates.evict(failures, count);
+            }
+        }
+    }
+
+    private class FailureCounter {
+        private double value;
+        private long updateTime;
+
+        private FailureCounter(long updateTime) {
+            this.updateTime = updateTime;
+        }
+
+        private synchronized void increment(long now) {
+            decay(now);
+            value += 1;
+        }
+
+        private synchronized double get(long now) {
+            decay(now);
+            return value;
+        }
+
+        private void decay(long now) {
+            if (now > updateTime) {
+                value *= Math.exp(-(now - updateTime) * decayPerNano);
+                updateTime = now;
+            }
+        }
+    }
+}
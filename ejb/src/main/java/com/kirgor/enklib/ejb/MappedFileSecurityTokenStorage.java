@@ -0,0 +1,714 @@
+package com.kirgor.enklib.ejb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Implementation of {@link SecurityTokenStorage}, which keeps token/principal pairs in memory-mapped file,
+ * so user sessions survive service restarts on the same node and don't load the heap.
+ * <p/>
+ * File is an open-addressing hash table of fixed-size slots. Slot state byte is written after the rest of the slot
+ * and slots with invalid checksum are dropped on open, so the table stays consistent if the process crashes
+ * in the middle of write. When table becomes too dense, it's compacted into a new file, which atomically replaces
+ * the old one, and grows if needed.
+ * <p/>
+ * Principals must be strings, integer numbers or serializable objects, which fit the slot along with the token.
+ * <p/>
+ * File must be set explicitly and should be placed in the directory private to the application. Contents of the file
+ * are trusted, so the storage refuses file, which is a symbolic link, is owned by another user or can be written
+ * by others. New files are created readable and writable only by the owner where file system supports it.
+ */
+public class MappedFileSecurityTokenStorage implements SecurityTokenStorage, Configurable, Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x454e4b54;
+    private static final int VERSION = 1;
+    private static final int DEFAULT_SLOT_SIZE = 256;
+    private static final int DEFAULT_CAPACITY = 65536;
+    private static final long MIN_SWEEP_INTERVAL = 1000;
+    private static final long MIN_PROLONG_INTERVAL = 1000;
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_USED = 1;
+    private static final byte STATE_REMOVED = 2;
+
+    // Slot layout
+    private static final int TOKEN_LENGTH_OFFSET = 2;
+    private static final int PRINCIPAL_LENGTH_OFFSET = 4;
+    private static final int EXPIRES_AT_OFFSET = 8;
+    private static final int CRC_OFFSET = 16;
+    private static final int DATA_OFFSET = 20;
+
+    private static UserPrincipal processOwner;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private File file;
+    private int initialCapacity = DEFAULT_CAPACITY;
+    private int initialSlotSize = DEFAULT_SLOT_SIZE;
+    private volatile long timeToLive = 3600 * 1000L;
+    private volatile boolean slidingExpiration = true;
+    private boolean syncOnWrite;
+
+    private volatile MappedByteBuffer buffer;
+    private boolean closed;
+    private RandomAccessFile randomAccessFile;
+    private int capacity;
+    private int slotSize;
+    private int liveCount;
+    private int occupiedCount;
+    private long nextSweepTime;
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Takes file, initial capacity, time to live and sliding expiration from the configuration.
+     */
+    @Override
+    public void configure(Config config) {
+        if (config.getSecurityTokenStorageFile() != null) {
+            setFile(new File(config.getSecurityTokenStorageFile()));
+        }
+        setInitialCapacity(config.getSecurityTokenStorageCapacity());
+        setTimeToLive(config.getSecurityTokenTimeToLive() * 1000L);
+        setSlidingExpiration(config.isSecurityTokenSlidingExpiration());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(String token, Object principal) {
+        byte[] tokenBytes = token.getBytes(UTF8);
+        byte[] principalBytes;
+        try {
+            principalBytes = PrincipalEncoding.encode(principal);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            if (DATA_OFFSET + tokenBytes.length + principalBytes.length > slotSize) {
+                throw new IllegalArgumentException("Token and principal don't fit the slot of " + slotSize + " bytes.");
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextSweepTime) {
+                sweep(now);
+            }
+
+            int slot = findSlot(buffer, capacity, tokenBytes);
+            if (slot >= 0) {
+                // Hide the slot while it's rewritten
+                buffer.put(slotOffset(slot), STATE_REMOVED);
+                liveCount--;
+            } else {
+                if ((occupiedCount + 1) * 4L > capacity * 3L) {
+                    compact(now);
+                }
+                slot = findFreeSlot(tokenBytes);
+                if (buffer.get(slotOffset(slot)) == STATE_EMPTY) {
+                    occupiedCount++;
+                }
+            }
+
+            writeSlot(buffer, slotOffset(slot), tokenBytes, principalBytes, expirationTime(now));
+            liveCount++;
+            if (syncOnWrite) {
+                buffer.force();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write security token storage file " + file + ".", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get(String token) {
+        if (token == null) {
+            return null;
+        }
+        byte[] tokenBytes = token.getBytes(UTF8);
+        long now = System.currentTimeMillis();
+        Object result;
+        boolean isProlonged;
+        lockOpenForRead();
+        try {
+            int slot = findSlot(buffer, capacity, tokenBytes);
+            if (slot < 0) {
+                return null;
+            }
+
+            int offset = slotOffset(slot);
+            long expiresAt = buffer.getLong(offset + EXPIRES_AT_OFFSET);
+            if (now >= expiresAt) {
+                return null;
+            }
+            // Frequent lookups of the same token don't need write lock each time
+            isProlonged = slidingExpiration && expirationTime(now) - expiresAt >= MIN_PROLONG_INTERVAL;
+            result = readPrincipal(offset);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (isProlonged) {
+            prolong(tokenBytes, now);
+        }
+        return result;
+    }
+
+    private Object readPrincipal(int offset) {
+        try {
+            int tokenLength = buffer.getShort(offset + TOKEN_LENGTH_OFFSET);
+            int principalLength = buffer.getShort(offset + PRINCIPAL_LENGTH_OFFSET);
+            byte[] principalBytes = new byte[principalLength];
+            int principalOffset = offset + DATA_OFFSET + tokenLength;
+            for (int i = 0; i < principalLength; i++) {
+                principalBytes[i] = buffer.get(principalOffset + i);
+            }
+            return PrincipalEncoding.decode(principalBytes, 0, principalLength);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't decode principal from security token storage file " + file + ".", e);
+        }
+    }
+
+    private void prolong(byte[] tokenBytes, long now) {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            // Slot could be removed or moved by compaction since the read lock was released
+            int slot = findSlot(buffer, capacity, tokenBytes);
+            if (slot >= 0) {
+                int offset = slotOffset(slot);
+                if (now < buffer.getLong(offset + EXPIRES_AT_OFFSET)) {
+                    // Expiration time isn't covered by checksum, so it's safe to update it in place
+                    buffer.putLong(offset + EXPIRES_AT_OFFSET, expirationTime(now));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open security token storage file " + file + ".", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(String token) {
+        if (token == null) {
+            return;
+        }
+        byte[] tokenBytes = token.getBytes(UTF8);
+
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            int slot = findSlot(buffer, capacity, tokenBytes);
+            if (slot >= 0) {
+                buffer.put(slotOffset(slot), STATE_REMOVED);
+                liveCount--;
+                if (syncOnWrite) {
+                    buffer.force();
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't open security token storage file " + file + ".", e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes changes to the disk and closes the file. Storage can't be used afterwards, so it never reopens
+     * the file next to other instance, which has taken it over.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            if (buffer != null) {
+                buffer.force();
+                buffer = null;
+                randomAccessFile.close();
+                randomAccessFile = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets storage file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Sets storage file, which should be in the directory private to the application.
+     * It must be called before the storage is used.
+     */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Sets number of slots of the new storage file. Existing file keeps its own capacity until it's compacted.
+     * It must be called before the storage is used.
+     */
+    public void setInitialCapacity(int initialCapacity) {
+        if (initialCapacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive.");
+        }
+        this.initialCapacity = initialCapacity;
+    }
+
+    /**
+     * Sets slot size of the new storage file in bytes. Existing file keeps its own slot size.
+     * It must be called before the storage is used.
+     */
+    public void setInitialSlotSize(int initialSlotSize) {
+        if (initialSlotSize <= DATA_OFFSET || initialSlotSize > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Slot size must be between " + (DATA_OFFSET + 1) + " and " + Short.MAX_VALUE + ".");
+        }
+        this.initialSlotSize = initialSlotSize;
+    }
+
+    /**
+     * Gets time to live of tokens in milliseconds. Non-positive value means, that tokens never expire.
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Sets time to live of tokens in milliseconds. Non-positive value means, that tokens never expire.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Gets if token expiration time is prolonged on each successful lookup.
+     */
+    public boolean isSlidingExpiration() {
+        return slidingExpiration;
+    }
+
+    /**
+     * Sets if token expiration time is prolonged on each successful lookup.
+     */
+    public void setSlidingExpiration(boolean slidingExpiration) {
+        this.slidingExpiration = slidingExpiration;
+    }
+
+    /**
+     * Gets if each change is flushed to the disk immediately. Otherwise changes survive process crash,
+     * but not operating system crash.
+     */
+    public boolean isSyncOnWrite() {
+        return syncOnWrite;
+    }
+
+    /**
+     * Sets if each change is flushed to the disk immediately.
+     */
+    public void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+    /**
+     * Gets number of stored tokens, which can include expired ones not swept yet.
+     */
+    public int getActiveCount() {
+        lock.readLock().lock();
+        try {
+            return liveCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets current number of slots in the storage file.
+     */
+    public int getCapacity() {
+        lockOpenForRead();
+        try {
+            return capacity;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private long expirationTime(long now) {
+        long ttl = timeToLive;
+        return ttl > 0 ? now + ttl : Long.MAX_VALUE;
+    }
+
+    private int slotOffset(int slot) {
+        // Header takes the first slot, so slots are aligned to the slot size
+        return (slot + 1) * slotSize;
+    }
+
+    private static int hash(byte[] tokenBytes) {
+        int h = 1;
+        for (byte b : tokenBytes) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private int findSlot(MappedByteBuffer buffer, int capacity, byte[] tokenBytes) {
+        int start = (hash(tokenBytes) & 0x7fffffff) % capacity;
+        for (int i = 0; i < capacity; i++) {
+            int slot = (start + i) % capacity;
+            int offset = slotOffset(slot);
+            byte state = buffer.get(offset);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_USED && tokenEquals(buffer, offset, tokenBytes)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int findFreeSlot(byte[] tokenBytes) {
+        int start = (hash(tokenBytes) & 0x7fffffff) % capacity;
+        for (int i = 0; i < capacity; i++) {
+            int slot = (start + i) % capacity;
+            if (buffer.get(slotOffset(slot)) != STATE_USED) {
+                return slot;
+            }
+        }
+        throw new IllegalStateException("Security token storage is full.");
+    }
+
+    private static boolean tokenEquals(MappedByteBuffer buffer, int offset, byte[] tokenBytes) {
+        if (buffer.getShort(offset + TOKEN_LENGTH_OFFSET) != tokenBytes.length) {
+            return false;
+        }
+        int tokenOffset = offset + DATA_OFFSET;
+        for (int i = 0; i < tokenBytes.length; i++) {
+            if (buffer.get(tokenOffset + i) != tokenBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeSlot(MappedByteBuffer buffer, int offset, byte[] tokenBytes, byte[] principalBytes, long expiresAt) {
+        buffer.putShort(offset + TOKEN_LENGTH_OFFSET, (short) tokenBytes.length);
+        buffer.putShort(offset + PRINCIPAL_LENGTH_OFFSET, (short) principalBytes.length);
+        buffer.putLong(offset + EXPIRES_AT_OFFSET, expiresAt);
+        buffer.putInt(offset + CRC_OFFSET, checksum(tokenBytes, principalBytes));
+        int dataOffset = offset + DATA_OFFSET;
+        for (byte b : tokenBytes) {
+            buffer.put(dataOffset++, b);
+        }
+        for (byte b : principalBytes) {
+            buffer.put(dataOffset++, b);
+        }
+
+        // State goes last, so partially written slot is never visible as used
+        buffer.put(offset, STATE_USED);
+    }
+
+    private static int checksum(byte[] tokenBytes, byte[] principalBytes) {
+        CRC32 crc = new CRC32();
+        crc.update(tokenBytes.length >>> 8);
+        crc.update(tokenBytes.length);
+        crc.update(tokenBytes);
+        crc.update(principalBytes);
+        return (int) crc.getValue();
+    }
+
+    private byte[] readSlotBytes(int offset, int from, int length) {
+        byte[] result = new byte[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = buffer.get(offset + from + i);
+        }
+        return result;
+    }
+
+    private boolean isValidSlot(int offset) {
+        int tokenLength = buffer.getShort(offset + TOKEN_LENGTH_OFFSET);
+        int principalLength = buffer.getShort(offset + PRINCIPAL_LENGTH_OFFSET);
+        if (tokenLength < 0 || principalLength < 0 || DATA_OFFSET + tokenLength + principalLength > slotSize) {
+            return false;
+        }
+        byte[] tokenBytes = readSlotBytes(offset, DATA_OFFSET, tokenLength);
+        byte[] principalBytes = readSlotBytes(offset, DATA_OFFSET + tokenLength, principalLength);
+        return buffer.getInt(offset + CRC_OFFSET) == checksum(tokenBytes, principalBytes);
+    }
+
+    private void sweep(long now) {
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            if (buffer.get(offset) == STATE_USED && now >= buffer.getLong(offset + EXPIRES_AT_OFFSET)) {
+                buffer.put(offset, STATE_REMOVED);
+                liveCount--;
+            }
+        }
+        nextSweepTime = now + Math.max(timeToLive / 2, MIN_SWEEP_INTERVAL);
+    }
+
+    private void lockOpenForRead() {
+        lock.readLock().lock();
+        while (buffer == null) {
+            // File is opened under write lock, it can be closed concurrently again before read lock is taken
+            lock.readLock().unlock();
+            openIfNeeded();
+            lock.readLock().lock();
+        }
+    }
+
+    private void openIfNeeded() {
+        if (buffer == null) {
+            lock.writeLock().lock();
+            try {
+                ensureOpen();
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't open security token storage file " + file + ".", e);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("Security token storage is closed.");
+        }
+        if (file == null) {
+            throw new IllegalStateException("Security token storage file is not set.");
+        }
+        createOwnerOnly(file.toPath());
+        checkTrusted(file.toPath());
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() == 0) {
+                writeHeader(raf, initialCapacity, initialSlotSize);
+            }
+            if (raf.length() < 16 || raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                throw new IOException("File " + file + " is not a security token storage.");
+            }
+            capacity = raf.readInt();
+            slotSize = raf.readInt();
+            if (capacity <= 0 || slotSize <= DATA_OFFSET || raf.length() != (long) (capacity + 1) * slotSize) {
+                throw new IOException("Security token storage file " + file + " is corrupted.");
+            }
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) (capacity + 1) * slotSize);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        randomAccessFile = raf;
+
+        // Drop slots, which were partially written when the process has crashed
+        liveCount = 0;
+        occupiedCount = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            byte state = buffer.get(offset);
+            if (state == STATE_USED && !isValidSlot(offset)) {
+                buffer.put(offset, STATE_REMOVED);
+                state = STATE_REMOVED;
+            }
+            if (state != STATE_EMPTY) {
+                occupiedCount++;
+            }
+            if (state == STATE_USED) {
+                liveCount++;
+            }
+        }
+        nextSweepTime = 0;
+    }
+
+    /**
+     * Creates empty file, which only the owner can read and write, if file doesn't exist.
+     */
+    private static void createOwnerOnly(Path path) throws IOException {
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        try {
+            if (Files.getFileAttributeView(path.toAbsolutePath().getParent(), PosixFileAttributeView.class) != null) {
+                Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } else {
+                Files.createFile(path);
+            }
+        } catch (FileAlreadyExistsException ignored) {
+            // Created concurrently, it's checked by the caller anyway
+        }
+    }
+
+    /**
+     * Checks that file can't be replaced or modified by other users, because its contents are deserialized.
+     */
+    private static void checkTrusted(Path path) throws IOException {
+        if (Files.isSymbolicLink(path) || !Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("Security token storage file " + path + " is not a regular file.");
+        }
+        UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+        if (!owner.equals(getProcessOwner())) {
+            throw new IOException("Security token storage file " + path + " is owned by " + owner.getName() + ".");
+        }
+        PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class,
+                LinkOption.NOFOLLOW_LINKS);
+        if (view != null) {
+            PosixFileAttributes attributes = view.readAttributes();
+            if (attributes.permissions().contains(PosixFilePermission.GROUP_WRITE)
+                    || attributes.permissions().contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException("Security token storage file " + path + " can be written by other users.");
+            }
+        }
+    }
+
+    /**
+     * Gets owner of files created by this process, which is more reliable than user name property.
+     */
+    private static synchronized UserPrincipal getProcessOwner() throws IOException {
+        if (processOwner == null) {
+            Path probe = Files.createTempFile("enklib", ".owner");
+            try {
+                processOwner = Files.getOwner(probe);
+            } finally {
+                Files.delete(probe);
+            }
+        }
+        return processOwner;
+    }
+
+    private static void writeHeader(RandomAccessFile raf, int capacity, int slotSize) throws IOException {
+        raf.setLength((long) (capacity + 1) * slotSize);
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(capacity);
+        raf.writeInt(slotSize);
+        raf.seek(0);
+    }
+
+    /**
+     * Rewrites live tokens into the new file without removed slots and replaces the current file with it.
+     */
+    private void compact(long now) throws IOException {
+        List<byte[]> slots = new ArrayList<byte[]>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            if (buffer.get(offset) == STATE_USED && now < buffer.getLong(offset + EXPIRES_AT_OFFSET)) {
+                slots.add(readSlotBytes(offset, 0, slotSize));
+            }
+        }
+
+        // Keep the table at most half full after compaction
+        int newCapacity = capacity;
+        while (slots.size() * 2L > newCapacity && newCapacity <= Integer.MAX_VALUE / 2) {
+            newCapacity *= 2;
+        }
+        if (slots.size() * 4L > newCapacity * 3L) {
+            evictNearestExpiration(slots, newCapacity / 2);
+        }
+
+        File compactFile = new File(file.getPath() + ".compact");
+        // Leftover of the crashed compaction is not trusted, it's recreated
+        Files.deleteIfExists(compactFile.toPath());
+        createOwnerOnly(compactFile.toPath());
+        RandomAccessFile compactRaf = new RandomAccessFile(compactFile, "rw");
+        MappedByteBuffer compactBuffer;
+        try {
+            compactRaf.setLength(0);
+            writeHeader(compactRaf, newCapacity, slotSize);
+            compactBuffer = compactRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) (newCapacity + 1) * slotSize);
+            for (byte[] slotBytes : slots) {
+                int tokenLength = ((slotBytes[TOKEN_LENGTH_OFFSET] & 0xff) << 8) | (slotBytes[TOKEN_LENGTH_OFFSET + 1] & 0xff);
+                byte[] tokenBytes = new byte[tokenLength];
+                System.arraycopy(slotBytes, DATA_OFFSET, tokenBytes, 0, tokenLength);
+                int start = (hash(tokenBytes) & 0x7fffffff) % newCapacity;
+                int slot = start;
+                while (compactBuffer.get(slotOffset(slot)) != STATE_EMPTY) {
+                    slot = (slot + 1) % newCapacity;
+                }
+                int offset = slotOffset(slot);
+                for (int i = 1; i < slotSize; i++) {
+                    compactBuffer.put(offset + i, slotBytes[i]);
+                }
+                compactBuffer.put(offset, STATE_USED);
+            }
+            compactBuffer.force();
+        } finally {
+            compactRaf.close();
+        }
+
+        // Renaming is atomic, so after crash either old or new file is found, both are consistent
+        buffer.force();
+        buffer = null;
+        randomAccessFile.close();
+        randomAccessFile = null;
+        Files.move(compactFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        ensureOpen();
+    }
+
+    private void evictNearestExpiration(List<byte[]> slots, int maxCount) {
+        Collections.sort(slots, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] o1, byte[] o2) {
+                long e1 = readExpiresAt(o1);
+                long e2 = readExpiresAt(o2);
+                return e1 < e2 ? 1 : (e1 == e2 ? 0 : -1);
+            }
+        });
+        while (slots.size() > maxCount) {
+            slots.remove(slots.size() - 1);
+        }
+    }
+
+    private static long readExpiresAt(byte[] slotBytes) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (slotBytes[EXPIRES_AT_OFFSET + i] & 0xff);
+        }
+        return result;
+    }
+}
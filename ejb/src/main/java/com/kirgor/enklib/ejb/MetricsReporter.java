@@ -0,0 +1,17 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.Collection;
+
+/**
+ * Receives invocation metrics periodically, so they can be exported to monitoring system.
+ * Implementation may also implement {@link Configurable} to get its settings.
+ */
+public interface MetricsReporter {
+    /**
+     * Reports current metrics. Metrics are cumulative since start.
+     *
+     * @param endpoints Metrics of all invoked bean methods.
+     * @throws Exception
+     */
+    void report(Collection<EndpointMetrics> endpoints) throws Exception;
+}
@@ -0,0 +1,61 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.common.EncodingUtils;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Implementation of {@link PasswordHasher}, which uses PBKDF2 key derivation function of the JDK.
+ * It's deliberately slow and much stronger against brute force than plain digest, but it produces hashes
+ * incompatible with {@link DigestPasswordHasher}, so it's suitable for new deployments.
+ * <p/>
+ * Takes number of iterations from "passwordKDFIterations" configuration field, which is separate from iterations
+ * of the digest hasher and defaults to 100000, algorithm from "passwordKDFAlgorithm" and hash length in bytes
+ * from "passwordHashLength".
+ */
+public class PBKDF2PasswordHasher implements PasswordHasher, Configurable {
+    private String algorithm = "PBKDF2WithHmacSHA1";
+    private int iterations = 100000;
+    private int hashLength = 32;
+    private ThreadLocal<SecretKeyFactory> secretKeyFactory = createThreadLocal(algorithm);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(Config config) throws NoSuchAlgorithmException {
+        SecretKeyFactory.getInstance(config.getPasswordKDFAlgorithm());
+        algorithm = config.getPasswordKDFAlgorithm();
+        iterations = config.getPasswordKDFIterations();
+        hashLength = config.getPasswordHashLength();
+        secretKeyFactory = createThreadLocal(algorithm);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String hash(String password, String salt) throws Exception {
+        PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), EncodingUtils.hexToBytes(salt), iterations, hashLength * 8);
+        try {
+            return EncodingUtils.bytesToHex(secretKeyFactory.get().generateSecret(keySpec).getEncoded());
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    private static ThreadLocal<SecretKeyFactory> createThreadLocal(final String algorithm) {
+        return new ThreadLocal<SecretKeyFactory>() {
+            @Override
+            protected SecretKeyFactory initialValue() {
+                try {
+                    return SecretKeyFactory.getInstance(algorithm);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Defines password hashing function, which is used by {@link Bean} for login and register.
+ * Configuration field "passwordHasherClassName" defines which implementation to use.
+ * <p/>
+ * Single instance is shared by all requests, so implementations must be thread-safe.
+ */
+public interface PasswordHasher {
+    /**
+     * Calculates password hash.
+     *
+     * @param password Password.
+     * @param salt     Hex-encoded salt.
+     * @return Hex-encoded hash.
+     * @throws Exception
+     */
+    String hash(String password, String salt) throws Exception;
+}
@@ -0,0 +1,115 @@
+package com.kirgor.enklib.ejb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary form of user principals for token storages and tokens, which keep principals outside of the heap.
+ * <p/>
+ * Principals are usually IDs or emails, so strings and integer numbers are written as a type byte followed by
+ * raw value. Other serializable principals fall back to Java serialization.
+ */
+class PrincipalEncoding {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_SERIALIZED = 4;
+
+    private PrincipalEncoding() {
+    }
+
+    /**
+     * Encodes principal to bytes.
+     *
+     * @param principal Principal, which must be a string, integer number or serializable object.
+     * @throws IOException If principal can't be serialized.
+     */
+    static byte[] encode(Object principal) throws IOException {
+        if (principal instanceof String) {
+            byte[] bytes = ((String) principal).getBytes(UTF8);
+            byte[] result = new byte[bytes.length + 1];
+            result[0] = TYPE_STRING;
+            System.arraycopy(bytes, 0, result, 1, bytes.length);
+            return result;
+        } else if (principal instanceof Integer) {
+            byte[] result = new byte[5];
+            result[0] = TYPE_INTEGER;
+            writeLong(result, 1, (Integer) principal, 4);
+            return result;
+        } else if (principal instanceof Long) {
+            byte[] result = new byte[9];
+            result[0] = TYPE_LONG;
+            writeLong(result, 1, (Long) principal, 8);
+            return result;
+        } else if (principal instanceof Serializable) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            outputStream.write(TYPE_SERIALIZED);
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream);
+            objectOutputStream.writeObject(principal);
+            objectOutputStream.close();
+            return outputStream.toByteArray();
+        }
+        throw new IOException("Principal of " + (principal == null ? "null" : principal.getClass().getName()) + " can't be encoded.");
+    }
+
+    /**
+     * Decodes principal from bytes, which were produced by encode() method.
+     *
+     * @param bytes  Source bytes.
+     * @param offset Offset of encoded principal.
+     * @param length Length of encoded principal.
+     * @throws IOException If bytes don't contain valid principal.
+     */
+    static Object decode(byte[] bytes, int offset, int length) throws IOException {
+        if (length < 1) {
+            throw new IOException("Encoded principal is empty.");
+        }
+        switch (bytes[offset]) {
+            case TYPE_STRING:
+                return new String(bytes, offset + 1, length - 1, UTF8);
+            case TYPE_INTEGER:
+                checkLength(length, 5);
+                return (int) readLong(bytes, offset + 1, 4);
+            case TYPE_LONG:
+                checkLength(length, 9);
+                return readLong(bytes, offset + 1, 8);
+            case TYPE_SERIALIZED:
+                ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes, offset + 1, length - 1));
+                try {
+                    return objectInputStream.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Class of encoded principal is not found.", e);
+                } finally {
+                    objectInputStream.close();
+                }
+            default:
+                throw new IOException("Unknown type of encoded principal.");
+        }
+    }
+
+    private static void checkLength(int length, int expected) throws IOException {
+        if (length != expected) {
+            throw new IOException("Encoded principal has wrong length.");
+        }
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value, int size) {
+        for (int i = 0; i < size; i++) {
+            bytes[offset + i] = (byte) (value >>> ((size - 1 - i) * 8));
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset, int size) {
+        long result = 0;
+        for (int i = 0; i < size; i++) {
+            result = (result << 8) | (bytes[offset + i] & 0xff);
+        }
+        return size == 4 ? (int) result : result;
+    }
+}
@@ -0,0 +1,138 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Token bucket rate limiter, which keeps independent bucket for each key (e.g. user principal or IP address).
+ * <p/>
+ * Each bucket is locked separately, so requests with different keys don't contend. Number of buckets is bounded:
+ * when it reaches the maximum, a batch of buckets is evicted at once, so the cost of the scan is spread over
+ * many new keys. Bucket, which has been idle long enough to be refilled, is equivalent to the new one,
+ * so such buckets go first, then buckets with the most permits left. Drained buckets are evicted last,
+ * so flood of new keys can't reset the limit of the key, which is under attack.
+ */
+public class RateLimiter {
+    private final ConcurrentHashMap<Object, Bucket> buckets = new ConcurrentHashMap<Object, Bucket>();
+    private final double permitsPerNano;
+    private final int burst;
+    private final int maxKeys;
+    private final Object evictionLock = new Object();
+
+    /**
+     * Creates rate limiter.
+     *
+     * @param permitsPerSecond Rate, which permits are refilled with for each key.
+     * @param burst            Maximum number of permits, which can be acquired at once after idle period.
+     * @param maxKeys          Maximum number of keys, which have buckets at once.
+     */
+    public RateLimiter(double permitsPerSecond, int burst, int maxKeys) {
+        if (permitsPerSecond <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Maximum number of keys must be positive.");
+        }
+        this.permitsPerNano = permitsPerSecond / 1e9;
+        this.burst = burst;
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Acquires one permit for the key if it's available.
+     *
+     * @param key Key of the bucket.
+     * @return True if permit was acquired, otherwise request with this key should be rejected.
+     */
+    public boolean tryAcquire(Object key) {
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= maxKeys) {
+                evict(now);
+            }
+            Bucket newBucket = new Bucket(burst, now);
+            bucket = buckets.putIfAbsent(key, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket.tryAcquire(now);
+    }
+
+    /**
+     * Returns permit acquired for the key, e.g. when the request is rejected by another limiter afterwards.
+     *
+     * @param key Key of the bucket.
+     */
+    public void release(Object key) {
+        Bucket bucket = buckets.get(key);
+        if (bucket != null) {
+            bucket.release();
+        }
+    }
+
+    /**
+     * Gets number of keys, which have buckets at the moment.
+     */
+    public int getKeyCount() {
+        return buckets.size();
+    }
+
+    private void evict(long now) {
+        // Concurrent callers wait for a single scan instead of repeating it
+        synchronized (evictionLock) {
+            if (buckets.size() < maxKeys) {
+                return;
+            }
+            EvictionCandidates<Bucket> candidates = new EvictionCandidates<Bucket>();
+            for (Map.Entry<Object, Bucket> entry : buckets.entrySet()) {
+                double permits = entry.getValue().getPermits(now);
+                if (permits >= burst) {
+                    buckets.remove(entry.getKey(), entry.getValue());
+                } else {
+                    candidates.add(entry.getKey(), entry.getValue(), -permits);
+                }
+            }
+            int count = buckets.size() - maxKeys + maxKeys / 16 + 1;
+            if (count > 0) {
+                candidates.evict(buckets, count);
+            }
+        }
+    }
+
+    private class Bucket {
+        private double permits;
+        private long updateTime;
+
+        private Bucket(double permits, long updateTime) {
+            this.permits = permits;
+            this.updateTime = updateTime;
+        }
+
+        private synchronized boolean tryAcquire(long now) {
+            refill(now);
+            if (permits >= 1) {
+                permits -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        private synchronized void release() {
+            permits = Math.min(burst, permits + 1);
+        }
+
+        private synchronized double getPermits(long now) {
+            refill(now);
+            return permits;
+        }
+
+        private void refill(long now) {
+            if (now > updateTime) {
+                permits = Math.min(burst, permits + (now - updateTime) * permitsPerNano);
+                updateTime = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Defines shared store of security tokens for {@link ReplicatedSecurityTokenStorage}, which is usually
+ * a client of cluster cache or database shared by all service nodes.
+ * <p/>
+ * Store must notify registered listeners of each token change, including changes made by other nodes,
+ * so nodes can drop stale entries of their near caches.
+ */
+public interface RemoteSecurityTokenStore {
+    /**
+     * Stores token/principal pair.
+     *
+     * @param token      Security token.
+     * @param principal  User principal.
+     * @param timeToLive Time in milliseconds, after which token should expire. Non-positive value means no expiration.
+     * @throws Exception
+     */
+    void put(String token, Object principal, long timeToLive) throws Exception;
+
+    /**
+     * Gets user principal by security token (may return null).
+     *
+     * @throws Exception
+     */
+    Object get(String token) throws Exception;
+
+    /**
+     * Removes security token/principal pair from the store.
+     *
+     * @throws Exception
+     */
+    void remove(String token) throws Exception;
+
+    /**
+     * Registers listener of token changes.
+     */
+    void addInvalidationListener(InvalidationListener listener);
+
+    /**
+     * Listener of token changes.
+     */
+    interface InvalidationListener {
+        /**
+         * Called after token has been stored or removed by any node.
+         *
+         * @param token Changed security token.
+         */
+        void invalidated(String token);
+    }
+}
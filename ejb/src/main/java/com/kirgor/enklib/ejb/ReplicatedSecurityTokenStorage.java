@@ -0,0 +1,335 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.common.AsyncRunner;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Implementation of {@link SecurityTokenStorage} for multi-node deployments, which keeps tokens in
+ * {@link RemoteSecurityTokenStore} shared by all nodes and caches them in the local near cache,
+ * so most requests are authenticated without remote round trip.
+ * <p/>
+ * Unknown tokens are cached too, for shorter time, so requests with stale cookies don't hit the remote store.
+ * Changes are written to the remote store asynchronously on background thread in the order they were made,
+ * and remote store notifies all nodes, which drop changed tokens from their near caches.
+ * The node, which made the change, sees it immediately.
+ * <p/>
+ * Failed removal is retried with growing delay until it succeeds, since removed token must not stay valid
+ * on other nodes. Meanwhile, this node treats the token as removed.
+ */
+public class ReplicatedSecurityTokenStorage implements SecurityTokenStorage, Configurable, Closeable {
+    private static final long MIN_RETRY_DELAY = 100;
+    private static final long MAX_RETRY_DELAY = 5000;
+
+    private final ConcurrentHashMap<String, CacheEntry> nearCache = new ConcurrentHashMap<String, CacheEntry>();
+    private final ConcurrentHashMap<String, Boolean> pendingRemovals = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicLong invalidationCount = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong remoteLookupCount = new AtomicLong();
+    private final AtomicLong writeFailureCount = new AtomicLong();
+    private final AtomicInteger pendingWriteCount = new AtomicInteger();
+    private final WriteBehindRunner writeBehindRunner = new WriteBehindRunner();
+    private volatile boolean closed;
+
+    private volatile RemoteSecurityTokenStore remoteStore;
+    private volatile long timeToLive = 3600 * 1000L;
+    private volatile long nearCacheTimeToLive = 60 * 1000L;
+    private volatile long negativeCacheTimeToLive = 5 * 1000L;
+    private volatile int nearCacheMaxCount = 100000;
+
+    /**
+     * Creates instance, which should be configured with configure() or setRemoteStore() before use.
+     */
+    public ReplicatedSecurityTokenStorage() {
+    }
+
+    /**
+     * Creates instance with specified remote store.
+     *
+     * @param remoteStore Remote store shared by all nodes.
+     */
+    public ReplicatedSecurityTokenStorage(RemoteSecurityTokenStore remoteStore) {
+        setRemoteStore(remoteStore);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Creates remote store of configured class and takes time to live settings from the configuration.
+     */
+    @Override
+    public void configure(Config config) throws Exception {
+        setTimeToLive(config.getSecurityTokenTimeToLive() * 1000L);
+        setNearCacheTimeToLive(config.getSecurityTokenNearCacheTimeToLive() * 1000L);
+        setNegativeCacheTimeToLive(config.getSecurityTokenNegativeCacheTimeToLive() * 1000L);
+        setNearCacheMaxCount(config.getSecurityTokenMaxCount());
+
+        Object store = Class.forName(config.getSecurityTokenRemoteStoreClassName()).newInstance();
+        if (store instanceof Configurable) {
+            ((Configurable) store).configure(config);
+        }
+        setRemoteStore((RemoteSecurityTokenStore) store);
+    }
+
+    /**
+     * Sets remote store and starts writing changes to it. It can be called only once.
+     *
+     * @param remoteStore Remote store shared by all nodes.
+     */
+    public synchronized void setRemoteStore(RemoteSecurityTokenStore remoteStore) {
+        if (this.remoteStore != null) {
+            throw new IllegalStateException("Remote store has been already set.");
+        }
+        this.remoteStore = remoteStore;
+        remoteStore.addInvalidationListener(new RemoteSecurityTokenStore.InvalidationListener() {
+            @Override
+            public void invalidated(String token) {
+                invalidationCount.incrementAndGet();
+                nearCache.remove(token);
+            }
+        });
+        writeBehindRunner.start(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void add(String token, Object principal) {
+        cache(token, principal, nearCacheTimeToLive);
+        enqueue(new Change(token, principal, false));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get(String token) {
+        if (token == null || pendingRemovals.containsKey(token)) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        CacheEntry entry = nearCache.get(token);
+        if (entry != null) {
+            if (now < entry.expiresAt) {
+                hitCount.incrementAndGet();
+                return entry.principal;
+            }
+            nearCache.remove(token, entry);
+        }
+
+        // Result is not cached if any token has changed meanwhile, because it could be already stale
+        long invalidations = invalidationCount.get();
+        remoteLookupCount.incrementAndGet();
+        Object principal;
+        try {
+            principal = getRemoteStore().get(token);
+        } catch (Exception e) {
+            throw new IllegalStateException("Can't get security token from remote store.", e);
+        }
+        if (invalidationCount.get() == invalidations) {
+            cache(token, principal, principal != null ? nearCacheTimeToLive : negativeCacheTimeToLive);
+        }
+        return principal;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void remove(String token) {
+        if (token == null) {
+            return;
+        }
+
+        // Token stays unknown locally until the remote store confirms the removal
+        pendingRemovals.put(token, Boolean.TRUE);
+        cache(token, null, nearCacheTimeToLive);
+        enqueue(new Change(token, null, true));
+    }
+
+    /**
+     * Stops writing changes to the remote store. Changes, which have been already made, are still written
+     * in background, new changes are not written anymore. Failed removals are not retried after closing.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        writeBehindRunner.stop();
+    }
+
+    /**
+     * Sets time to live of tokens in the remote store in milliseconds.
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Sets time in milliseconds, during which known tokens are not looked up in the remote store again.
+     */
+    public void setNearCacheTimeToLive(long nearCacheTimeToLive) {
+        this.nearCacheTimeToLive = nearCacheTimeToLive;
+    }
+
+    /**
+     * Sets time in milliseconds, during which unknown tokens are not looked up in the remote store again.
+     */
+    public void setNegativeCacheTimeToLive(long negativeCacheTimeToLive) {
+        this.negativeCacheTimeToLive = negativeCacheTimeToLive;
+    }
+
+    /**
+     * Sets maximum number of tokens in the near cache.
+     */
+    public void setNearCacheMaxCount(int nearCacheMaxCount) {
+        this.nearCacheMaxCount = nearCacheMaxCount;
+    }
+
+    /**
+     * Gets number of lookups served by the near cache.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Gets number of lookups, which went to the remote store.
+     */
+    public long getRemoteLookupCount() {
+        return remoteLookupCount.get();
+    }
+
+    /**
+     * Gets number of failed writes to the remote store, including failed attempts of removals, which are retried.
+     */
+    public long getWriteFailureCount() {
+        return writeFailureCount.get();
+    }
+
+    /**
+     * Gets number of removals, which are not confirmed by the remote store yet.
+     */
+    public int getPendingRemovalCount() {
+        return pendingRemovals.size();
+    }
+
+    /**
+     * Gets number of changes, which are waiting to be written to the remote store.
+     */
+    public int getPendingWriteCount() {
+        return pendingWriteCount.get();
+    }
+
+    private RemoteSecurityTokenStore getRemoteStore() {
+        RemoteSecurityTokenStore result = remoteStore;
+        if (result == null) {
+            throw new IllegalStateException("Remote store is not set.");
+        }
+        return result;
+    }
+
+    private void cache(String token, Object principal, long timeToLive) {
+        if (timeToLive <= 0) {
+            nearCache.remove(token);
+            return;
+        }
+        if (nearCache.size() >= nearCacheMaxCount) {
+            // Cache is only a shortcut, so dropping arbitrary entries is enough to keep it bounded
+            Iterator<String> iterator = nearCache.keySet().iterator();
+            for (int i = nearCacheMaxCount / 16 + 1; i > 0 && iterator.hasNext(); i--) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        nearCache.put(token, new CacheEntry(principal, System.currentTimeMillis() + timeToLive));
+    }
+
+    private void enqueue(Change change) {
+        getRemoteStore();
+        pendingWriteCount.incrementAndGet();
+        if (!writeBehindRunner.addItem(change)) {
+            pendingWriteCount.decrementAndGet();
+            if (change.remove) {
+                pendingRemovals.remove(change.token);
+            }
+        }
+    }
+
+    private class WriteBehindRunner extends AsyncRunner<Change> {
+        @Override
+        protected void processItem(Change change) {
+            try {
+                if (change.remove) {
+                    removeRemotely(change.token);
+                } else {
+                    remoteStore.put(change.token, change.principal, timeToLive);
+                }
+            } catch (Exception e) {
+                writeFailureCount.incrementAndGet();
+                if (!change.remove) {
+                    // Other nodes will not see the token, so this one should not pretend it's stored
+                    nearCache.remove(change.token);
+                }
+            } finally {
+                pendingWriteCount.decrementAndGet();
+            }
+        }
+
+        /**
+         * Removes token from the remote store, retrying until it succeeds, the storage is closed or thread is interrupted.
+         * Later changes wait meanwhile, which keeps the order of changes.
+         */
+        private void removeRemotely(String token) throws Exception {
+            long delay = MIN_RETRY_DELAY;
+            while (true) {
+                try {
+                    remoteStore.remove(token);
+                    pendingRemovals.remove(token);
+                    return;
+                } catch (Exception e) {
+                    if (closed) {
+                        pendingRemovals.remove(token);
+                        throw e;
+                    }
+                    writeFailureCount.incrementAndGet();
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    pendingRemovals.remove(token);
+                    throw e;
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+            }
+        }
+    }
+
+    private static class Change {
+        private final String token;
+        private final Object principal;
+        private final boolean remove;
+
+        private Change(String token, Object principal, boolean remove) {
+            this.token = token;
+            this.principal = principal;
+            this.remove = remove;
+        }
+    }
+
+    private static class CacheEntry {
+        private final Object principal;
+        private final long expiresAt;
+
+        private CacheEntry(Object principal, long expiresAt) {
+            this.principal = principal;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Maps entities of streamed responses, see {@link Bean#getStreamedEntityMapper()}.
+ * <p/>
+ * Entities are mapped while the response is written, after the bean instance has returned to the pool,
+ * so implementations must not use state of the bean instance.
+ */
+public interface ResponseEntityMapper {
+    /**
+     * Maps response entity to other object.
+     *
+     * @param entity Response entity (may be null).
+     * @return Response entity, which will be actually written instead of entity param.
+     */
+    Object map(Object entity);
+}
@@ -0,0 +1,56 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.common.EncodingUtils;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * Generates unpredictable random codes (security tokens, password salts) as hex strings.
+ * <p/>
+ * Each thread has own {@link SecureRandom} instance, so concurrent logins don't contend for the single generator lock.
+ */
+public class SecurityTokenGenerator {
+    private final String algorithm;
+    private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+        @Override
+        protected SecureRandom initialValue() {
+            try {
+                // Unseeded instance seeds itself securely on the first use, explicit getSeed() could block on entropy
+                return algorithm != null ? SecureRandom.getInstance(algorithm) : new SecureRandom();
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Creates generator, which uses default {@link SecureRandom} algorithm.
+     */
+    public SecurityTokenGenerator() {
+        this.algorithm = null;
+    }
+
+    /**
+     * Creates generator, which uses specified {@link SecureRandom} algorithm (e.g. SHA1PRNG).
+     *
+     * @param algorithm Name of the algorithm.
+     * @throws NoSuchAlgorithmException If algorithm is not available.
+     */
+    public SecurityTokenGenerator(String algorithm) throws NoSuchAlgorithmException {
+        // Fail early rather than on the first login
+        SecureRandom.getInstance(algorithm);
+        this.algorithm = algorithm;
+    }
+
+    /**
+     * Generates random code.
+     *
+     * @param length Number of random bytes, code has twice more hex characters.
+     */
+    public String generate(int length) {
+        byte[] bytes = new byte[length];
+        random.get().nextBytes(bytes);
+        return EncodingUtils.bytesToHex(bytes);
+    }
+}
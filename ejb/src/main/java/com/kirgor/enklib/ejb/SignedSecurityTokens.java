@@ -0,0 +1,160 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.common.EncodingUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Issues and verifies stateless security tokens, which carry user principal and expiration time
+ * signed with HMAC, so no token storage lookup is needed and any service node can authenticate the request.
+ * <p/>
+ * Token is URL-safe Base64 of version byte, expiration time, random nonce, encoded principal and signature.
+ * Logout revokes the token in the local {@link TokenDenylist}, so revocation is visible only on the current node
+ * and tokens can't be prolonged, they expire after time to live since login.
+ */
+public class SignedSecurityTokens {
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 1 + 8 + 8;
+
+    private final SecretKeySpec key;
+    private final long timeToLive;
+    private final int signatureLength;
+    private final TokenDenylist denylist;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> mac;
+
+    /**
+     * Creates instance.
+     *
+     * @param secret               Secret key, which must be the same for all service nodes.
+     * @param algorithm            HMAC algorithm (e.g. HmacSHA256).
+     * @param timeToLive           Time to live of tokens in milliseconds.
+     * @param expectedRevocations  Expected number of logouts during time to live, which is used for denylist sizing.
+     *                             Non-positive value turns revocation off.
+     * @throws GeneralSecurityException If algorithm is not available or key is not valid.
+     */
+    public SignedSecurityTokens(byte[] secret, final String algorithm, long timeToLive, int expectedRevocations) throws GeneralSecurityException {
+        if (secret == null || secret.length == 0) {
+            throw new IllegalArgumentException("Secret of signed security tokens is not set.");
+        }
+        this.key = new SecretKeySpec(secret, algorithm);
+        this.timeToLive = timeToLive;
+        this.denylist = expectedRevocations > 0 ? new TokenDenylist(expectedRevocations, timeToLive) : null;
+
+        // Mac is not thread-safe and its initialization is costly, so each thread keeps own instance
+        Mac prototype = Mac.getInstance(algorithm);
+        prototype.init(key);
+        this.signatureLength = prototype.getMacLength();
+        this.mac = new ThreadLocal<Mac>() {
+            @Override
+            protected Mac initialValue() {
+                try {
+                    Mac result = Mac.getInstance(algorithm);
+                    result.init(key);
+                    return result;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+    }
+
+    /**
+     * Issues token for the principal.
+     *
+     * @param principal Principal, which must be a string, integer number or serializable object.
+     * @throws IOException If principal can't be encoded.
+     */
+    public String issue(Object principal) throws IOException {
+        byte[] principalBytes = PrincipalEncoding.encode(principal);
+        byte[] token = new byte[HEADER_LENGTH + principalBytes.length + signatureLength];
+        token[0] = VERSION;
+        writeLong(token, 1, System.currentTimeMillis() + timeToLive);
+        writeLong(token, 9, random.nextLong());
+        System.arraycopy(principalBytes, 0, token, HEADER_LENGTH, principalBytes.length);
+
+        Mac mac = this.mac.get();
+        mac.update(token, 0, HEADER_LENGTH + principalBytes.length);
+        byte[] signature = mac.doFinal();
+        System.arraycopy(signature, 0, token, HEADER_LENGTH + principalBytes.length, signatureLength);
+        return EncodingUtils.bytesToBase64Url(token);
+    }
+
+    /**
+     * Verifies token and gets its principal.
+     *
+     * @param token Token, which was issued by issue() method.
+     * @return Principal or null, if token is malformed, has wrong signature, expired or revoked.
+     */
+    public Object verify(String token) {
+        byte[] bytes = decode(token);
+        if (bytes == null || readLong(bytes, 1) <= System.currentTimeMillis()) {
+            return null;
+        }
+        if (denylist != null && denylist.mightContain(signatureOf(bytes))) {
+            return null;
+        }
+        try {
+            return PrincipalEncoding.decode(bytes, HEADER_LENGTH, bytes.length - HEADER_LENGTH - signatureLength);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Revokes token, so it will not pass verification on this node anymore.
+     * Does nothing if token is not valid or revocation is off.
+     */
+    public void revoke(String token) {
+        byte[] bytes = decode(token);
+        if (bytes != null && denylist != null) {
+            denylist.add(signatureOf(bytes));
+        }
+    }
+
+    /**
+     * Decodes token and checks its signature.
+     *
+     * @return Token bytes or null if token is not valid.
+     */
+    private byte[] decode(String token) {
+        if (token == null) {
+            return null;
+        }
+        byte[] bytes = EncodingUtils.base64UrlToBytes(token);
+        if (bytes.length <= HEADER_LENGTH + signatureLength || bytes[0] != VERSION) {
+            return null;
+        }
+
+        Mac mac = this.mac.get();
+        mac.update(bytes, 0, bytes.length - signatureLength);
+        byte[] expected = mac.doFinal();
+        // Constant-time comparison doesn't let attacker guess the signature byte by byte
+        return MessageDigest.isEqual(expected, signatureOf(bytes)) ? bytes : null;
+    }
+
+    private byte[] signatureOf(byte[] bytes) {
+        byte[] result = new byte[signatureLength];
+        System.arraycopy(bytes, bytes.length - signatureLength, result, 0, signatureLength);
+        return result;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> (56 - i * 8));
+        }
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (bytes[offset + i] & 0xff);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,28 @@
+package com.kirgor.enklib.ejb;
+
+import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Releases SQL session of the cursor streamed by {@link Bean#ok(com.kirgor.enklib.sql.Cursor)},
+ * if JAX-RS runtime hasn't written the response entity (e.g. HEAD request or entity replaced by exception mapper).
+ * <p/>
+ * Listener is registered automatically in web applications, which are scanned for annotations.
+ * Otherwise, it must be declared in web.xml.
+ */
+@WebListener
+public class StreamedResponseListener implements ServletRequestListener {
+    @Override
+    public void requestInitialized(ServletRequestEvent event) {
+    }
+
+    @Override
+    public void requestDestroyed(ServletRequestEvent event) {
+        Object stream = event.getServletRequest().getAttribute(CursorStreamingOutput.REQUEST_ATTRIBUTE);
+        if (stream instanceof CursorStreamingOutput) {
+            event.getServletRequest().removeAttribute(CursorStreamingOutput.REQUEST_ATTRIBUTE);
+            ((CursorStreamingOutput) stream).release();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.kirgor.enklib.ejb;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of revoked signed tokens, which keeps memory fixed regardless of number of logouts.
+ * <p/>
+ * Revoked tokens need to be remembered only until they expire, so filter has two generations, which are rotated
+ * each token time to live: revocations are added to the current generation and looked up in both of them.
+ * False positives are possible and mean that valid token is rejected, so filter is sized for the expected
+ * number of revocations per generation.
+ */
+class TokenDenylist {
+    private static final int HASH_COUNT = 7;
+
+    private final int bitCount;
+    private final long generationTime;
+    private volatile AtomicLongArray current;
+    private volatile AtomicLongArray previous;
+    private volatile long rotationTime;
+
+    /**
+     * Creates denylist.
+     *
+     * @param expectedCount  Expected number of revocations per generation.
+     * @param generationTime Time of one generation in milliseconds, which should not be less than token time to live.
+     */
+    TokenDenylist(int expectedCount, long generationTime) {
+        // About 10 bits per entry give 1% false positive rate with 7 hash functions
+        long bits = Math.max(64, (long) expectedCount * 10);
+        this.bitCount = (int) Math.min(bits, Integer.MAX_VALUE - 63);
+        this.generationTime = generationTime;
+        this.current = new AtomicLongArray((bitCount + 63) / 64);
+        this.previous = new AtomicLongArray((bitCount + 63) / 64);
+        this.rotationTime = System.currentTimeMillis() + generationTime;
+    }
+
+    /**
+     * Adds token signature to the denylist.
+     *
+     * @param signature Token signature, which is uniformly distributed, so its bytes are used as hashes.
+     */
+    void add(byte[] signature) {
+        rotateIfDue();
+        AtomicLongArray bits = current;
+        long h1 = hash(signature, 0);
+        long h2 = hash(signature, 8);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = index(h1, h2, i);
+            int word = bit >>> 6;
+            long mask = 1L << bit;
+            long value;
+            do {
+                value = bits.get(word);
+            } while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+        }
+    }
+
+    /**
+     * Checks if token signature might have been added to the denylist.
+     */
+    boolean mightContain(byte[] signature) {
+        rotateIfDue();
+        long h1 = hash(signature, 0);
+        long h2 = hash(signature, 8);
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    private boolean contains(AtomicLongArray bits, long h1, long h2) {
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = index(h1, h2, i);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int index(long h1, long h2, int i) {
+        return (int) (((h1 + i * h2) & Long.MAX_VALUE) % bitCount);
+    }
+
+    private void rotateIfDue() {
+        if (System.currentTimeMillis() < rotationTime) {
+            return;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now >= rotationTime) {
+                previous = current;
+                current = new AtomicLongArray((bitCount + 63) / 64);
+                rotationTime = now + generationTime;
+            }
+        }
+    }
+
+    private static long hash(byte[] bytes, int offset) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (bytes[(offset + i) % bytes.length] & 0xff);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,59 @@
+package com.kirgor.enklib.ejb;
+
+/**
+ * Registration of single user for bulk registration, see {@link BulkAuthenticationDAO}.
+ * <p/>
+ * Password hash and salt are filled during registration, password is cleared after it has been hashed.
+ */
+public class UserRegistration {
+    private final Object principal;
+    private final Object extraData;
+    private volatile String password;
+    private volatile String passwordHash;
+    private volatile String passwordSalt;
+
+    /**
+     * Creates registration.
+     *
+     * @param principal User's principal (e.g. ID or email).
+     * @param password  User's password.
+     * @param extraData Any object, which contains extra data for new user. It's consumed by {@link AuthenticationDAO}.
+     */
+    public UserRegistration(Object principal, String password, Object extraData) {
+        this.principal = principal;
+        this.password = password;
+        this.extraData = extraData;
+    }
+
+    public Object getPrincipal() {
+        return principal;
+    }
+
+    public Object getExtraData() {
+        return extraData;
+    }
+
+    /**
+     * Gets hex-encoded password hash or null if password hasn't been hashed yet.
+     */
+    public String getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * Gets hex-encoded password salt or null if password hasn't been hashed yet.
+     */
+    public String getPasswordSalt() {
+        return passwordSalt;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    void setHashed(String passwordHash, String passwordSalt) {
+        this.passwordHash = passwordHash;
+        this.passwordSalt = passwordSalt;
+        this.password = null;
+    }
+}
@@ -0,0 +1,21 @@
+package com.kirgor.enklib.ejb.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation for implementations of {@link com.kirgor.enklib.sql.dialect.Dialect},
+ * {@link com.kirgor.enklib.ejb.SecurityTokenStorage} and {@link com.kirgor.enklib.ejb.AuthenticationDAO},
+ * which are not thread-safe or keep per-request state.
+ * Such classes are instantiated once per request: all lookups of the component during the same bean invocation
+ * get the same instance, while by default single instance is shared by the whole service.
+ * <p/>
+ * Instances, which implement {@link java.io.Closeable}, are closed when the request ends. AuthenticationDAO
+ * with this annotation can't be used with authentication DAO cache, since the cache is shared.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface PerRequest {
+}
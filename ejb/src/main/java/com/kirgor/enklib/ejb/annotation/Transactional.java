@@ -0,0 +1,21 @@
+package com.kirgor.enklib.ejb.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation for bean methods (or whole bean classes), which run all their database work in single transaction.
+ * Transaction is committed after the method has returned and rolled back if it has thrown an exception.
+ * <p/>
+ * Read-only transactions are run on read replicas, if they are configured.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Transactional {
+    /**
+     * Specifies whether transaction only reads data.
+     */
+    boolean readOnly() default false;
+}
@@ -0,0 +1,80 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.sql.Session;
+import com.kirgor.enklib.sql.proxy.StoredProcedureProxyFactory;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CachingAuthenticationDAOTest {
+    @Test
+    public void cacheUsers() throws Exception {
+        InMemoryDAO dao = new InMemoryDAO();
+        CachingAuthenticationDAO cachingDAO = new CachingAuthenticationDAO(dao, 60000, 60000, 100);
+        assertNull(cachingDAO.getUserByPrincipal(null, null, "user"));
+        assertNull(cachingDAO.getUserByPrincipal(null, null, "user"));
+        assertEquals(1, dao.lookupCount.get());
+
+        // New user replaces cached unknown principal
+        cachingDAO.addNewUser(null, null, "user", "hash", "salt", null);
+        assertEquals("hash", cachingDAO.getUserByPrincipal(null, null, "user").getPasswordHash());
+        assertEquals("hash", cachingDAO.getUserByPrincipal(null, null, "user").getPasswordHash());
+        assertEquals(2, dao.lookupCount.get());
+        assertEquals(2, cachingDAO.getHitCount());
+    }
+
+    @Test
+    public void lookupRacingWithNewUserIsNotCached() throws Exception {
+        RacingDAO dao = new RacingDAO();
+        CachingAuthenticationDAO cachingDAO = new CachingAuthenticationDAO(dao, 60000, 60000, 100);
+        dao.cachingDAO = cachingDAO;
+
+        // User is added after the lookup has read the database, but before its result is cached
+        assertNull(cachingDAO.getUserByPrincipal(null, null, "user"));
+        assertEquals("hash", cachingDAO.getUserByPrincipal(null, null, "user").getPasswordHash());
+        assertEquals(2, dao.lookupCount.get());
+    }
+
+    private static class InMemoryDAO implements AuthenticationDAO {
+        final ConcurrentHashMap<Object, User> users = new ConcurrentHashMap<Object, User>();
+        final AtomicInteger lookupCount = new AtomicInteger();
+
+        @Override
+        public void addNewUser(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory,
+                               Object principal, final String passwordHash, final String passwordSalt, Object extraData) {
+            users.put(principal, new User() {
+                @Override
+                public String getPasswordHash() {
+                    return passwordHash;
+                }
+
+                @Override
+                public String getPasswordSalt() {
+                    return passwordSalt;
+                }
+            });
+        }
+
+        @Override
+        public User getUserByPrincipal(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory, Object principal) throws Exception {
+            lookupCount.incrementAndGet();
+            return users.get(principal);
+        }
+    }
+
+    private static class RacingDAO extends InMemoryDAO {
+        private CachingAuthenticationDAO cachingDAO;
+
+        @Override
+        public User getUserByPrincipal(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory, Object principal) throws Exception {
+            User user = super.getUserByPrincipal(session, storedProcedureProxyFactory, principal);
+            if (lookupCount.get() == 1) {
+                cachingDAO.addNewUser(session, storedProcedureProxyFactory, principal, "hash", "salt", null);
+            }
+            return user;
+        }
+    }
+}
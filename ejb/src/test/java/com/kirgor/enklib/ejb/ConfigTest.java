@@ -0,0 +1,164 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.common.ConfigUtils;
+import com.kirgor.enklib.ejb.annotation.PerRequest;
+import com.kirgor.enklib.sql.Session;
+import com.kirgor.enklib.sql.proxy.StoredProcedureProxyFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ConfigTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void perRequestInstances() throws Exception {
+        Config config = load(PerRequestStorage.class);
+        assertNotSame(config.getSecurityTokenStorage(), config.getSecurityTokenStorage());
+
+        Object scope = config.beginRequest();
+        SecurityTokenStorage storage = config.getSecurityTokenStorage();
+        assertSame(storage, config.getSecurityTokenStorage());
+
+        // Nested request has its own instances
+        Object nestedScope = config.beginRequest();
+        assertNotSame(storage, config.getSecurityTokenStorage());
+        config.endRequest(nestedScope);
+        assertSame(storage, config.getSecurityTokenStorage());
+
+        config.endRequest(scope);
+        assertNotSame(storage, config.getSecurityTokenStorage());
+    }
+
+    @Test
+    public void closePerRequestInstances() throws Exception {
+        Config config = load(PerRequestCloseableStorage.class);
+        Object scope = config.beginRequest();
+        CloseableStorage storage = (CloseableStorage) config.getSecurityTokenStorage();
+
+        Object nestedScope = config.beginRequest();
+        CloseableStorage nestedStorage = (CloseableStorage) config.getSecurityTokenStorage();
+        config.endRequest(nestedScope);
+        assertTrue(nestedStorage.closed);
+        assertFalse(storage.closed);
+
+        config.endRequest(scope);
+        assertTrue(storage.closed);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void perRequestAuthenticationDAOCantBeCached() throws Exception {
+        load(HashMapSecurityTokenStorage.class, PerRequestAuthenticationDAO.class,
+                "<authenticationDAOCacheTimeToLive>60</authenticationDAOCacheTimeToLive>").init();
+    }
+
+    @Test
+    public void sharedInstances() throws Exception {
+        Config config = load(HashMapSecurityTokenStorage.class);
+        assertSame(config.getSecurityTokenStorage(), config.getSecurityTokenStorage());
+        assertSame(config.getAuthenticationDAO(), config.getAuthenticationDAO());
+    }
+
+    @Test
+    public void releaseAfterRequests() throws Exception {
+        Config config = load(CloseableStorage.class);
+        CloseableStorage storage = (CloseableStorage) config.getSecurityTokenStorage();
+        Config next = load(CloseableStorage.class, "<securityTokenTimeToLive>60</securityTokenTimeToLive>");
+        next.init(config);
+        assertNotSame(storage, next.getSecurityTokenStorage());
+
+        assertTrue(config.enter());
+        config.retire(next);
+        assertFalse(storage.closed);
+
+        // New requests go to the next configuration
+        assertFalse(config.enter());
+        assertFalse(storage.closed);
+
+        config.exit();
+        assertTrue(storage.closed);
+    }
+
+    @Test
+    public void reuseStorageOfSameFile() throws Exception {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        Config config = load(MappedFileSecurityTokenStorage.class, fileSettings(file, 60));
+        config.init();
+        MappedFileSecurityTokenStorage storage = (MappedFileSecurityTokenStorage) config.getSecurityTokenStorage();
+        storage.add("token", "user");
+
+        Config next = load(MappedFileSecurityTokenStorage.class, fileSettings(file, 120));
+        next.init(config);
+        assertSame(storage, next.getSecurityTokenStorage());
+        assertEquals(120 * 1000L, storage.getTimeToLive());
+
+        config.retire(next);
+        assertEquals("user", next.getSecurityTokenStorage().get("token"));
+        storage.close();
+    }
+
+    private static String fileSettings(File file, int timeToLive) {
+        return "<securityTokenStorageFile>" + file.getPath() + "</securityTokenStorageFile>"
+                + "<securityTokenTimeToLive>" + timeToLive + "</securityTokenTimeToLive>";
+    }
+
+    static Config load(Class storageClass) throws Exception {
+        return load(storageClass, "");
+    }
+
+    static Config load(Class storageClass, String settings) throws Exception {
+        return load(storageClass, StubAuthenticationDAO.class, settings);
+    }
+
+    static Config load(Class storageClass, Class authenticationDAOClass, String settings) throws Exception {
+        String xml = "<config>"
+                + "<dataSourceJNDI>jdbc/test</dataSourceJNDI>"
+                + "<dialectClassName>com.kirgor.enklib.sql.dialect.PostgreSQLDialect</dialectClassName>"
+                + "<authenticationDAOClassName>" + authenticationDAOClass.getName() + "</authenticationDAOClassName>"
+                + "<securityTokenStorageClassName>" + storageClass.getName() + "</securityTokenStorageClassName>"
+                + "<passwordHashThreads>0</passwordHashThreads>"
+                + settings
+                + "</config>";
+        return ConfigUtils.loadFromXMLStream(Config.class, new ByteArrayInputStream(xml.getBytes("UTF-8")));
+    }
+
+    @PerRequest
+    public static class PerRequestStorage extends HashMapSecurityTokenStorage {
+    }
+
+    public static class CloseableStorage extends HashMapSecurityTokenStorage implements Closeable {
+        private volatile boolean closed;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    @PerRequest
+    public static class PerRequestCloseableStorage extends CloseableStorage {
+    }
+
+    public static class StubAuthenticationDAO implements AuthenticationDAO {
+        @Override
+        public void addNewUser(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory,
+                               Object principal, String passwordHash, String passwordSalt, Object extraData) {
+        }
+
+        @Override
+        public User getUserByPrincipal(Session session, StoredProcedureProxyFactory storedProcedureProxyFactory, Object principal) {
+            return null;
+        }
+    }
+
+    @PerRequest
+    public static class PerRequestAuthenticationDAO extends StubAuthenticationDAO {
+    }
+}
@@ -0,0 +1,99 @@
+package com.kirgor.enklib.ejb;
+
+import com.kirgor.enklib.sql.Cursor;
+import com.kirgor.enklib.sql.Session;
+import com.kirgor.enklib.sql.dialect.PostgreSQLDialect;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CursorStreamingOutputTest {
+    @Test
+    public void releaseUnwrittenStream() throws Exception {
+        Recorder connection = new Recorder();
+        Recorder resultSet = new Recorder();
+        CursorStreamingOutput stream = createStream(resultSet);
+        stream.handOver(new Session(connection.proxy(Connection.class), new PostgreSQLDialect()), true);
+
+        stream.release();
+        assertEquals(1, resultSet.count("close"));
+        assertEquals(1, connection.count("rollback"));
+        assertEquals(0, connection.count("commit"));
+        assertEquals(1, connection.count("close"));
+
+        try {
+            stream.write(new ByteArrayOutputStream());
+            fail();
+        } catch (IOException ignored) {
+        }
+        stream.release();
+        assertEquals(1, connection.count("close"));
+    }
+
+    @Test
+    public void writtenStreamIsReleasedOnce() throws Exception {
+        Recorder connection = new Recorder();
+        Recorder resultSet = new Recorder();
+        CursorStreamingOutput stream = createStream(resultSet);
+        stream.handOver(new Session(connection.proxy(Connection.class), new PostgreSQLDialect()), false);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        stream.write(output);
+        assertEquals("[]", output.toString("UTF-8"));
+        assertEquals(1, connection.count("close"));
+        assertEquals(0, connection.count("rollback"));
+
+        // Request completion after writing does nothing
+        stream.release();
+        assertEquals(1, connection.count("close"));
+        assertEquals(1, resultSet.count("close"));
+    }
+
+    private static CursorStreamingOutput createStream(Recorder resultSet) throws Exception {
+        Cursor<String> cursor = new Cursor<String>(resultSet.proxy(ResultSet.class), String.class, new PostgreSQLDialect());
+        return new CursorStreamingOutput(null, null, cursor);
+    }
+
+    /**
+     * Records names of called methods and returns default values.
+     */
+    private static class Recorder implements InvocationHandler {
+        private final List<String> calls = new ArrayList<String>();
+
+        <T> T proxy(Class<T> interfaceClass) {
+            return interfaceClass.cast(Proxy.newProxyInstance(interfaceClass.getClassLoader(), new Class[]{interfaceClass}, this));
+        }
+
+        int count(String name) {
+            int result = 0;
+            for (String call : calls) {
+                if (call.equals(name)) {
+                    result++;
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            calls.add(method.getName());
+            Class type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            } else if (type == int.class) {
+                return 0;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kirgor.enklib.ejb;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class InvocationMetricsTest {
+    private static final String ENDPOINT = "com.example.UserBean.getProfile";
+
+    @Test
+    public void replaceMetricsOnReload() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.kirgor.enklib:type=InvocationMetrics,application="
+                + ObjectName.quote("reload-test") + ",endpoint=" + ObjectName.quote(ENDPOINT));
+        InvocationMetrics retiring = new InvocationMetrics("reload-test", true);
+        retiring.getEndpoint(ENDPOINT).recordException();
+        assertEquals(1L, server.getAttribute(objectName, "ExceptionCount"));
+
+        // New registry is created before the retiring one is closed
+        InvocationMetrics current = new InvocationMetrics("reload-test", true);
+        current.getEndpoint(ENDPOINT);
+        assertEquals(0L, server.getAttribute(objectName, "ExceptionCount"));
+
+        retiring.close();
+        assertTrue(server.isRegistered(objectName));
+        current.close();
+        assertFalse(server.isRegistered(objectName));
+    }
+
+    @Test
+    public void retiringRegistryDoesNotTakeNameBack() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.kirgor.enklib:type=InvocationMetrics,application="
+                + ObjectName.quote("retiring-test") + ",endpoint=" + ObjectName.quote(ENDPOINT));
+        InvocationMetrics retiring = new InvocationMetrics("retiring-test", true);
+        InvocationMetrics current = new InvocationMetrics("retiring-test", true);
+        current.getEndpoint(ENDPOINT);
+
+        // Request, which has started with the retiring configuration, invokes the endpoint first time
+        retiring.getEndpoint(ENDPOINT).recordException();
+        assertEquals(0L, server.getAttribute(objectName, "ExceptionCount"));
+
+        retiring.close();
+        assertTrue(server.isRegistered(objectName));
+        current.close();
+    }
+}
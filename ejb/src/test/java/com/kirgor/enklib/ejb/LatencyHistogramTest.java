@@ -0,0 +1,94 @@
+package com.kirgor.enklib.ejb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test
+    public void empty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void statistics() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(20);
+        histogram.record(-5);
+        assertEquals(3, histogram.getCount());
+        assertEquals(10, histogram.getMean(), 0);
+        assertEquals(20, histogram.getMax());
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 90 durations in bucket 64..127, 9 in bucket 1024..2047 and one outlier
+        for (int i = 0; i < 90; i++) {
+            histogram.record(100);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(1500);
+        }
+        histogram.record(1000000);
+
+        assertEquals(127, histogram.getPercentile(0));
+        assertEquals(127, histogram.getPercentile(50));
+        assertEquals(127, histogram.getPercentile(90));
+        assertEquals(2047, histogram.getPercentile(90.5));
+        assertEquals(2047, histogram.getPercentile(99));
+        // Upper bound of the last bucket is capped by the maximum
+        assertEquals(1000000, histogram.getPercentile(99.5));
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void bucketBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        assertEquals(0, histogram.getPercentile(100));
+
+        histogram = new LatencyHistogram();
+        histogram.record(64);
+        histogram.record(200);
+        // 64 is the lower bound of its bucket, so its percentile is the upper bound
+        assertEquals(127, histogram.getPercentile(50));
+        assertEquals(200, histogram.getPercentile(100));
+
+        histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(1);
+        assertEquals(1, histogram.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void concurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        histogram.record(i + offset);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(40000, histogram.getCount());
+        assertEquals(9999 + 3, histogram.getMax());
+        assertEquals(histogram.getMax(), histogram.getPercentile(100));
+    }
+}
@@ -0,0 +1,82 @@
+package com.kirgor.enklib.ejb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LoginThrottleTest {
+    @Test
+    public void lockout() {
+        LoginThrottle throttle = new LoginThrottle(null, null, 3, 60000, 100);
+        throttle.recordFailure("user");
+        throttle.recordFailure("user");
+        assertFalse(throttle.isLockedOut("user"));
+        assertTrue(throttle.tryAcquire("user", "10.0.0.1"));
+
+        throttle.recordFailure("user");
+        assertTrue(throttle.isLockedOut("user"));
+        assertFalse(throttle.tryAcquire("user", "10.0.0.1"));
+        assertTrue(throttle.tryAcquire("other", "10.0.0.1"));
+        assertEquals(1, throttle.getRejectedCount());
+
+        throttle.recordSuccess("user");
+        assertFalse(throttle.isLockedOut("user"));
+    }
+
+    @Test
+    public void decay() throws Exception {
+        LoginThrottle throttle = new LoginThrottle(null, null, 2, 100, 100);
+        throttle.recordFailure("user");
+        throttle.recordFailure("user");
+        assertTrue(throttle.isLockedOut("user"));
+
+        // Count halves each 100 ms, so it drops below the threshold quickly
+        Thread.sleep(150);
+        assertFalse(throttle.isLockedOut("user"));
+        throttle.recordFailure("user");
+        assertTrue(throttle.isLockedOut("user"));
+    }
+
+    @Test
+    public void lockoutDoesNotSpendPermits() {
+        RateLimiter addressLimiter = new RateLimiter(0.001, 1, 100);
+        LoginThrottle throttle = new LoginThrottle(null, addressLimiter, 1, 60000, 100);
+        throttle.recordFailure("user");
+        assertFalse(throttle.tryAcquire("user", "10.0.0.1"));
+        assertTrue(throttle.tryAcquire("other", "10.0.0.1"));
+    }
+
+    @Test
+    public void principalRejectionDoesNotSpendAddressPermit() {
+        RateLimiter principalLimiter = new RateLimiter(0.001, 1, 100);
+        RateLimiter addressLimiter = new RateLimiter(0.001, 2, 100);
+        LoginThrottle throttle = new LoginThrottle(principalLimiter, addressLimiter, 0, 0, 100);
+        assertTrue(throttle.tryAcquire("user", "10.0.0.1"));
+        assertFalse(throttle.tryAcquire("user", "10.0.0.1"));
+        assertFalse(throttle.tryAcquire("user", "10.0.0.1"));
+        assertTrue(throttle.tryAcquire("other", "10.0.0.1"));
+        assertFalse(throttle.tryAcquire("another", "10.0.0.1"));
+    }
+
+    @Test
+    public void boundedKeys() {
+        LoginThrottle throttle = new LoginThrottle(null, null, 5, 60000, 100);
+        for (int i = 0; i < 10000; i++) {
+            throttle.recordFailure("user" + i);
+            assertTrue(throttle.getKeyCount() <= 100);
+        }
+    }
+
+    @Test
+    public void lockoutSurvivesNewPrincipals() {
+        LoginThrottle throttle = new LoginThrottle(null, null, 3, 60000, 100);
+        for (int i = 0; i < 3; i++) {
+            throttle.recordFailure("victim");
+        }
+        for (int i = 0; i < 10000; i++) {
+            throttle.recordFailure("user" + i);
+        }
+        assertTrue(throttle.getKeyCount() <= 100);
+        assertTrue(throttle.isLockedOut("victim"));
+    }
+}
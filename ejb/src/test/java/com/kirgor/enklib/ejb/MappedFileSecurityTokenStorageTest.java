@@ -0,0 +1,164 @@
+package com.kirgor.enklib.ejb;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeNotNull;
+
+public class MappedFileSecurityTokenStorageTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reopen() throws IOException {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        MappedFileSecurityTokenStorage storage = create(file, 64);
+        storage.add("token1", "user1");
+        storage.add("token2", 42);
+        storage.remove("token2");
+        storage.close();
+
+        storage = create(file, 64);
+        assertEquals("user1", storage.get("token1"));
+        assertNull(storage.get("token2"));
+        assertEquals(1, storage.getActiveCount());
+        storage.close();
+    }
+
+    @Test
+    public void dropTornSlots() throws IOException {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        MappedFileSecurityTokenStorage storage = create(file, 64);
+        storage.add("token1", "user1");
+        storage.add("token2", "user2");
+        storage.close();
+
+        // Damage the principal of the second token, as if the process crashed in the middle of the write
+        corrupt(file, "user2");
+
+        storage = create(file, 64);
+        assertEquals("user1", storage.get("token1"));
+        assertNull(storage.get("token2"));
+        assertEquals(1, storage.getActiveCount());
+        storage.close();
+    }
+
+    @Test
+    public void compact() throws IOException {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        MappedFileSecurityTokenStorage storage = create(file, 8);
+        for (int i = 0; i < 100; i++) {
+            storage.add("removed" + i, "user" + i);
+            storage.remove("removed" + i);
+        }
+        for (int i = 0; i < 20; i++) {
+            storage.add("token" + i, "user" + i);
+        }
+        assertTrue(storage.getCapacity() > 20);
+        assertEquals(20, storage.getActiveCount());
+        assertFalse(new File(file.getPath() + ".compact").exists());
+        storage.close();
+
+        storage = create(file, 8);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("user" + i, storage.get("token" + i));
+        }
+        assertNull(storage.get("removed0"));
+        storage.close();
+    }
+
+    @Test
+    public void slidingExpiration() throws Exception {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        MappedFileSecurityTokenStorage storage = create(file, 64);
+        storage.setTimeToLive(1500);
+        storage.add("token", "user");
+
+        Thread.sleep(1000);
+        assertEquals("user", storage.get("token"));
+        Thread.sleep(1000);
+        assertEquals("user", storage.get("token"));
+
+        storage.setSlidingExpiration(false);
+        Thread.sleep(1600);
+        assertNull(storage.get("token"));
+        storage.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closed() throws IOException {
+        MappedFileSecurityTokenStorage storage = create(new File(folder.getRoot(), "tokens.dat"), 64);
+        storage.add("token", "user");
+        storage.close();
+        storage.get("token");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fileIsRequired() {
+        new MappedFileSecurityTokenStorage().get("token");
+    }
+
+    @Test
+    public void refuseWritableByOthers() throws IOException {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        assumeNotNull(Files.getFileAttributeView(folder.getRoot().toPath(), PosixFileAttributeView.class));
+        Files.createFile(file.toPath());
+        Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString("rw-rw-rw-"));
+
+        MappedFileSecurityTokenStorage storage = create(file, 64);
+        try {
+            storage.get("token");
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause().getMessage().contains("other users"));
+        }
+    }
+
+    @Test
+    public void createOwnerOnly() throws IOException {
+        File file = new File(folder.getRoot(), "tokens.dat");
+        assumeNotNull(Files.getFileAttributeView(folder.getRoot().toPath(), PosixFileAttributeView.class));
+        MappedFileSecurityTokenStorage storage = create(file, 64);
+        storage.add("token", "user");
+        storage.close();
+
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+    }
+
+    private static MappedFileSecurityTokenStorage create(File file, int capacity) {
+        MappedFileSecurityTokenStorage storage = new MappedFileSecurityTokenStorage();
+        storage.setFile(file);
+        storage.setInitialCapacity(capacity);
+        storage.setInitialSlotSize(64);
+        return storage;
+    }
+
+    private static void corrupt(File file, String text) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        byte[] needle = text.getBytes(Charset.forName("UTF-8"));
+        for (int i = 0; i + needle.length <= bytes.length; i++) {
+            boolean found = true;
+            for (int j = 0; j < needle.length && found; j++) {
+                found = bytes[i + j] == needle[j];
+            }
+            if (found) {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.seek(i);
+                raf.write(bytes[i] ^ 0x55);
+                raf.close();
+                return;
+            }
+        }
+        fail("Text is not found in the file.");
+    }
+}
@@ -0,0 +1,68 @@
+package com.kirgor.enklib.ejb;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+    @Test
+    public void burst() {
+        RateLimiter limiter = new RateLimiter(0.001, 3, 100);
+        assertTrue(limiter.tryAcquire("user1"));
+        assertTrue(limiter.tryAcquire("user1"));
+        assertTrue(limiter.tryAcquire("user1"));
+        assertFalse(limiter.tryAcquire("user1"));
+
+        // Other keys have their own buckets
+        assertTrue(limiter.tryAcquire("user2"));
+    }
+
+    @Test
+    public void refill() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1, 100);
+        assertTrue(limiter.tryAcquire("user"));
+        assertFalse(limiter.tryAcquire("user"));
+        Thread.sleep(100);
+        assertTrue(limiter.tryAcquire("user"));
+    }
+
+    @Test
+    public void boundedKeys() {
+        RateLimiter limiter = new RateLimiter(0.001, 3, 100);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(limiter.tryAcquire("user" + i));
+            assertTrue(limiter.getKeyCount() <= 100);
+        }
+    }
+
+    @Test
+    public void evictIdleFirst() throws Exception {
+        RateLimiter limiter = new RateLimiter(20, 1, 16);
+        for (int i = 0; i < 15; i++) {
+            limiter.tryAcquire("idle" + i);
+        }
+        Thread.sleep(100);
+        limiter.tryAcquire("busy");
+        limiter.tryAcquire("new");
+        assertEquals(2, limiter.getKeyCount());
+        assertFalse(limiter.tryAcquire("busy"));
+    }
+
+    @Test
+    public void drainedBucketSurvivesNewKeys() {
+        RateLimiter limiter = new RateLimiter(0.001, 3, 100);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(limiter.tryAcquire("victim"));
+        }
+        for (int i = 0; i < 10000; i++) {
+            limiter.tryAcquire("user" + i);
+        }
+        assertTrue(limiter.getKeyCount() <= 100);
+        assertFalse(limiter.tryAcquire("victim"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxKeysIsRequired() {
+        new RateLimiter(1, 1, 0);
+    }
+}
@@ -0,0 +1,173 @@
+package com.kirgor.enklib.ejb;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReplicatedSecurityTokenStorageTest {
+    @Test
+    public void nearCacheHits() throws Exception {
+        InMemoryRemoteSecurityTokenStore store = new InMemoryRemoteSecurityTokenStore();
+        ReplicatedSecurityTokenStorage storage = new ReplicatedSecurityTokenStorage(store);
+        storage.add("token", "user");
+        flush(storage);
+
+        // Write to the remote store invalidates own entry too, so the first lookup goes remote
+        assertEquals("user", storage.get("token"));
+        assertEquals("user", storage.get("token"));
+        assertEquals(1, storage.getRemoteLookupCount());
+        assertEquals(1, storage.getHitCount());
+
+        // Unknown tokens are cached as well
+        assertNull(storage.get("unknown"));
+        assertNull(storage.get("unknown"));
+        assertEquals(2, storage.getRemoteLookupCount());
+        assertEquals(2, storage.getHitCount());
+
+        storage.setNearCacheTimeToLive(0);
+        store.put("other", "user", 0);
+        assertEquals("user", storage.get("other"));
+        assertEquals("user", storage.get("other"));
+        assertEquals(4, storage.getRemoteLookupCount());
+        storage.close();
+    }
+
+    @Test
+    public void invalidation() throws Exception {
+        InMemoryRemoteSecurityTokenStore store = new InMemoryRemoteSecurityTokenStore();
+        ReplicatedSecurityTokenStorage first = new ReplicatedSecurityTokenStorage(store);
+        ReplicatedSecurityTokenStorage second = new ReplicatedSecurityTokenStorage(store);
+
+        assertNull(second.get("token"));
+        first.add("token", "user");
+        flush(first);
+        assertEquals("user", second.get("token"));
+
+        first.remove("token");
+        assertNull(first.get("token"));
+        flush(first);
+        assertNull(second.get("token"));
+        assertNull(store.get("token"));
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void writeBehind() throws Exception {
+        BlockingStore store = new BlockingStore();
+        ReplicatedSecurityTokenStorage storage = new ReplicatedSecurityTokenStorage(store);
+        storage.add("token", "user");
+
+        // Own change is visible before it reaches the remote store
+        assertEquals("user", storage.get("token"));
+        assertNull(store.get("token"));
+        assertEquals(1, storage.getPendingWriteCount());
+
+        store.latch.countDown();
+        flush(storage);
+        assertEquals("user", store.get("token"));
+        assertEquals(0, storage.getWriteFailureCount());
+        storage.close();
+    }
+
+    @Test
+    public void writeFailure() throws Exception {
+        InMemoryRemoteSecurityTokenStore store = new InMemoryRemoteSecurityTokenStore() {
+            @Override
+            public void put(String token, Object principal, long timeToLive) {
+                throw new IllegalStateException("Store is down.");
+            }
+        };
+        ReplicatedSecurityTokenStorage storage = new ReplicatedSecurityTokenStorage(store);
+        storage.add("token", "user");
+        flush(storage);
+
+        // Token, which other nodes can't see, is dropped locally too
+        assertEquals(1, storage.getWriteFailureCount());
+        assertNull(storage.get("token"));
+        storage.close();
+    }
+
+    @Test
+    public void retryFailedRemoval() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        InMemoryRemoteSecurityTokenStore store = new InMemoryRemoteSecurityTokenStore() {
+            @Override
+            public void remove(String token) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("Store is down.");
+                }
+                super.remove(token);
+            }
+        };
+        ReplicatedSecurityTokenStorage storage = new ReplicatedSecurityTokenStorage(store);
+        ReplicatedSecurityTokenStorage other = new ReplicatedSecurityTokenStorage(store);
+        storage.add("token", "user");
+        flush(storage);
+        assertEquals("user", other.get("token"));
+
+        // Token stays removed on this node, even without the near cache
+        storage.setNearCacheTimeToLive(0);
+        storage.remove("token");
+        assertNull(storage.get("token"));
+        assertEquals(1, storage.getPendingRemovalCount());
+
+        flush(storage);
+        assertEquals(2, storage.getWriteFailureCount());
+        assertEquals(0, storage.getPendingRemovalCount());
+        assertNull(store.get("token"));
+        assertNull(other.get("token"));
+        storage.close();
+        other.close();
+    }
+
+    @Test
+    public void closeFlushesPendingChanges() throws Exception {
+        BlockingStore store = new BlockingStore();
+        ReplicatedSecurityTokenStorage storage = new ReplicatedSecurityTokenStorage(store);
+        storage.add("first", "user");
+        storage.add("second", "user");
+        storage.close();
+
+        store.latch.countDown();
+        flush(storage);
+        assertEquals("user", store.get("first"));
+        assertEquals("user", store.get("second"));
+
+        // Changes made after close are not written
+        storage.add("third", "user");
+        assertEquals(0, storage.getPendingWriteCount());
+        Thread.sleep(50);
+        assertNull(store.get("third"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void remoteStoreNotSet() {
+        new ReplicatedSecurityTokenStorage().add("token", "user");
+    }
+
+    private static void flush(ReplicatedSecurityTokenStorage storage) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (storage.getPendingWriteCount() > 0) {
+            assertTrue("Changes have not been written.", System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static class BlockingStore extends InMemoryRemoteSecurityTokenStore {
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void put(String token, Object principal, long timeToLive) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            super.put(token, principal, timeToLive);
+        }
+    }
+}
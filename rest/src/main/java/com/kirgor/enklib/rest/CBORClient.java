@@ -0,0 +1,82 @@
+package com.kirgor.enklib.rest;
+
+import com.google.gson.Gson;
+import org.apache.http.HttpResponse;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RESTful client for API with application/cbor content type.
+ * <p/>
+ * <a href="http://tools.ietf.org/html/rfc7049">CBOR</a> is a binary counterpart of JSON, so entities are mapped
+ * by the same rules as in {@link JSONClient}. Responses are decoded from the stream as it's read.
+ */
+public class CBORClient extends RESTClient {
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Creates {@link CBORClient} instance.
+     *
+     * @param baseUrl Base URL, which all request paths will be appended to.
+     */
+    public CBORClient(String baseUrl) {
+        super(baseUrl, "application/cbor");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> T parseEntity(Class<T> entityClass, HttpResponse httpResponse) throws IOException {
+        CBORReader reader = new CBORReader(new BufferedInputStream(httpResponse.getEntity().getContent()));
+        if (!reader.hasNext()) {
+            return null;
+        }
+        return GSON.fromJson(reader.read(), entityClass);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> List<T> parseListEntity(Class<T> entityClass, HttpResponse httpResponse) throws IOException {
+        CBORReader reader = new CBORReader(new BufferedInputStream(httpResponse.getEntity().getContent()));
+        if (!reader.hasNext()) {
+            return null;
+        }
+
+        ArrayList<T> result = new ArrayList<T>();
+        long size = reader.readArrayHeader();
+        if (size == -1) {
+            while (!reader.readBreak()) {
+                result.add(GSON.fromJson(reader.read(), entityClass));
+            }
+        } else {
+            for (long i = 0; i < size; i++) {
+                result.add(GSON.fromJson(reader.read(), entityClass));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void writePayload(Object payload, OutputStream outputStream) throws IOException {
+        new CBORWriter(outputStream).write(GSON.toJsonTree(payload));
+    }
+
+    /**
+     * Converts payload to JSON, which is the diagnostic notation of the written CBOR data item, so it can be logged.
+     * Decimal fractions are shown as plain numbers.
+     */
+    @Override
+    protected String payloadToString(Object entity) {
+        return GSON.toJson(entity);
+    }
+}
@@ -0,0 +1,335 @@
+package com.kirgor.enklib.rest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * Reads <a href="http://tools.ietf.org/html/rfc7049">CBOR</a> data items from the stream into GSON element trees.
+ * <p/>
+ * Data items are decoded one by one as the stream is read, so top-level arrays can be consumed element by element
+ * without holding the whole body. Bignums and decimal fractions (tags 2, 3 and 4) are decoded to numbers,
+ * other tags are skipped. Byte strings are represented as arrays of numbers, like GSON does for byte arrays.
+ */
+class CBORReader {
+    private static final int BREAK = 0xff;
+    private static final int INDEFINITE = 31;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final InputStream inputStream;
+    private final byte[] buffer = new byte[8];
+    private int peeked = -1;
+
+    CBORReader(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Checks if there is at least one more byte in the stream.
+     *
+     * @throws IOException
+     */
+    boolean hasNext() throws IOException {
+        if (peeked == -1) {
+            peeked = inputStream.read();
+        }
+        return peeked != -1;
+    }
+
+    /**
+     * Reads the head of the array.
+     *
+     * @return Number of array elements or -1 if array has indefinite length and ends with break.
+     * @throws IOException If next data item is not an array.
+     */
+    long readArrayHeader() throws IOException {
+        int initial = readInitial();
+        while (initial >>> 5 == CBORWriter.MAJOR_TAG) {
+            readArgument(initial);
+            initial = readInitial();
+        }
+        if (initial >>> 5 != CBORWriter.MAJOR_ARRAY) {
+            throw new IOException("CBOR array expected, found major type " + (initial >>> 5) + ".");
+        }
+        return (initial & 0x1f) == INDEFINITE ? -1 : readArgument(initial);
+    }
+
+    /**
+     * Consumes break code of indefinite length item, if it's the next byte of the stream.
+     *
+     * @throws IOException
+     */
+    boolean readBreak() throws IOException {
+        if (!hasNext()) {
+            throw new EOFException("Unexpected end of CBOR data.");
+        }
+        if (peeked == BREAK) {
+            peeked = -1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next data item with all its children.
+     *
+     * @throws IOException
+     */
+    JsonElement read() throws IOException {
+        int initial = readInitial();
+        if (initial == BREAK) {
+            throw new IOException("Unexpected CBOR break code.");
+        }
+
+        int major = initial >>> 5;
+        int info = initial & 0x1f;
+        switch (major) {
+            case CBORWriter.MAJOR_UNSIGNED:
+                return integer(readArgument(initial), false);
+            case CBORWriter.MAJOR_NEGATIVE:
+                return integer(readArgument(initial), true);
+            case CBORWriter.MAJOR_BYTES:
+                return readByteString(initial);
+            case CBORWriter.MAJOR_TEXT:
+                return new JsonPrimitive(readTextString(initial));
+            case CBORWriter.MAJOR_ARRAY:
+                JsonArray array = new JsonArray();
+                if (info == INDEFINITE) {
+                    while (!readBreak()) {
+                        array.add(read());
+                    }
+                } else {
+                    for (long i = readArgument(initial); i > 0; i--) {
+                        array.add(read());
+                    }
+                }
+                return array;
+            case CBORWriter.MAJOR_MAP:
+                JsonObject object = new JsonObject();
+                if (info == INDEFINITE) {
+                    while (!readBreak()) {
+                        object.add(readKey(), read());
+                    }
+                } else {
+                    for (long i = readArgument(initial); i > 0; i--) {
+                        object.add(readKey(), read());
+                    }
+                }
+                return object;
+            case CBORWriter.MAJOR_TAG:
+                return readTagged(readArgument(initial));
+            default:
+                return readSimple(initial);
+        }
+    }
+
+    private JsonElement readTagged(long tag) throws IOException {
+        if (tag == CBORWriter.TAG_POSITIVE_BIGNUM || tag == CBORWriter.TAG_NEGATIVE_BIGNUM) {
+            return new JsonPrimitive(readBignum(tag));
+        }
+        if (tag != CBORWriter.TAG_DECIMAL_FRACTION) {
+            return read();
+        }
+
+        int initial = readInitial();
+        if (initial >>> 5 != CBORWriter.MAJOR_ARRAY || (initial & 0x1f) == INDEFINITE || readArgument(initial) != 2) {
+            throw new IOException("CBOR decimal fraction must be an array of two items.");
+        }
+        JsonElement exponent = read();
+        JsonElement mantissa = read();
+        if (!exponent.isJsonPrimitive() || !mantissa.isJsonPrimitive()) {
+            throw new IOException("CBOR decimal fraction must consist of integers.");
+        }
+        return new JsonPrimitive(new BigDecimal(mantissa.getAsBigInteger(), -exponent.getAsInt()));
+    }
+
+    private BigInteger readBignum(long tag) throws IOException {
+        int initial = readInitial();
+        if (initial >>> 5 != CBORWriter.MAJOR_BYTES || (initial & 0x1f) == INDEFINITE) {
+            throw new IOException("CBOR bignum must be a byte string.");
+        }
+        BigInteger value = new BigInteger(1, readFully(readArgument(initial)));
+        return tag == CBORWriter.TAG_POSITIVE_BIGNUM ? value : BigInteger.ONE.negate().subtract(value);
+    }
+
+    private String readKey() throws IOException {
+        JsonElement key = read();
+        if (key.isJsonPrimitive()) {
+            return key.getAsString();
+        }
+        throw new IOException("CBOR map keys must be strings or numbers.");
+    }
+
+    private JsonElement readSimple(int initial) throws IOException {
+        switch (initial) {
+            case CBORWriter.FALSE:
+                return new JsonPrimitive(false);
+            case CBORWriter.TRUE:
+                return new JsonPrimitive(true);
+            case CBORWriter.NULL:
+            case 0xf7:
+                return JsonNull.INSTANCE;
+            case 0xf9:
+                return new JsonPrimitive(halfToFloat((int) readBytes(2)));
+            case CBORWriter.FLOAT32:
+                return new JsonPrimitive(Float.intBitsToFloat((int) readBytes(4)));
+            case CBORWriter.FLOAT64:
+                return new JsonPrimitive(Double.longBitsToDouble(readBytes(8)));
+            default:
+                throw new IOException("Unsupported CBOR simple value " + Integer.toHexString(initial) + ".");
+        }
+    }
+
+    private JsonElement readByteString(int initial) throws IOException {
+        JsonArray array = new JsonArray();
+        if ((initial & 0x1f) == INDEFINITE) {
+            while (!readBreak()) {
+                int chunk = readInitial();
+                if (chunk >>> 5 != CBORWriter.MAJOR_BYTES || (chunk & 0x1f) == INDEFINITE) {
+                    throw new IOException("Invalid chunk of CBOR byte string.");
+                }
+                for (byte b : readFully(readArgument(chunk))) {
+                    array.add(new JsonPrimitive(b));
+                }
+            }
+        } else {
+            for (byte b : readFully(readArgument(initial))) {
+                array.add(new JsonPrimitive(b));
+            }
+        }
+        return array;
+    }
+
+    private String readTextString(int initial) throws IOException {
+        if ((initial & 0x1f) != INDEFINITE) {
+            return new String(readFully(readArgument(initial)), "UTF-8");
+        }
+
+        // Chunks are concatenated as bytes, since UTF-8 sequences of a valid string never span them anyway
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        while (!readBreak()) {
+            int chunk = readInitial();
+            if (chunk >>> 5 != CBORWriter.MAJOR_TEXT || (chunk & 0x1f) == INDEFINITE) {
+                throw new IOException("Invalid chunk of CBOR text string.");
+            }
+            result.write(readFully(readArgument(chunk)));
+        }
+        return result.toString("UTF-8");
+    }
+
+    private static JsonElement integer(long argument, boolean negative) {
+        if (argument >= 0) {
+            return new JsonPrimitive(negative ? -1 - argument : argument);
+        }
+
+        // Argument doesn't fit signed long
+        BigInteger value = new BigInteger(1, new byte[]{
+                (byte) (argument >>> 56), (byte) (argument >>> 48), (byte) (argument >>> 40), (byte) (argument >>> 32),
+                (byte) (argument >>> 24), (byte) (argument >>> 16), (byte) (argument >>> 8), (byte) argument
+        });
+        return new JsonPrimitive(negative ? BigInteger.ONE.negate().subtract(value) : value);
+    }
+
+    private static float halfToFloat(int half) {
+        int exponent = (half >>> 10) & 0x1f;
+        int mantissa = half & 0x3ff;
+        float value;
+        if (exponent == 0) {
+            value = mantissa * (float) Math.pow(2, -24);
+        } else if (exponent == 0x1f) {
+            value = mantissa == 0 ? Float.POSITIVE_INFINITY : Float.NaN;
+        } else {
+            value = (mantissa + 1024) * (float) Math.pow(2, exponent - 25);
+        }
+        return (half & 0x8000) != 0 ? -value : value;
+    }
+
+    private int readInitial() throws IOException {
+        int result = peeked;
+        if (result == -1) {
+            result = inputStream.read();
+            if (result == -1) {
+                throw new EOFException("Unexpected end of CBOR data.");
+            }
+        }
+        peeked = -1;
+        return result;
+    }
+
+    /**
+     * Reads argument of the data item, which follows the initial byte.
+     *
+     * @return Argument value, which is treated as unsigned.
+     */
+    private long readArgument(int initial) throws IOException {
+        int info = initial & 0x1f;
+        if (info < 24) {
+            return info;
+        }
+        switch (info) {
+            case 24:
+                return readBytes(1);
+            case 25:
+                return readBytes(2);
+            case 26:
+                return readBytes(4);
+            case 27:
+                return readBytes(8);
+            default:
+                throw new IOException("Invalid CBOR additional information " + info + ".");
+        }
+    }
+
+    private long readBytes(int count) throws IOException {
+        readFully(buffer, count);
+        long result = 0;
+        for (int i = 0; i < count; i++) {
+            result = (result << 8) | (buffer[i] & 0xff);
+        }
+        return result;
+    }
+
+    private byte[] readFully(long length) throws IOException {
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("CBOR string is too long.");
+        }
+        // Length comes from the data, so memory is allocated as bytes actually arrive
+        if (length <= CHUNK_SIZE) {
+            byte[] result = new byte[(int) length];
+            readFully(result, result.length);
+            return result;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream(CHUNK_SIZE);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (long remaining = length; remaining > 0; remaining -= CHUNK_SIZE) {
+            int count = (int) Math.min(remaining, CHUNK_SIZE);
+            readFully(chunk, count);
+            result.write(chunk, 0, count);
+        }
+        return result.toByteArray();
+    }
+
+    private void readFully(byte[] target, int length) throws IOException {
+        int offset = 0;
+        if (peeked != -1 && length > 0) {
+            target[offset++] = (byte) peeked;
+            peeked = -1;
+        }
+        while (offset < length) {
+            int count = inputStream.read(target, offset, length - offset);
+            if (count == -1) {
+                throw new EOFException("Unexpected end of CBOR data.");
+            }
+            offset += count;
+        }
+    }
+}
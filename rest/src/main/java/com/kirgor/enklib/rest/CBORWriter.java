@@ -0,0 +1,206 @@
+package com.kirgor.enklib.rest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes GSON element trees in <a href="http://tools.ietf.org/html/rfc7049">CBOR</a> format.
+ * <p/>
+ * Arrays, maps and strings are always written with definite length. {@link BigDecimal} numbers are written
+ * as decimal fractions (tag 4) and integers, which don't fit long, as bignums (tags 2 and 3), so they keep exact value.
+ */
+class CBORWriter {
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_ARRAY = 4;
+    static final int MAJOR_MAP = 5;
+    static final int MAJOR_TAG = 6;
+    static final int MAJOR_SIMPLE = 7;
+
+    static final int TAG_POSITIVE_BIGNUM = 2;
+    static final int TAG_NEGATIVE_BIGNUM = 3;
+    static final int TAG_DECIMAL_FRACTION = 4;
+
+    static final int FALSE = 0xf4;
+    static final int TRUE = 0xf5;
+    static final int NULL = 0xf6;
+    static final int FLOAT32 = 0xfa;
+    static final int FLOAT64 = 0xfb;
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private final OutputStream outputStream;
+    private final byte[] buffer = new byte[9];
+
+    CBORWriter(OutputStream outputStream) {
+        this.outputStream = outputStream;
+    }
+
+    /**
+     * Writes element with all its children.
+     *
+     * @param element Element to write, null is written as CBOR null.
+     * @throws IOException
+     */
+    void write(JsonElement element) throws IOException {
+        if (element == null || element.isJsonNull()) {
+            outputStream.write(NULL);
+        } else if (element.isJsonPrimitive()) {
+            writePrimitive(element.getAsJsonPrimitive());
+        } else if (element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeHead(MAJOR_ARRAY, array.size());
+            for (JsonElement item : array) {
+                write(item);
+            }
+        } else {
+            JsonObject object = element.getAsJsonObject();
+            writeHead(MAJOR_MAP, object.entrySet().size());
+            for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeText(entry.getKey());
+                write(entry.getValue());
+            }
+        }
+    }
+
+    private void writePrimitive(JsonPrimitive primitive) throws IOException {
+        if (primitive.isBoolean()) {
+            outputStream.write(primitive.getAsBoolean() ? TRUE : FALSE);
+        } else if (primitive.isString()) {
+            writeText(primitive.getAsString());
+        } else {
+            writeNumber(primitive.getAsNumber());
+        }
+    }
+
+    private void writeNumber(Number number) throws IOException {
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte
+                || number instanceof AtomicInteger || number instanceof AtomicLong) {
+            writeLong(number.longValue());
+        } else if (number instanceof Float) {
+            writeFloat(number.floatValue());
+        } else if (number instanceof Double) {
+            writeDouble(number.doubleValue());
+        } else if (number instanceof BigDecimal) {
+            writeDecimalFraction((BigDecimal) number);
+        } else if (number instanceof BigInteger) {
+            writeBigInteger((BigInteger) number);
+        } else {
+            // Lazily parsed numbers of GSON keep only their textual form
+            String text = number.toString();
+            if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+                writeDouble(Double.parseDouble(text));
+            } else {
+                writeBigInteger(new BigInteger(text));
+            }
+        }
+    }
+
+    private void writeBigInteger(BigInteger value) throws IOException {
+        if (value.compareTo(LONG_MIN) >= 0 && value.compareTo(LONG_MAX) <= 0) {
+            writeLong(value.longValue());
+        } else if (value.signum() > 0) {
+            writeHead(MAJOR_TAG, TAG_POSITIVE_BIGNUM);
+            writeBytes(value);
+        } else {
+            // Negative bignum n encodes value -1 - n
+            writeHead(MAJOR_TAG, TAG_NEGATIVE_BIGNUM);
+            writeBytes(BigInteger.ONE.negate().subtract(value));
+        }
+    }
+
+    private void writeDecimalFraction(BigDecimal value) throws IOException {
+        // Value is mantissa * 10^exponent, where exponent is negated scale
+        writeHead(MAJOR_TAG, TAG_DECIMAL_FRACTION);
+        writeHead(MAJOR_ARRAY, 2);
+        writeLong(-(long) value.scale());
+        writeBigInteger(value.unscaledValue());
+    }
+
+    private void writeBytes(BigInteger value) throws IOException {
+        byte[] bytes = value.toByteArray();
+        // Sign byte of two's complement is not needed for unsigned value
+        int offset = bytes[0] == 0 && bytes.length > 1 ? 1 : 0;
+        writeHead(MAJOR_BYTES, bytes.length - offset);
+        outputStream.write(bytes, offset, bytes.length - offset);
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value >= 0) {
+            writeHead(MAJOR_UNSIGNED, value);
+        } else {
+            writeHead(MAJOR_NEGATIVE, -1 - value);
+        }
+    }
+
+    private void writeFloat(float value) throws IOException {
+        int bits = Float.floatToIntBits(value);
+        buffer[0] = (byte) FLOAT32;
+        buffer[1] = (byte) (bits >>> 24);
+        buffer[2] = (byte) (bits >>> 16);
+        buffer[3] = (byte) (bits >>> 8);
+        buffer[4] = (byte) bits;
+        outputStream.write(buffer, 0, 5);
+    }
+
+    private void writeDouble(double value) throws IOException {
+        long bits = Double.doubleToLongBits(value);
+        buffer[0] = (byte) FLOAT64;
+        for (int i = 1; i <= 8; i++) {
+            buffer[i] = (byte) (bits >>> (64 - i * 8));
+        }
+        outputStream.write(buffer, 0, 9);
+    }
+
+    private void writeText(String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        writeHead(MAJOR_TEXT, bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * Writes initial byte of data item with the shortest encoding of its argument.
+     *
+     * @param major Major type.
+     * @param value Unsigned argument.
+     */
+    private void writeHead(int major, long value) throws IOException {
+        int initial = major << 5;
+        if (value < 24) {
+            outputStream.write(initial | (int) value);
+            return;
+        }
+
+        int size;
+        if (value < 0x100L) {
+            buffer[0] = (byte) (initial | 24);
+            size = 1;
+        } else if (value < 0x10000L) {
+            buffer[0] = (byte) (initial | 25);
+            size = 2;
+        } else if (value < 0x100000000L) {
+            buffer[0] = (byte) (initial | 26);
+            size = 4;
+        } else {
+            buffer[0] = (byte) (initial | 27);
+            size = 8;
+        }
+        for (int i = 1; i <= size; i++) {
+            buffer[i] = (byte) (value >>> ((size - i) * 8));
+        }
+        outputStream.write(buffer, 0, size + 1);
+    }
+}
@@ -0,0 +1,78 @@
+package com.kirgor.enklib.rest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Circuit breaker, which is maintained by {@link RESTClient} for each host.
+ * <p/>
+ * Breaker opens after configured count of consecutive failures. While it's open, requests are rejected.
+ * When open time passes, breaker becomes half-open and lets single probe request through,
+ * which result either closes the breaker or opens it again.
+ */
+public class CircuitBreaker {
+    /**
+     * State of the circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    /**
+     * Gets current state of the circuit breaker.
+     */
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * Gets count of consecutive failures registered by the circuit breaker.
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * Checks whether request is allowed. If it is, caller must report result of the request
+     * by calling either recordSuccess() or recordFailure().
+     *
+     * @param openTime Time in milliseconds, during which breaker stays open.
+     * @return True if request is allowed, otherwise false.
+     */
+    public boolean allowRequest(long openTime) {
+        switch (state.get()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                // Only one caller wins the transition and becomes the probe
+                return System.currentTimeMillis() - openedAt >= openTime && state.compareAndSet(State.OPEN, State.HALF_OPEN);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records successful request, which closes the breaker.
+     */
+    public void recordSuccess() {
+        consecutiveFailures.set(0);
+        state.set(State.CLOSED);
+    }
+
+    /**
+     * Records failed request, which may open the breaker.
+     *
+     * @param failureThreshold Count of consecutive failures, which opens the breaker.
+     */
+    public void recordFailure(int failureThreshold) {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state.get() == State.HALF_OPEN || failures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+            state.set(State.OPEN);
+        }
+    }
+}
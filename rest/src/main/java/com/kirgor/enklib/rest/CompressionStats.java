@@ -0,0 +1,79 @@
+package com.kirgor.enklib.rest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects amount of bytes, which were transferred by {@link RESTClient} before and after compression.
+ * <p/>
+ * "Wire" bytes are bytes, which were actually sent or received over the network, while "decoded" bytes
+ * are bytes of the payload itself. Ratio between them shows the effectiveness of compression.
+ */
+public class CompressionStats {
+    private final AtomicLong responseWireBytes = new AtomicLong();
+    private final AtomicLong responseDecodedBytes = new AtomicLong();
+    private final AtomicLong requestWireBytes = new AtomicLong();
+    private final AtomicLong requestDecodedBytes = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+
+    /**
+     * Gets amount of response entity bytes, which were received over the network.
+     */
+    public long getResponseWireBytes() {
+        return responseWireBytes.get();
+    }
+
+    /**
+     * Gets amount of response entity bytes after decompression.
+     */
+    public long getResponseDecodedBytes() {
+        return responseDecodedBytes.get();
+    }
+
+    /**
+     * Gets amount of request payload bytes, which were sent over the network.
+     */
+    public long getRequestWireBytes() {
+        return requestWireBytes.get();
+    }
+
+    /**
+     * Gets amount of request payload bytes before compression.
+     */
+    public long getRequestDecodedBytes() {
+        return requestDecodedBytes.get();
+    }
+
+    /**
+     * Gets count of requests, which payload has been compressed.
+     */
+    public long getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * Resets all counters to zero.
+     */
+    public void reset() {
+        responseWireBytes.set(0);
+        responseDecodedBytes.set(0);
+        requestWireBytes.set(0);
+        requestDecodedBytes.set(0);
+        compressedRequests.set(0);
+    }
+
+    AtomicLong getResponseWireBytesCounter() {
+        return responseWireBytes;
+    }
+
+    AtomicLong getResponseDecodedBytesCounter() {
+        return responseDecodedBytes;
+    }
+
+    void addRequest(long decodedBytes, long wireBytes, boolean compressed) {
+        requestDecodedBytes.addAndGet(decodedBytes);
+        requestWireBytes.addAndGet(wireBytes);
+        if (compressed) {
+            compressedRequests.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.kirgor.enklib.rest;
+
+import org.apache.http.client.utils.DateUtils;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Thread-safe storage of cookies, which are sent by {@link RESTClient}.
+ * <p/>
+ * Considers cookie domain, path, secure flag and expiration (Max-Age and Expires attributes).
+ * Cookies without domain, which are usually added manually, override cookies with the same name received from servers.
+ * Value of Cookie request header is cached for each host and path and rebuilt only when cookies change or expire,
+ * so requests don't pay for building it.
+ */
+public class CookieJar {
+    private static final int MAX_CACHED_HEADERS = 256;
+
+    private final ConcurrentMap<String, Cookie> cookies = new ConcurrentHashMap<String, Cookie>();
+    private volatile ConcurrentMap<String, String> headerCache = new ConcurrentHashMap<String, String>();
+    private volatile long nextExpiryTime = Long.MAX_VALUE;
+
+    /**
+     * Gets snapshot of all cookies, which haven't expired yet.
+     */
+    public List<Cookie> getCookies() {
+        purgeExpired();
+        return new ArrayList<Cookie>(cookies.values());
+    }
+
+    /**
+     * Adds cookie, replacing one with the same name, domain and path.
+     *
+     * @param cookie Cookie to add.
+     */
+    public synchronized void add(Cookie cookie) {
+        if (cookie.isExpired(System.currentTimeMillis())) {
+            if (cookies.remove(cookie.getKey()) != null) {
+                invalidate();
+            }
+            return;
+        }
+
+        Cookie previous = cookies.put(cookie.getKey(), cookie);
+        if (cookie.getExpiryTime() < nextExpiryTime) {
+            nextExpiryTime = cookie.getExpiryTime();
+        }
+        // Servers often send the same cookie with every response, cached headers stay valid in that case
+        if (previous == null || !previous.getValue().equals(cookie.getValue()) || previous.isSecure() != cookie.isSecure()) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Removes all cookies with specified name regardless of their domain and path.
+     *
+     * @param name Cookie name.
+     */
+    public synchronized void remove(String name) {
+        boolean removed = false;
+        for (Iterator<Cookie> iterator = cookies.values().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().getName().equals(name)) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Removes all cookies.
+     */
+    public synchronized void clear() {
+        cookies.clear();
+        invalidate();
+    }
+
+    /**
+     * Parses value of Set-Cookie response header and stores the cookie.
+     *
+     * @param setCookieHeader Value of Set-Cookie header.
+     * @param requestUri      URI of the request, which response contained the header.
+     */
+    public void addFromHeader(String setCookieHeader, URI requestUri) {
+        String[] parts = setCookieHeader.split(";");
+        int equalsIndex = parts[0].indexOf('=');
+        if (equalsIndex <= 0) {
+            return;
+        }
+
+        String name = parts[0].substring(0, equalsIndex).trim();
+        String value = parts[0].substring(equalsIndex + 1).trim();
+        String host = requestUri.getHost() != null ? requestUri.getHost().toLowerCase() : "";
+        String domain = null;
+        String path = null;
+        long expiryTime = Long.MAX_VALUE;
+        boolean maxAgeSpecified = false;
+        boolean secure = false;
+
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            int index = part.indexOf('=');
+            String attributeName = (index >= 0 ? part.substring(0, index) : part).trim();
+            String attributeValue = index >= 0 ? part.substring(index + 1).trim() : "";
+
+            if (attributeName.equalsIgnoreCase("Domain") && attributeValue.length() > 0) {
+                domain = (attributeValue.startsWith(".") ? attributeValue.substring(1) : attributeValue).toLowerCase();
+            } else if (attributeName.equalsIgnoreCase("Path") && attributeValue.startsWith("/")) {
+                path = attributeValue;
+            } else if (attributeName.equalsIgnoreCase("Secure")) {
+                secure = true;
+            } else if (attributeName.equalsIgnoreCase("Max-Age")) {
+                try {
+                    // Max-Age has priority over Expires
+                    expiryTime = System.currentTimeMillis() + Long.parseLong(attributeValue) * 1000;
+                    maxAgeSpecified = true;
+                } catch (NumberFormatException ignored) {
+                }
+            } else if (attributeName.equalsIgnoreCase("Expires") && !maxAgeSpecified) {
+                Date date = DateUtils.parseDate(attributeValue);
+                if (date != null) {
+                    expiryTime = date.getTime();
+                }
+            }
+        }
+
+        // Ignore cookies for domains, which the request host doesn't belong to
+        if (domain != null && !domainMatches(host, domain)) {
+            return;
+        }
+
+        add(new Cookie(name, value, domain != null ? domain : host, domain == null,
+                path != null ? path : getDefaultPath(requestUri), expiryTime, secure));
+    }
+
+    /**
+     * Gets value of Cookie header for the request to specified URI.
+     *
+     * @param requestUri Request URI.
+     * @return Cookie header value or null, if there are no cookies for the request.
+     */
+    public String getCookieHeader(URI requestUri) {
+        if (cookies.isEmpty()) {
+            return null;
+        }
+        if (System.currentTimeMillis() >= nextExpiryTime) {
+            purgeExpired();
+        }
+
+        String host = requestUri.getHost() != null ? requestUri.getHost().toLowerCase() : "";
+        String path = requestUri.getPath() != null && requestUri.getPath().length() > 0 ? requestUri.getPath() : "/";
+        boolean secure = "https".equalsIgnoreCase(requestUri.getScheme());
+        String key = (secure ? "s:" : ":") + host + path;
+
+        ConcurrentMap<String, String> cache = headerCache;
+        String header = cache.get(key);
+        if (header == null) {
+            header = buildCookieHeader(host, path, secure);
+            if (cache.size() >= MAX_CACHED_HEADERS) {
+                cache.clear();
+            }
+            cache.put(key, header);
+        }
+        return header.length() > 0 ? header : null;
+    }
+
+    private String buildCookieHeader(String host, String path, boolean secure) {
+        List<Cookie> matching = new ArrayList<Cookie>();
+        Set<String> manualNames = new HashSet<String>();
+        long now = System.currentTimeMillis();
+        for (Cookie cookie : cookies.values()) {
+            if (cookie.matches(host, path, secure) && !cookie.isExpired(now)) {
+                matching.add(cookie);
+                if (cookie.getDomain() == null) {
+                    manualNames.add(cookie.getName());
+                }
+            }
+        }
+
+        // Cookie, which is sent to any host, has been added manually and overrides server cookies with the same name
+        if (!manualNames.isEmpty()) {
+            for (Iterator<Cookie> iterator = matching.iterator(); iterator.hasNext(); ) {
+                Cookie cookie = iterator.next();
+                if (cookie.getDomain() != null && manualNames.contains(cookie.getName())) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        // Cookies with more specific paths go first
+        Collections.sort(matching, new Comparator<Cookie>() {
+            @Override
+            public int compare(Cookie c1, Cookie c2) {
+                return c2.getPath().length() - c1.getPath().length();
+            }
+        });
+
+        StringBuilder stringBuilder = new StringBuilder();
+        for (Cookie cookie : matching) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append("; ");
+            }
+            stringBuilder.append(cookie.getName()).append('=').append(cookie.getValue());
+        }
+        return stringBuilder.toString();
+    }
+
+    private synchronized void purgeExpired() {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        boolean removed = false;
+        for (Iterator<Cookie> iterator = cookies.values().iterator(); iterator.hasNext(); ) {
+            Cookie cookie = iterator.next();
+            if (cookie.isExpired(now)) {
+                iterator.remove();
+                removed = true;
+            } else if (cookie.getExpiryTime() < next) {
+                next = cookie.getExpiryTime();
+            }
+        }
+        nextExpiryTime = next;
+        if (removed) {
+            invalidate();
+        }
+    }
+
+    private void invalidate() {
+        headerCache = new ConcurrentHashMap<String, String>();
+    }
+
+    private static boolean domainMatches(String host, String domain) {
+        return host.equals(domain) || host.endsWith("." + domain);
+    }
+
+    private static String getDefaultPath(URI requestUri) {
+        String path = requestUri.getPath();
+        if (path == null || !path.startsWith("/")) {
+            return "/";
+        }
+        int lastSlashIndex = path.lastIndexOf('/');
+        return lastSlashIndex > 0 ? path.substring(0, lastSlashIndex) : "/";
+    }
+
+    /**
+     * Immutable cookie, stored in {@link CookieJar}.
+     */
+    public static class Cookie {
+        private final String name;
+        private final String value;
+        private final String domain;
+        private final boolean hostOnly;
+        private final String path;
+        private final long expiryTime;
+        private final boolean secure;
+
+        /**
+         * Creates {@link Cookie} instance.
+         *
+         * @param name       Cookie name.
+         * @param value      Cookie value.
+         * @param domain     Domain, which cookie is sent to, or null if it's sent to any host.
+         * @param hostOnly   True if cookie is sent only to the domain host itself, but not to its subdomains.
+         * @param path       Path, which cookie is sent to (including subpaths).
+         * @param expiryTime Time in milliseconds, when cookie expires, or Long.MAX_VALUE for session cookies.
+         * @param secure     True if cookie is sent only via HTTPS.
+         */
+        public Cookie(String name, String value, String domain, boolean hostOnly, String path, long expiryTime, boolean secure) {
+            this.name = name;
+            this.value = value;
+            this.domain = domain;
+            this.hostOnly = hostOnly;
+            this.path = path;
+            this.expiryTime = expiryTime;
+            this.secure = secure;
+        }
+
+        /**
+         * Creates session cookie, which is sent to any host and path.
+         *
+         * @param name  Cookie name.
+         * @param value Cookie value.
+         */
+        public Cookie(String name, String value) {
+            this(name, value, null, false, "/", Long.MAX_VALUE, false);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getDomain() {
+            return domain;
+        }
+
+        public boolean isHostOnly() {
+            return hostOnly;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public long getExpiryTime() {
+            return expiryTime;
+        }
+
+        public boolean isSecure() {
+            return secure;
+        }
+
+        /**
+         * Indicates whether cookie has expired at the specified time.
+         */
+        public boolean isExpired(long time) {
+            return time >= expiryTime;
+        }
+
+        boolean matches(String host, String requestPath, boolean secureRequest) {
+            if (secure && !secureRequest) {
+                return false;
+            }
+            if (domain != null && !(hostOnly ? host.equals(domain) : domainMatches(host, domain))) {
+                return false;
+            }
+            return requestPath.startsWith(path) && (requestPath.length() == path.length()
+                    || path.endsWith("/") || requestPath.charAt(path.length()) == '/');
+        }
+
+        String getKey() {
+            return name + ";" + domain + ";" + path;
+        }
+    }
+}
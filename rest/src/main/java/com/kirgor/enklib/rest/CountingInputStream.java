@@ -0,0 +1,50 @@
+package com.kirgor.enklib.rest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link InputStream} wrapper, which adds amount of read bytes to the specified counter.
+ */
+class CountingInputStream extends FilterInputStream {
+    private final AtomicLong counter;
+
+    CountingInputStream(InputStream inputStream, AtomicLong counter) {
+        super(inputStream);
+        this.counter = counter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if (result != -1) {
+            counter.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int result = super.read(b, off, len);
+        if (result > 0) {
+            counter.addAndGet(result);
+        }
+        return result;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long result = super.skip(n);
+        if (result > 0) {
+            counter.addAndGet(result);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,126 @@
+package com.kirgor.enklib.rest;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Wrapper for response {@link HttpEntity}, which decompresses content according to its Content-Encoding
+ * and counts wire and decoded bytes. Decompression is streaming, so content is never buffered as a whole.
+ * <p/>
+ * Supported encodings are "gzip" and "deflate". Content with other encodings is passed as is. Some servers send
+ * "deflate" content without zlib wrapper, so it's decoded as raw deflate data when zlib header is absent.
+ */
+class DecodingEntity extends HttpEntityWrapper {
+    private final CompressionStats compressionStats;
+    private final boolean decoding;
+    private InputStream content;
+
+    DecodingEntity(HttpEntity wrappedEntity, CompressionStats compressionStats) {
+        super(wrappedEntity);
+        this.compressionStats = compressionStats;
+        this.decoding = isSupportedEncoding(getEncoding(wrappedEntity));
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        if (content == null) {
+            InputStream wireStream = new CountingInputStream(wrappedEntity.getContent(), compressionStats.getResponseWireBytesCounter());
+            InputStream decodedStream;
+            String encoding = getEncoding(wrappedEntity);
+            if ("gzip".equals(encoding) || "x-gzip".equals(encoding)) {
+                decodedStream = new GZIPInputStream(wireStream);
+            } else if ("deflate".equals(encoding)) {
+                decodedStream = inflate(wireStream);
+            } else {
+                decodedStream = wireStream;
+            }
+            content = new CountingInputStream(decodedStream, compressionStats.getResponseDecodedBytesCounter());
+        }
+        return content;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        InputStream inputStream = getContent();
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        return decoding ? -1 : wrappedEntity.getContentLength();
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return decoding ? null : wrappedEntity.getContentEncoding();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    private static InputStream inflate(InputStream inputStream) throws IOException {
+        PushbackInputStream pushbackStream = new PushbackInputStream(inputStream, 2);
+        byte[] header = new byte[2];
+        int count = 0;
+        while (count < header.length) {
+            int read = pushbackStream.read(header, count, header.length - count);
+            if (read == -1) {
+                break;
+            }
+            count += read;
+        }
+        pushbackStream.unread(header, 0, count);
+
+        // zlib header has deflate compression method and is a multiple of 31
+        int cmf = header[0] & 0xff;
+        int flg = header[1] & 0xff;
+        if (count == header.length && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0) {
+            return new InflaterInputStream(pushbackStream);
+        }
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(pushbackStream, inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Inflater, which is passed to the stream, is not released by it
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    private static String getEncoding(HttpEntity entity) {
+        Header header = entity.getContentEncoding();
+        return header != null ? header.getValue().trim().toLowerCase() : null;
+    }
+
+    private static boolean isSupportedEncoding(String encoding) {
+        return "gzip".equals(encoding) || "x-gzip".equals(encoding) || "deflate".equals(encoding);
+    }
+}
@@ -0,0 +1,139 @@
+package com.kirgor.enklib.rest;
+
+import java.util.*;
+
+/**
+ * Map of HTTP headers with case-insensitive names, which keeps all values of repeated headers.
+ * <p/>
+ * As a {@link Map}, it exposes the last value of each header. All values of a header in the order
+ * they were received can be retrieved with getAll() method.
+ */
+public class HeaderMap extends AbstractMap<String, String> {
+    private final TreeMap<String, List<String>> values = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+
+    /**
+     * Adds header value, keeping values, which have been added before for the same header.
+     *
+     * @param name  Header name.
+     * @param value Header value.
+     */
+    public void add(String name, String value) {
+        List<String> list = values.get(name);
+        if (list == null) {
+            list = new ArrayList<String>(1);
+            values.put(name, list);
+        }
+        list.add(value);
+    }
+
+    /**
+     * Gets all values of specified header.
+     *
+     * @param name Header name (case-insensitive).
+     * @return List of values, which is empty if there is no such header.
+     */
+    public List<String> getAll(String name) {
+        List<String> list = values.get(name);
+        return list != null ? Collections.unmodifiableList(list) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Gets all values of specified header from any map of headers. Maps other than {@link HeaderMap}
+     * hold single value of each header.
+     *
+     * @param headers Map of headers (may be null).
+     * @param name    Header name.
+     * @return List of values, which is empty if there is no such header.
+     */
+    public static List<String> getAll(Map<String, String> headers, String name) {
+        if (headers == null) {
+            return Collections.emptyList();
+        } else if (headers instanceof HeaderMap) {
+            return ((HeaderMap) headers).getAll(name);
+        }
+        String value = headers.get(name);
+        return value != null ? Collections.singletonList(value) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Gets the last value of specified header or null.
+     *
+     * @param name Header name (case-insensitive).
+     */
+    @Override
+    public String get(Object name) {
+        List<String> list = name instanceof String ? values.get(name) : null;
+        return list != null ? list.get(list.size() - 1) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object name) {
+        return name instanceof String && values.containsKey(name);
+    }
+
+    /**
+     * Replaces all values of specified header with single value.
+     *
+     * @return The last previous value of the header or null.
+     */
+    @Override
+    public String put(String name, String value) {
+        String previous = get(name);
+        List<String> list = new ArrayList<String>(1);
+        list.add(value);
+        values.put(name, list);
+        return previous;
+    }
+
+    @Override
+    public String remove(Object name) {
+        String previous = get(name);
+        if (name instanceof String) {
+            values.remove(name);
+        }
+        return previous;
+    }
+
+    @Override
+    public int size() {
+        return values.size();
+    }
+
+    @Override
+    public void clear() {
+        values.clear();
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                final Iterator<Entry<String, List<String>>> iterator = values.entrySet().iterator();
+                return new Iterator<Entry<String, String>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        Entry<String, List<String>> entry = iterator.next();
+                        List<String> list = entry.getValue();
+                        return new SimpleImmutableEntry<String, String>(entry.getKey(), list.get(list.size() - 1));
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.size();
+            }
+        };
+    }
+}
@@ -32,7 +32,7 @@ public class JSONClient extends RESTClient {
      */
     @Override
     protected <T> T parseEntity(Class<T> entityClass, HttpResponse httpResponse) throws IOException {
-        return GSON.fromJson(new InputStreamReader(httpResponse.getEntity().getContent()), entityClass);
+        return GSON.fromJson(new InputStreamReader(httpResponse.getEntity().getContent(), "UTF-8"), entityClass);
     }
 
     /**
@@ -40,7 +40,7 @@ public class JSONClient extends RESTClient {
      */
     @Override
     protected <T> List<T> parseListEntity(Class<T> entityClass, HttpResponse httpResponse) throws IOException {
-        JsonArray jsonArray = GSON.fromJson(new InputStreamReader(httpResponse.getEntity().getContent()), JsonArray.class);
+        JsonArray jsonArray = GSON.fromJson(new InputStreamReader(httpResponse.getEntity().getContent(), "UTF-8"), JsonArray.class);
         ArrayList<T> result = new ArrayList<T>();
         for (JsonElement jsonElement : jsonArray) {
             result.add(GSON.fromJson(jsonElement, entityClass));
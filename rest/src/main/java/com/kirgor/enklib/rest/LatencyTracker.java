@@ -0,0 +1,62 @@
+package com.kirgor.enklib.rest;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps latencies of recent requests in the ring buffer and calculates their percentiles.
+ */
+class LatencyTracker {
+    private static final int CAPACITY = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECALCULATE_EVERY = 16;
+
+    private final AtomicLongArray samples = new AtomicLongArray(CAPACITY);
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile Percentile cachedPercentile;
+
+    void record(long latency) {
+        int index = count.getAndIncrement();
+        samples.set((index & Integer.MAX_VALUE) % CAPACITY, latency);
+    }
+
+    /**
+     * Gets latency percentile of recent requests or -1 if there are not enough samples yet.
+     * Value is recalculated only after several new samples have been recorded.
+     */
+    long getPercentile(double percentile) {
+        int currentCount = count.get();
+        if (currentCount < MIN_SAMPLES) {
+            return -1;
+        }
+
+        Percentile cached = cachedPercentile;
+        if (cached != null && cached.percentile == percentile && currentCount - cached.count < RECALCULATE_EVERY) {
+            return cached.value;
+        }
+
+        int size = Math.min(currentCount, CAPACITY);
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = samples.get(i);
+        }
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * size) - 1;
+        long value = sorted[Math.max(0, Math.min(size - 1, index))];
+        cachedPercentile = new Percentile(percentile, currentCount, value);
+        return value;
+    }
+
+    private static class Percentile {
+        final double percentile;
+        final int count;
+        final long value;
+
+        Percentile(double percentile, int count, long value) {
+            this.percentile = percentile;
+            this.count = count;
+            this.value = value;
+        }
+    }
+}
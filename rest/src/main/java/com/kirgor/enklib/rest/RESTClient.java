@@ -1,30 +1,71 @@
 package com.kirgor.enklib.rest;
 
+import com.kirgor.enklib.rest.exception.CircuitBreakerOpenException;
 import com.kirgor.enklib.rest.exception.RESTException;
+import com.kirgor.enklib.rest.exception.RequestTimeoutException;
+import com.kirgor.enklib.rest.exception.RetriesExhaustedException;
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.*;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Base class for RESTful clients, which should be extended in order to support necessary content type.
  *
  * Uses <a href="http://hc.apache.org/httpcomponents-client-4.3.x/">Apache HttpClient</a>.
  */
-public abstract class RESTClient {
+public abstract class RESTClient implements Closeable {
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    private static final int DEFAULT_MAX_CONNECTIONS = 100;
+    private static final String PAYLOAD_CHARSET = "UTF-8";
+
     private String baseUrl;
     private String contentType;
-    private Map<String, String> cookies = new HashMap<String, String>();
-    private HttpClientBuilder httpClientBuilder = HttpClientBuilder.create();
+    private final CookieJar cookieJar = new CookieJar();
+    private HttpClientBuilder httpClientBuilder = HttpClientBuilder.create()
+            .disableContentCompression()
+            .setMaxConnPerRoute(DEFAULT_MAX_CONNECTIONS_PER_ROUTE)
+            .setMaxConnTotal(DEFAULT_MAX_CONNECTIONS);
+    private volatile CloseableHttpClient httpClient;
+    private volatile RequestPolicy requestPolicy = new RequestPolicy();
+    private final ConcurrentMap<String, RequestPolicy> pathRequestPolicies = new ConcurrentHashMap<String, RequestPolicy>();
+    private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private volatile boolean acceptCompressedResponses = true;
+    private volatile int requestCompressionThreshold = -1;
+    private final CompressionStats compressionStats = new CompressionStats();
+    private volatile boolean coalesceGetRequests;
+    private final ConcurrentMap<String, InFlightRequest> inFlightGetRequests = new ConcurrentHashMap<String, InFlightRequest>();
 
     /**
      * Creates {@link RESTClient} instance.
@@ -50,7 +91,7 @@ public abstract class RESTClient {
      */
     public <T> EntityResponse<T> get(Class<T> entityClass, String path, Map<String, String> params, Map<String, String> headers) throws IOException, RESTException {
         HttpGet httpGet = buildHttpGet(path, params);
-        return parseEntityResponse(entityClass, getHttpResponse(httpGet, headers));
+        return executeGet("entity:" + entityClass.getName(), httpGet, headers, entityParser(entityClass));
     }
 
     /**
@@ -105,7 +146,7 @@ public abstract class RESTClient {
      */
     public <T> EntityResponse<List<T>> getWithListResult(Class<T> entityClass, String path, Map<String, String> params, Map<String, String> headers) throws IOException, RESTException {
         HttpGet httpGet = buildHttpGet(path, params);
-        return parseListEntityResponse(entityClass, getHttpResponse(httpGet, headers));
+        return executeGet("list:" + entityClass.getName(), httpGet, headers, listEntityParser(entityClass));
     }
 
     /**
@@ -158,7 +199,7 @@ public abstract class RESTClient {
      */
     public Response get(String path, Map<String, String> params, Map<String, String> headers) throws IOException, RESTException {
         HttpGet httpGet = buildHttpGet(path, params);
-        return parseResponse(getHttpResponse(httpGet, headers));
+        return executeGet("response", httpGet, headers, responseParser());
     }
 
     /**
@@ -206,7 +247,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public <T> EntityResponse<T> post(Class<T> entityClass, String path, Object payload, Map<String, String> headers) throws IOException, RESTException {
-        return postInternal(entityClass, payload, new HttpPost(baseUrl + path), headers);
+        return executeWithPayload(new HttpPost(baseUrl + path), payload, headers, entityParser(entityClass));
     }
 
     /**
@@ -260,7 +301,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public <T> EntityResponse<List<T>> postWithListResult(Class<T> entityClass, String path, Object payload, Map<String, String> headers) throws IOException, RESTException {
-        return postWithListResultInternal(entityClass, payload, new HttpPost(baseUrl + path), headers);
+        return executeWithPayload(new HttpPost(baseUrl + path), payload, headers, listEntityParser(entityClass));
     }
 
     /**
@@ -312,7 +353,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public Response post(String path, Object payload, Map<String, String> headers) throws IOException, RESTException {
-        return postInternal(payload, new HttpPost(baseUrl + path), headers);
+        return executeWithPayload(new HttpPost(baseUrl + path), payload, headers, responseParser());
     }
 
     /**
@@ -360,7 +401,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public <T> EntityResponse<T> put(Class<T> entityClass, String path, Object payload, Map<String, String> headers) throws IOException, RESTException {
-        return postInternal(entityClass, payload, new HttpPut(baseUrl + path), headers);
+        return executeWithPayload(new HttpPut(baseUrl + path), payload, headers, entityParser(entityClass));
     }
 
     /**
@@ -414,7 +455,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public <T> EntityResponse<List<T>> putWithListResult(Class<T> entityClass, String path, Object payload, Map<String, String> headers) throws IOException, RESTException {
-        return postWithListResultInternal(entityClass, payload, new HttpPut(baseUrl + path), headers);
+        return executeWithPayload(new HttpPut(baseUrl + path), payload, headers, listEntityParser(entityClass));
     }
 
     /**
@@ -466,7 +507,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public Response put(String path, Object payload, Map<String, String> headers) throws IOException, RESTException {
-        return postInternal(payload, new HttpPut(baseUrl + path), headers);
+        return executeWithPayload(new HttpPut(baseUrl + path), payload, headers, responseParser());
     }
 
     /**
@@ -513,7 +554,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public <T> EntityResponse<T> delete(Class<T> entityClass, String path, Map<String, String> headers) throws IOException, RESTException {
-        return parseEntityResponse(entityClass, getHttpResponse(new HttpDelete(baseUrl + path), headers));
+        return execute(new HttpDelete(baseUrl + path), headers, entityParser(entityClass));
     }
 
     /**
@@ -552,7 +593,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public <T> EntityResponse<List<T>> deleteWithListResult(Class<T> entityClass, String path, Map<String, String> headers) throws IOException, RESTException {
-        return parseListEntityResponse(entityClass, getHttpResponse(new HttpDelete(baseUrl + path), headers));
+        return execute(new HttpDelete(baseUrl + path), headers, listEntityParser(entityClass));
     }
 
     /**
@@ -589,7 +630,7 @@ public abstract class RESTClient {
      * @throws RESTException If HTTP response code is non OK.
      */
     public Response delete(String path, Map<String, String> headers) throws IOException, RESTException {
-        return parseResponse(getHttpResponse(new HttpDelete(baseUrl + path), headers));
+        return execute(new HttpDelete(baseUrl + path), headers, responseParser());
     }
 
     /**
@@ -614,20 +655,33 @@ public abstract class RESTClient {
     }
 
     /**
-     * Gets map of cookies, which are currently stored in the client.
+     * Gets snapshot map of cookie names and values, which are currently stored in the client.
+     * Changes of the map are not reflected in the client.
      */
     public Map<String, String> getCookies() {
-        return cookies;
+        Map<String, String> result = new HashMap<String, String>();
+        for (CookieJar.Cookie cookie : cookieJar.getCookies()) {
+            result.put(cookie.getName(), cookie.getValue());
+        }
+        return result;
     }
 
     /**
-     * Manually add cookie to the client.
+     * Gets {@link CookieJar}, which stores cookies of the client.
+     */
+    public CookieJar getCookieJar() {
+        return cookieJar;
+    }
+
+    /**
+     * Manually add cookie to the client. Such cookie is sent with all requests instead of cookies
+     * with the same name set by servers.
      *
      * @param name  Cookie name.
      * @param value Cookie value.
      */
     public void addCookie(String name, String value) {
-        cookies.put(name, value);
+        cookieJar.add(new CookieJar.Cookie(name, value));
     }
 
     /**
@@ -636,7 +690,7 @@ public abstract class RESTClient {
      * @param name Cookie name.
      */
     public void removeCookie(String name) {
-        cookies.remove(name);
+        cookieJar.remove(name);
     }
 
     /**
@@ -645,11 +699,153 @@ public abstract class RESTClient {
      * @param name Cookie name.
      */
     public String getCookieValue(String name) {
-        return cookies.get(name);
+        for (CookieJar.Cookie cookie : cookieJar.getCookies()) {
+            if (cookie.getName().equals(name)) {
+                return cookie.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Indicates whether concurrent identical GET requests are coalesced into single HTTP exchange.
+     */
+    public boolean isCoalesceGetRequests() {
+        return coalesceGetRequests;
+    }
+
+    /**
+     * Enables or disables coalescing of concurrent identical GET requests. Disabled by default.
+     * <p/>
+     * When enabled, GET requests with the same URL, request headers and expected result type, which are issued
+     * while the same request is still in flight, don't hit the server. Instead, they wait for the in-flight request
+     * and receive its result (or exception). Please note, that in this case callers share the same
+     * response entity instance, so it should not be modified.
+     *
+     * @param coalesceGetRequests True to enable coalescing, otherwise false.
+     */
+    public void setCoalesceGetRequests(boolean coalesceGetRequests) {
+        this.coalesceGetRequests = coalesceGetRequests;
+    }
+
+    /**
+     * Gets request policy, which is applied to all requests, unless there is a policy for specific path.
+     */
+    public RequestPolicy getRequestPolicy() {
+        return requestPolicy;
+    }
+
+    /**
+     * Sets request policy, which is applied to all requests, unless there is a policy for specific path.
+     *
+     * @param requestPolicy Request policy.
+     */
+    public void setRequestPolicy(RequestPolicy requestPolicy) {
+        this.requestPolicy = requestPolicy;
+    }
+
+    /**
+     * Sets request policy for requests, which path starts with specified prefix.
+     * If multiple prefixes match, policy with the longest one is applied.
+     *
+     * @param pathPrefix    Prefix of request path (relative to base URL).
+     * @param requestPolicy Request policy or null to remove policy for the prefix.
+     */
+    public void setRequestPolicy(String pathPrefix, RequestPolicy requestPolicy) {
+        if (requestPolicy != null) {
+            pathRequestPolicies.put(pathPrefix, requestPolicy);
+        } else {
+            pathRequestPolicies.remove(pathPrefix);
+        }
+    }
+
+    /**
+     * Gets circuit breaker state for specified host (including port, if it's specified in URL).
+     *
+     * @param host Host name.
+     * @return Circuit breaker state or null, if no requests have been made to the host with circuit breaker enabled.
+     */
+    public CircuitBreaker.State getCircuitBreakerState(String host) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+        return circuitBreaker != null ? circuitBreaker.getState() : null;
+    }
+
+    /**
+     * Sets limits of HTTP connection pool, which is shared by all requests of this client.
+     * Can be called only before the first request. Defaults are 20 connections per route and 100 in total.
+     *
+     * @param maxConnectionsPerRoute Maximal count of connections to the same route.
+     * @param maxConnections         Maximal total count of connections.
+     */
+    public synchronized void setMaxConnections(int maxConnectionsPerRoute, int maxConnections) {
+        if (httpClient != null) {
+            throw new IllegalStateException("Connection pool limits can't be changed after the first request.");
+        }
+        httpClientBuilder.setMaxConnPerRoute(maxConnectionsPerRoute).setMaxConnTotal(maxConnections);
+    }
+
+    /**
+     * Closes underlying HTTP client and releases all pooled connections.
+     *
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (httpClient != null) {
+            httpClient.close();
+            httpClient = null;
+        }
+    }
+
+    /**
+     * Indicates whether client asks server to compress responses.
+     */
+    public boolean isAcceptCompressedResponses() {
+        return acceptCompressedResponses;
+    }
+
+    /**
+     * Specifies whether client asks server to compress responses (via Accept-Encoding header).
+     * Enabled by default. Responses with "gzip" and "deflate" content encodings are decompressed
+     * on the fly while entity is being parsed.
+     *
+     * @param acceptCompressedResponses True to accept compressed responses, otherwise false.
+     */
+    public void setAcceptCompressedResponses(boolean acceptCompressedResponses) {
+        this.acceptCompressedResponses = acceptCompressedResponses;
+    }
+
+    /**
+     * Gets minimal size of request payload in bytes, which will be compressed, or negative value
+     * if request compression is disabled.
+     */
+    public int getRequestCompressionThreshold() {
+        return requestCompressionThreshold;
+    }
+
+    /**
+     * Sets minimal size of request payload in bytes, starting from which payload will be sent gzip compressed.
+     * Negative value (default) disables request compression. Please, make sure that server supports
+     * compressed requests before enabling it.
+     *
+     * @param requestCompressionThreshold Payload size threshold in bytes.
+     */
+    public void setRequestCompressionThreshold(int requestCompressionThreshold) {
+        this.requestCompressionThreshold = requestCompressionThreshold;
+    }
+
+    /**
+     * Gets statistics of bytes transferred by this client before and after compression.
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
     }
 
     /**
      * Parse entity of specified class from {@link HttpResponse} instance.
+     * <p/>
+     * Entity content is available as a byte stream, which is already decompressed if needed,
+     * so implementations may decode any text or binary format.
      *
      * @param entityClass  Entity class.
      * @param httpResponse {@link HttpResponse} instance, which is ready to read from.
@@ -670,78 +866,378 @@ public abstract class RESTClient {
     protected abstract <T> List<T> parseListEntity(Class<T> entityClass, HttpResponse httpResponse) throws IOException;
 
     /**
-     * Converts payload to string according to content type.
+     * Writes payload to the request body according to content type.
+     * <p/>
+     * Default implementation writes result of payloadToString() in UTF-8, which is suitable for text formats.
+     * Clients for binary formats should override this method instead of payloadToString().
+     *
+     * @param payload      Payload to write.
+     * @param outputStream Stream of the request body.
+     * @throws IOException
+     */
+    protected void writePayload(Object payload, OutputStream outputStream) throws IOException {
+        outputStream.write(payloadToString(payload).getBytes(PAYLOAD_CHARSET));
+    }
+
+    /**
+     * Converts payload to string according to content type. Used by default implementation of writePayload(),
+     * clients for binary formats return readable form of the payload.
      *
      * @param entity Entity to convert.
      */
     protected abstract String payloadToString(Object entity);
 
-    private <T> EntityResponse<T> postInternal(Class<T> entityClass, Object payload, HttpEntityEnclosingRequestBase request, Map<String, String> headers) throws IOException, RESTException {
+    private <R> R executeWithPayload(HttpEntityEnclosingRequestBase request, Object payload, Map<String, String> headers, ResponseParser<R> parser) throws IOException, RESTException {
         if (payload != null) {
-            request.setEntity(new StringEntity(payloadToString(payload)));
+            request.setEntity(createPayloadEntity(payload));
         }
-        return parseEntityResponse(entityClass, getHttpResponse(request, headers));
+        return execute(request, headers, parser);
     }
 
-    private <T> EntityResponse<List<T>> postWithListResultInternal(Class<T> entityClass, Object payload, HttpEntityEnclosingRequestBase request, Map<String, String> headers) throws IOException, RESTException {
-        if (payload != null) {
-            request.setEntity(new StringEntity(payloadToString(payload)));
+    private HttpEntity createPayloadEntity(Object payload) throws IOException {
+        ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream();
+        writePayload(payload, payloadBuffer);
+        int length = payloadBuffer.size();
+        int threshold = requestCompressionThreshold;
+        if (threshold < 0 || length < threshold) {
+            compressionStats.addRequest(length, length, false);
+            return new ByteArrayEntity(payloadBuffer.toByteArray());
         }
-        return parseListEntityResponse(entityClass, getHttpResponse(request, headers));
+
+        // Compress into the buffer rather than stream, so Content-Length is known to the server
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 4 + 64);
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(buffer);
+        payloadBuffer.writeTo(gzipOutputStream);
+        gzipOutputStream.close();
+
+        ByteArrayEntity compressedEntity = new ByteArrayEntity(buffer.toByteArray());
+        compressedEntity.setContentEncoding("gzip");
+        compressionStats.addRequest(length, compressedEntity.getContentLength(), true);
+        return compressedEntity;
     }
 
-    private Response postInternal(Object payload, HttpEntityEnclosingRequestBase request, Map<String, String> headers) throws IOException, RESTException {
-        if (payload != null) {
-            request.setEntity(new StringEntity(payloadToString(payload)));
+    private void prepareRequest(HttpRequestBase request, Map<String, String> headers, RequestPolicy policy) {
+        request.addHeader("Content-Type", contentType);
+        if (acceptCompressedResponses && !containsHeader(headers, "Accept-Encoding")) {
+            request.addHeader("Accept-Encoding", "gzip, deflate");
+        }
+        String cookieHeader = cookieJar.getCookieHeader(request.getURI());
+        if (cookieHeader != null) {
+            request.addHeader("Cookie", cookieHeader);
         }
-        return parseResponse(getHttpResponse(request, headers));
+
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                request.addHeader(entry.getKey(), entry.getValue());
+            }
+        }
+
+        request.setConfig(RequestConfig.custom()
+                .setConnectTimeout(policy.getConnectTimeout())
+                .setSocketTimeout(policy.getSocketTimeout())
+                .setConnectionRequestTimeout(policy.getConnectionRequestTimeout())
+                .build());
     }
 
-    private CloseableHttpResponse getHttpResponse(HttpUriRequest httpUriRequest, Map<String, String> headers) throws IOException {
-        httpUriRequest.addHeader("Content-Type", contentType);
-        if (cookies.size() > 0) {
-            StringBuilder cookiesStringBuilder = new StringBuilder();
-            for (Map.Entry<String, String> entry : cookies.entrySet()) {
-                cookiesStringBuilder.append(entry.getKey()).append("=").append(entry.getValue()).append(";");
+    private <R> R execute(HttpRequestBase request, Map<String, String> headers, ResponseParser<R> parser) throws IOException, RESTException {
+        RequestPolicy policy = getRequestPolicy(request.getURI());
+        prepareRequest(request, headers, policy);
+
+        String host = request.getURI().getAuthority();
+        CircuitBreaker circuitBreaker = policy.getCircuitBreakerFailureThreshold() > 0 ? getCircuitBreaker(host) : null;
+        int maxAttempts = isIdempotent(request) ? policy.getMaxRetries() + 1 : 1;
+        long requestTimeout = policy.getRequestTimeout();
+        long deadline = requestTimeout > 0 ? System.currentTimeMillis() + requestTimeout : 0;
+        ScheduledFuture<?> abortTask = requestTimeout > 0 ? scheduleAbort(request, requestTimeout) : null;
+
+        try {
+            Exception lastException = null;
+            for (int attempt = 1; ; attempt++) {
+                if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+                    throw new RequestTimeoutException(requestTimeout, lastException);
+                }
+                if (circuitBreaker != null && !circuitBreaker.allowRequest(policy.getCircuitBreakerOpenTime())) {
+                    throw new CircuitBreakerOpenException(host);
+                }
+
+                boolean healthy = false;
+                try {
+                    R result = executeAttempt(request, parser, policy, deadline);
+                    healthy = true;
+                    return result;
+                } catch (RESTException ex) {
+                    // Server, which responds with non 5xx code, is healthy from circuit breaker point of view
+                    healthy = ex.getCode() < 500;
+                    if (attempt >= maxAttempts || !isRetryableStatus(ex.getCode())) {
+                        throw ex;
+                    }
+                    lastException = ex;
+                } catch (IOException ex) {
+                    if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+                        throw new RequestTimeoutException(requestTimeout, ex);
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw ex;
+                    }
+                    if (attempt >= maxAttempts) {
+                        if (maxAttempts > 1) {
+                            throw new RetriesExhaustedException(attempt, ex);
+                        }
+                        throw ex;
+                    }
+                    lastException = ex;
+                } finally {
+                    if (circuitBreaker != null) {
+                        if (healthy) {
+                            circuitBreaker.recordSuccess();
+                        } else {
+                            circuitBreaker.recordFailure(policy.getCircuitBreakerFailureThreshold());
+                        }
+                    }
+                }
+
+                sleepBeforeRetry(policy, attempt, deadline);
+                request.reset();
+            }
+        } finally {
+            if (abortTask != null) {
+                abortTask.cancel(false);
             }
-            cookiesStringBuilder.setLength(cookiesStringBuilder.length() - 1);
-            httpUriRequest.addHeader("Cookie", cookiesStringBuilder.toString());
         }
+    }
 
-        if (headers != null) {
-            for (Map.Entry<String, String> entry : headers.entrySet()) {
-                httpUriRequest.addHeader(entry.getKey(), entry.getValue());
+    private <R> R executeAttempt(HttpRequestBase request, ResponseParser<R> parser, RequestPolicy policy, long deadline) throws IOException, RESTException {
+        if (request instanceof HttpGet && policy.getHedgePercentile() > 0) {
+            long hedgeDelay = latencyTracker.getPercentile(policy.getHedgePercentile());
+            if (hedgeDelay >= 0) {
+                return executeHedged((HttpGet) request, parser, Math.max(hedgeDelay, policy.getHedgeMinDelay()), deadline);
             }
         }
+        return executeSingle(request, parser);
+    }
+
+    private <R> R executeSingle(HttpRequestBase request, ResponseParser<R> parser) throws IOException, RESTException {
+        long startTime = System.currentTimeMillis();
+        CloseableHttpResponse httpResponse = getHttpClient().execute(request);
+        for (Header header : httpResponse.getHeaders("Set-Cookie")) {
+            cookieJar.addFromHeader(header.getValue(), request.getURI());
+        }
+        if (httpResponse.getEntity() != null) {
+            httpResponse.setEntity(new DecodingEntity(httpResponse.getEntity(), compressionStats));
+        }
 
-        CloseableHttpClient httpClient = httpClientBuilder.build();
+        R result;
+        try {
+            result = parser.parse(httpResponse);
+            // Rest of the body is read, so the connection goes back to the pool instead of being dropped
+            EntityUtils.consume(httpResponse.getEntity());
+        } finally {
+            httpResponse.close();
+        }
 
-        return httpClient.execute(httpUriRequest);
+        if (request instanceof HttpGet) {
+            latencyTracker.record(System.currentTimeMillis() - startTime);
+        }
+        return result;
+    }
+
+    private <R> R executeHedged(HttpGet request, ResponseParser<R> parser, long hedgeDelay, long deadline) throws IOException, RESTException {
+        CompletionService<R> completionService = new ExecutorCompletionService<R>(RESTExecutors.HEDGING);
+        Map<Future<R>, HttpGet> attempts = new HashMap<Future<R>, HttpGet>();
+        try {
+            attempts.put(completionService.submit(new AttemptCallable<R>(request, parser)), request);
+        } catch (RejectedExecutionException ex) {
+            // Executor is saturated, so the request is sent without hedging
+            return executeSingle(request, parser);
+        }
+        try {
+            Future<R> completed = pollAttempt(completionService, hedgeDelay, deadline);
+            if (completed == null) {
+                // Original request is too slow, send identical one and take whichever completes first
+                HttpGet hedgeRequest = new HttpGet(request.getURI());
+                hedgeRequest.setHeaders(request.getAllHeaders());
+                hedgeRequest.setConfig(request.getConfig());
+                try {
+                    attempts.put(completionService.submit(new AttemptCallable<R>(hedgeRequest, parser)), hedgeRequest);
+                } catch (RejectedExecutionException ex) {
+                    // Executor is saturated, so only the original request is waited for
+                }
+                completed = pollAttempt(completionService, -1, deadline);
+                if (attempts.size() > 1 && isFailed(completed)) {
+                    completed = pollAttempt(completionService, -1, deadline);
+                }
+            }
+            return getAttemptResult(completed);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for hedged request.");
+        } finally {
+            // Abort the request, which has lost, as well as everything else if deadline has passed or caller has been interrupted
+            for (Map.Entry<Future<R>, HttpGet> entry : attempts.entrySet()) {
+                if (!entry.getKey().isDone()) {
+                    entry.getValue().abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the next completed attempt, but not after the deadline.
+     *
+     * @param timeout  Time to wait in milliseconds or -1 to wait until the deadline.
+     * @param deadline Time, when the request times out, or 0 if there is no timeout.
+     * @return Completed attempt or null if timeout has passed.
+     */
+    private static <R> Future<R> pollAttempt(CompletionService<R> completionService, long timeout, long deadline)
+            throws InterruptedException, InterruptedIOException {
+        if (deadline > 0) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new InterruptedIOException("Hedged request hasn't completed before the deadline.");
+            }
+            if (timeout < 0 || timeout >= remaining) {
+                Future<R> result = completionService.poll(remaining, TimeUnit.MILLISECONDS);
+                if (result == null) {
+                    throw new InterruptedIOException("Hedged request hasn't completed before the deadline.");
+                }
+                return result;
+            }
+        }
+        return timeout < 0 ? completionService.take() : completionService.poll(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isFailed(Future<?> future) throws InterruptedException {
+        try {
+            future.get();
+            return false;
+        } catch (ExecutionException ex) {
+            return true;
+        }
+    }
+
+    private static <R> R getAttemptResult(Future<R> future) throws IOException, RESTException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RESTException) {
+                throw (RESTException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private CloseableHttpClient getHttpClient() {
+        CloseableHttpClient result = httpClient;
+        if (result == null) {
+            synchronized (this) {
+                if (httpClient == null) {
+                    httpClient = httpClientBuilder.build();
+                }
+                result = httpClient;
+            }
+        }
+        return result;
+    }
+
+    private RequestPolicy getRequestPolicy(URI uri) {
+        if (pathRequestPolicies.isEmpty()) {
+            return requestPolicy;
+        }
+
+        // Find policy with the longest matching path prefix
+        String url = uri.toString();
+        String path = url.startsWith(baseUrl) ? url.substring(baseUrl.length()) : uri.getPath();
+        RequestPolicy result = requestPolicy;
+        int matchedLength = -1;
+        for (Map.Entry<String, RequestPolicy> entry : pathRequestPolicies.entrySet()) {
+            if (path.startsWith(entry.getKey()) && entry.getKey().length() > matchedLength) {
+                result = entry.getValue();
+                matchedLength = entry.getKey().length();
+            }
+        }
+        return result;
+    }
+
+    private CircuitBreaker getCircuitBreaker(String host) {
+        CircuitBreaker circuitBreaker = circuitBreakers.get(host);
+        if (circuitBreaker == null) {
+            circuitBreaker = new CircuitBreaker();
+            CircuitBreaker existing = circuitBreakers.putIfAbsent(host, circuitBreaker);
+            if (existing != null) {
+                circuitBreaker = existing;
+            }
+        }
+        return circuitBreaker;
+    }
+
+    private static ScheduledFuture<?> scheduleAbort(final HttpRequestBase request, long timeout) {
+        return RESTExecutors.TIMER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                request.abort();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private static void sleepBeforeRetry(RequestPolicy policy, int attempt, long deadline) throws InterruptedIOException {
+        // Exponential backoff with full jitter, shifting is limited to avoid overflow
+        long maxDelay = Math.min(policy.getRetryMaxDelay(), policy.getRetryBaseDelay() << Math.min(attempt - 1, 30));
+        long delay = (long) (Math.random() * maxDelay);
+        if (deadline > 0) {
+            delay = Math.min(delay, Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for retry.");
+            }
+        }
+    }
+
+    private static boolean isIdempotent(HttpRequestBase request) {
+        return !(request instanceof HttpPost);
+    }
+
+    private static boolean isRetryableStatus(int code) {
+        return code == 502 || code == 503 || code == 504;
+    }
+
+    private static boolean containsHeader(Map<String, String> headers, String name) {
+        if (headers != null) {
+            for (String key : headers.keySet()) {
+                if (key.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
     private int getHttpResponseStatusCode(HttpResponse httpResponse) {
         return httpResponse.getStatusLine().getStatusCode();
     }
 
-    private Map<String, String> getHttpResponseHeaders(HttpResponse httpResponse) {
-        Map<String, String> headers = new HashMap<String, String>();
+    private HeaderMap getHttpResponseHeaders(HttpResponse httpResponse) {
+        HeaderMap headers = new HeaderMap();
         for (Header header : httpResponse.getAllHeaders()) {
-            headers.put(header.getName(), header.getValue());
-            if (header.getName().toLowerCase().equals("set-cookie")) {
-                int equalsIndex = header.getValue().indexOf('=');
-                int semicolonIndex = header.getValue().indexOf(';');
-                String cookieName = header.getValue().substring(0, equalsIndex);
-                String cookieValue = header.getValue().substring(equalsIndex + 1, semicolonIndex);
-                cookies.put(cookieName, cookieValue);
-            }
+            headers.add(header.getName(), header.getValue());
         }
         return headers;
     }
 
-    private Response parseResponse(CloseableHttpResponse httpResponse) throws IOException, RESTException {
+    private Response parseResponse(HttpResponse httpResponse) throws IOException, RESTException {
         int code = getHttpResponseStatusCode(httpResponse);
         Map<String, String> headers = getHttpResponseHeaders(httpResponse);
-        httpResponse.close();
         if (code < 400) {
             return new Response(code, headers);
         } else {
@@ -749,11 +1245,10 @@ public abstract class RESTClient {
         }
     }
 
-    private <T> EntityResponse<T> parseEntityResponse(Class<T> entityClass, CloseableHttpResponse httpResponse) throws IOException, RESTException {
+    private <T> EntityResponse<T> parseEntityResponse(Class<T> entityClass, HttpResponse httpResponse) throws IOException, RESTException {
         int code = getHttpResponseStatusCode(httpResponse);
         Map<String, String> headers = getHttpResponseHeaders(httpResponse);
         T entity = parseEntity(entityClass, httpResponse);
-        httpResponse.close();
         if (code < 400) {
             return new EntityResponse<T>(code, headers, entity);
         } else {
@@ -761,11 +1256,10 @@ public abstract class RESTClient {
         }
     }
 
-    private <T> EntityResponse<List<T>> parseListEntityResponse(Class<T> entityClass, CloseableHttpResponse httpResponse) throws IOException, RESTException {
+    private <T> EntityResponse<List<T>> parseListEntityResponse(Class<T> entityClass, HttpResponse httpResponse) throws IOException, RESTException {
         int code = getHttpResponseStatusCode(httpResponse);
         Map<String, String> headers = getHttpResponseHeaders(httpResponse);
         List<T> entity = parseListEntity(entityClass, httpResponse);
-        httpResponse.close();
         if (code < 400) {
             return new EntityResponse<List<T>>(code, headers, entity);
         } else {
@@ -773,6 +1267,78 @@ public abstract class RESTClient {
         }
     }
 
+    private ResponseParser<Response> responseParser() {
+        return new ResponseParser<Response>() {
+            @Override
+            public Response parse(HttpResponse httpResponse) throws IOException, RESTException {
+                return parseResponse(httpResponse);
+            }
+        };
+    }
+
+    private <T> ResponseParser<EntityResponse<T>> entityParser(final Class<T> entityClass) {
+        return new ResponseParser<EntityResponse<T>>() {
+            @Override
+            public EntityResponse<T> parse(HttpResponse httpResponse) throws IOException, RESTException {
+                return parseEntityResponse(entityClass, httpResponse);
+            }
+        };
+    }
+
+    private <T> ResponseParser<EntityResponse<List<T>>> listEntityParser(final Class<T> entityClass) {
+        return new ResponseParser<EntityResponse<List<T>>>() {
+            @Override
+            public EntityResponse<List<T>> parse(HttpResponse httpResponse) throws IOException, RESTException {
+                return parseListEntityResponse(entityClass, httpResponse);
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> R executeGet(String resultKind, HttpGet httpGet, Map<String, String> headers, ResponseParser<R> parser) throws IOException, RESTException {
+        if (!coalesceGetRequests) {
+            return execute(httpGet, headers, parser);
+        }
+
+        // Join request, which is already in flight, if there is one
+        String key = buildCoalescingKey(resultKind, httpGet, headers);
+        InFlightRequest<R> inFlightRequest = new InFlightRequest<R>();
+        InFlightRequest<R> existingRequest = inFlightGetRequests.putIfAbsent(key, inFlightRequest);
+        if (existingRequest != null) {
+            return existingRequest.await();
+        }
+
+        try {
+            R result = execute(httpGet, headers, parser);
+            inFlightRequest.succeed(result);
+            return result;
+        } catch (IOException ex) {
+            inFlightRequest.fail(ex);
+            throw ex;
+        } catch (RESTException ex) {
+            inFlightRequest.fail(ex);
+            throw ex;
+        } catch (RuntimeException ex) {
+            inFlightRequest.fail(ex);
+            throw ex;
+        } finally {
+            inFlightGetRequests.remove(key, inFlightRequest);
+            inFlightRequest.release();
+        }
+    }
+
+    private String buildCoalescingKey(String resultKind, HttpGet httpGet, Map<String, String> headers) {
+        StringBuilder stringBuilder = new StringBuilder();
+        stringBuilder.append(resultKind).append('\n').append(httpGet.getURI());
+        if (headers != null && headers.size() > 0) {
+            // Sort headers, so the same set of headers always produces the same key
+            for (Map.Entry<String, String> entry : new TreeMap<String, String>(headers).entrySet()) {
+                stringBuilder.append('\n').append(entry.getKey()).append(':').append(entry.getValue());
+            }
+        }
+        return stringBuilder.toString();
+    }
+
     private HttpGet buildHttpGet(String path, Map<String, String> params) throws UnsupportedEncodingException {
         StringBuilder stringBuilder = new StringBuilder();
         stringBuilder.append(baseUrl).append(path);
@@ -786,4 +1352,79 @@ public abstract class RESTClient {
 
         return new HttpGet(stringBuilder.toString());
     }
+
+    /**
+     * Converts HTTP response into the result of request.
+     *
+     * @param <R> Type of the result.
+     */
+    private interface ResponseParser<R> {
+        R parse(HttpResponse httpResponse) throws IOException, RESTException;
+    }
+
+    /**
+     * Performs single attempt of the request on the hedging executor.
+     *
+     * @param <R> Type of the result.
+     */
+    private class AttemptCallable<R> implements Callable<R> {
+        private final HttpRequestBase request;
+        private final ResponseParser<R> parser;
+
+        AttemptCallable(HttpRequestBase request, ResponseParser<R> parser) {
+            this.request = request;
+            this.parser = parser;
+        }
+
+        @Override
+        public R call() throws Exception {
+            return executeSingle(request, parser);
+        }
+    }
+
+    /**
+     * Holds result of the request, which is in flight, for callers who joined it.
+     *
+     * @param <R> Type of the result.
+     */
+    private static class InFlightRequest<R> {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private R result;
+        private Exception exception;
+        private boolean succeeded;
+
+        void succeed(R result) {
+            this.result = result;
+            this.succeeded = true;
+        }
+
+        void fail(Exception exception) {
+            this.exception = exception;
+        }
+
+        void release() {
+            latch.countDown();
+        }
+
+        R await() throws IOException, RESTException {
+            try {
+                latch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for coalesced request.");
+            }
+
+            if (succeeded) {
+                return result;
+            } else if (exception instanceof IOException) {
+                throw (IOException) exception;
+            } else if (exception instanceof RESTException) {
+                throw (RESTException) exception;
+            } else if (exception instanceof RuntimeException) {
+                throw (RuntimeException) exception;
+            } else {
+                throw new IOException("Coalesced request has failed.");
+            }
+        }
+    }
 }
@@ -0,0 +1,52 @@
+package com.kirgor.enklib.rest;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Holds executors shared by all {@link RESTClient} instances. They are created on first use and
+ * run on daemon threads, so they never prevent JVM from exiting.
+ */
+class RESTExecutors {
+    /**
+     * Executor for request timeout timers.
+     */
+    static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("enklib-rest-timer"));
+
+    /**
+     * Maximum count of threads running hedged requests.
+     */
+    static final int HEDGING_MAX_THREADS = 64;
+
+    /**
+     * Executor for hedged requests. It doesn't queue tasks: when all threads are busy, it rejects them,
+     * so callers send requests without hedging instead of waiting for free thread.
+     */
+    static final ExecutorService HEDGING = new ThreadPoolExecutor(0, HEDGING_MAX_THREADS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new DaemonThreadFactory("enklib-rest-hedging"));
+
+    private RESTExecutors() {
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.kirgor.enklib.rest;
+
+/**
+ * Defines timeouts, retries, circuit breaker and hedging behavior of {@link RESTClient} requests.
+ * <p/>
+ * Policy can be set for the whole client or for specific request paths. Instance should not be modified
+ * after it has been passed to the client. All time values are in milliseconds, zero value of timeout means
+ * infinite timeout, zero value of threshold or percentile means that feature is disabled.
+ */
+public class RequestPolicy {
+    private int connectTimeout = 10000;
+    private int socketTimeout = 60000;
+    private int connectionRequestTimeout = 10000;
+    private long requestTimeout = 0;
+    private int maxRetries = 0;
+    private long retryBaseDelay = 100;
+    private long retryMaxDelay = 5000;
+    private int circuitBreakerFailureThreshold = 0;
+    private long circuitBreakerOpenTime = 30000;
+    private double hedgePercentile = 0;
+    private long hedgeMinDelay = 50;
+
+    /**
+     * Gets timeout for establishing connection with the server.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets timeout for establishing connection with the server. Default is 10 seconds.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Gets maximal period of inactivity between two consecutive data packets.
+     */
+    public int getSocketTimeout() {
+        return socketTimeout;
+    }
+
+    /**
+     * Sets maximal period of inactivity between two consecutive data packets. Default is 60 seconds.
+     */
+    public void setSocketTimeout(int socketTimeout) {
+        this.socketTimeout = socketTimeout;
+    }
+
+    /**
+     * Gets timeout for leasing connection from the client connection pool.
+     */
+    public int getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    /**
+     * Sets timeout for leasing connection from the client connection pool. Default is 10 seconds.
+     */
+    public void setConnectionRequestTimeout(int connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    /**
+     * Gets overall timeout of the request, including all retries.
+     */
+    public long getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Sets overall timeout of the request, including all retries. When it expires, request is aborted and
+     * {@link com.kirgor.enklib.rest.exception.RequestTimeoutException} is thrown. Disabled by default.
+     */
+    public void setRequestTimeout(long requestTimeout) {
+        this.requestTimeout = requestTimeout;
+    }
+
+    /**
+     * Gets maximal count of retries for idempotent requests (GET, PUT, DELETE).
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Sets maximal count of retries for idempotent requests (GET, PUT, DELETE). Requests are retried in case of
+     * I/O errors and HTTP codes 502, 503 and 504. POST requests are never retried. Default is 0.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Gets base delay of exponential backoff between retries.
+     */
+    public long getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+
+    /**
+     * Sets base delay of exponential backoff between retries. Actual delay before retry N is a random value
+     * between 0 and min(retryMaxDelay, retryBaseDelay * 2^N). Default is 100 milliseconds.
+     */
+    public void setRetryBaseDelay(long retryBaseDelay) {
+        this.retryBaseDelay = retryBaseDelay;
+    }
+
+    /**
+     * Gets maximal delay between retries.
+     */
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    /**
+     * Sets maximal delay between retries. Default is 5 seconds.
+     */
+    public void setRetryMaxDelay(long retryMaxDelay) {
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    /**
+     * Gets count of consecutive failures, after which circuit breaker opens for the host.
+     */
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Sets count of consecutive failures (I/O errors and 5xx HTTP codes), after which circuit breaker opens
+     * for the host. While circuit breaker is open, requests to the host fail immediately with
+     * {@link com.kirgor.enklib.rest.exception.CircuitBreakerOpenException}. Disabled by default.
+     */
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Gets time, during which circuit breaker stays open before letting a probe request through.
+     */
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    /**
+     * Sets time, during which circuit breaker stays open before letting a single probe request through.
+     * If probe succeeds, circuit breaker closes, otherwise it stays open for another period. Default is 30 seconds.
+     */
+    public void setCircuitBreakerOpenTime(long circuitBreakerOpenTime) {
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+    }
+
+    /**
+     * Gets latency percentile of GET requests, after which hedge request is sent.
+     */
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * Sets latency percentile (e.g. 95.0) of recent GET requests, after which identical hedge request is sent
+     * if the original one hasn't completed yet. The first completed request wins, the other one is aborted.
+     * Disabled by default.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Gets minimal delay before sending hedge request.
+     */
+    public long getHedgeMinDelay() {
+        return hedgeMinDelay;
+    }
+
+    /**
+     * Sets minimal delay before sending hedge request, which protects the server from doubled load
+     * when latencies are very low. Default is 50 milliseconds.
+     */
+    public void setHedgeMinDelay(long hedgeMinDelay) {
+        this.hedgeMinDelay = hedgeMinDelay;
+    }
+}
@@ -1,5 +1,6 @@
 package com.kirgor.enklib.rest;
 
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -28,7 +29,8 @@ public class Response {
     }
 
     /**
-     * Gets map of HTTP response headers.
+     * Gets map of HTTP response headers. Responses produced by {@link RESTClient} have {@link HeaderMap}
+     * with case-insensitive header names here.
      */
     public Map<String, String> getHeaders() {
         return headers;
@@ -46,4 +48,14 @@ public class Response {
         }
         return headers.get(name);
     }
+
+    /**
+     * Gets all values of HTTP response header, which may be repeated (like Set-Cookie).
+     *
+     * @param name Header name.
+     * @return List of header values, which is empty if header is not present.
+     */
+    public List<String> getHeaderValues(String name) {
+        return HeaderMap.getAll(headers, name);
+    }
 }
@@ -0,0 +1,25 @@
+package com.kirgor.enklib.rest.exception;
+
+/**
+ * Thrown when request is rejected without hitting the server, because circuit breaker for the host is open.
+ */
+public class CircuitBreakerOpenException extends RESTException {
+    private String host;
+
+    /**
+     * Creates {@link CircuitBreakerOpenException} instance.
+     *
+     * @param host Host, which circuit breaker is open.
+     */
+    public CircuitBreakerOpenException(String host) {
+        super("Circuit breaker is open for host " + host, null);
+        this.host = host;
+    }
+
+    /**
+     * Gets host, which circuit breaker is open.
+     */
+    public String getHost() {
+        return host;
+    }
+}
@@ -1,5 +1,8 @@
 package com.kirgor.enklib.rest.exception;
 
+import com.kirgor.enklib.rest.HeaderMap;
+
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -23,6 +26,17 @@ public class RESTException extends Exception {
         this.entity = entity;
     }
 
+    /**
+     * Creates {@link RESTException} instance for failure, which isn't related to HTTP response code.
+     * HTTP response code of such exception is 0.
+     *
+     * @param message Exception message.
+     * @param cause   Exception cause.
+     */
+    protected RESTException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
     /**
      * Gets HTTP response code.
      */
@@ -50,6 +64,16 @@ public class RESTException extends Exception {
         return headers.get(name);
     }
 
+    /**
+     * Gets all values of HTTP response header, which may be repeated (like Set-Cookie).
+     *
+     * @param name Header name.
+     * @return List of header values, which is empty if header is not present.
+     */
+    public List<String> getHeaderValues(String name) {
+        return HeaderMap.getAll(headers, name);
+    }
+
     /**
      * Gets response entity or null.
      */
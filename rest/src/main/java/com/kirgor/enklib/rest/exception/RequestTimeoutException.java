@@ -0,0 +1,26 @@
+package com.kirgor.enklib.rest.exception;
+
+/**
+ * Thrown when request, including all its retries, hasn't completed within configured request timeout.
+ */
+public class RequestTimeoutException extends RESTException {
+    private long timeout;
+
+    /**
+     * Creates {@link RequestTimeoutException} instance.
+     *
+     * @param timeout Request timeout in milliseconds.
+     * @param cause   Exception, which the last attempt failed with.
+     */
+    public RequestTimeoutException(long timeout, Throwable cause) {
+        super("Request hasn't completed in " + timeout + " ms", cause);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Gets request timeout in milliseconds.
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+}
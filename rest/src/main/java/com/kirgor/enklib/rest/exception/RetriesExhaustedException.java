@@ -0,0 +1,26 @@
+package com.kirgor.enklib.rest.exception;
+
+/**
+ * Thrown when request has failed with I/O error after all configured retries.
+ */
+public class RetriesExhaustedException extends RESTException {
+    private int attempts;
+
+    /**
+     * Creates {@link RetriesExhaustedException} instance.
+     *
+     * @param attempts Count of attempts, which have been made.
+     * @param cause    Exception, which the last attempt failed with.
+     */
+    public RetriesExhaustedException(int attempts, Throwable cause) {
+        super("Request has failed after " + attempts + " attempts", cause);
+        this.attempts = attempts;
+    }
+
+    /**
+     * Gets count of attempts, which have been made.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+}
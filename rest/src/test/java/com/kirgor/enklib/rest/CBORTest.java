@@ -0,0 +1,173 @@
+package com.kirgor.enklib.rest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CBORTest {
+    private static final Gson GSON = new Gson();
+
+    @Test
+    public void writeIntegers() throws IOException {
+        assertEquals("00", write("0"));
+        assertEquals("17", write("23"));
+        assertEquals("1818", write("24"));
+        assertEquals("1903e8", write("1000"));
+        assertEquals("1a000f4240", write("1000000"));
+        assertEquals("1b000000e8d4a51000", write("1000000000000"));
+        assertEquals("20", write("-1"));
+        assertEquals("3863", write("-100"));
+    }
+
+    @Test
+    public void writeStructures() throws IOException {
+        assertEquals("83010203", write("[1,2,3]"));
+        assertEquals("a26161016162820203", write("{\"a\":1,\"b\":[2,3]}"));
+        assertEquals("6449455446", write("\"IETF\""));
+        assertEquals("f4f5f6", write("false") + write("true") + write("null"));
+    }
+
+    @Test
+    public void readVectors() throws IOException {
+        assertEquals(1000, read("1903e8").getAsInt());
+        assertEquals(-1000, read("3903e7").getAsInt());
+        assertEquals("18446744073709551615", read("1bffffffffffffffff").getAsBigInteger().toString());
+        assertEquals(1.5, read("f93e00").getAsDouble(), 0);
+        assertEquals(Double.POSITIVE_INFINITY, read("f97c00").getAsDouble(), 0);
+        assertEquals(100000.0, read("fa47c35000").getAsDouble(), 0);
+        assertEquals(1.1, read("fb3ff199999999999a").getAsDouble(), 0);
+        assertEquals("ü", read("62c3bc").getAsString());
+        assertEquals("streaming", read("7f657374726561646d696e67ff").getAsString());
+        assertEquals(new JsonParser().parse("[1,[2,3],[4,5]]"), read("9f018202039f0405ffff"));
+        assertEquals(new JsonParser().parse("{\"a\":1,\"b\":[2,3]}"), read("bf61610161629f0203ffff"));
+        assertEquals(1363896240, read("c11a514b67b0").getAsInt());
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        Entity entity = new Entity();
+        entity.id = 42L;
+        entity.name = "Test ж";
+        entity.ratio = 0.25f;
+        entity.amount = -12345.678;
+        entity.active = true;
+        entity.data = new byte[]{1, -2, 127};
+        entity.children = new Entity[]{new Entity()};
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CBORWriter(outputStream).write(GSON.toJsonTree(entity));
+        CBORReader reader = new CBORReader(new ByteArrayInputStream(outputStream.toByteArray()));
+        Entity result = GSON.fromJson(reader.read(), Entity.class);
+        assertFalse(reader.hasNext());
+
+        assertEquals(GSON.toJson(entity), GSON.toJson(result));
+    }
+
+    @Test
+    public void decimalFractions() throws IOException {
+        assertEquals("c48221196ab3", write(new JsonPrimitive(new BigDecimal("273.15"))));
+        assertEquals(new BigDecimal("273.15"), read("c48221196ab3").getAsBigDecimal());
+
+        BigDecimal big = new BigDecimal("-123456789012345678901234567890.12345");
+        assertEquals(big, read(write(new JsonPrimitive(big))).getAsBigDecimal());
+        big = new BigDecimal("98765432109876543210987654321E+20");
+        assertEquals(big, read(write(new JsonPrimitive(big))).getAsBigDecimal());
+    }
+
+    @Test
+    public void readBignums() throws IOException {
+        assertEquals(new BigInteger("18446744073709551616"), read("c249010000000000000000").getAsBigInteger());
+        assertEquals(new BigInteger("-18446744073709551617"), read("c349010000000000000000").getAsBigInteger());
+    }
+
+    @Test
+    public void writeBignums() throws IOException {
+        assertEquals("c249010000000000000000", write(new JsonPrimitive(new BigInteger("18446744073709551616"))));
+        assertEquals("c349010000000000000000", write(new JsonPrimitive(new BigInteger("-18446744073709551617"))));
+        assertEquals("3b7fffffffffffffff", write(new JsonPrimitive(BigInteger.valueOf(Long.MIN_VALUE))));
+        BigInteger big = new BigInteger("-123456789012345678901234567890");
+        assertEquals(big, read(write(new JsonPrimitive(big))).getAsBigInteger());
+    }
+
+    @Test
+    public void readLongByteString() throws IOException {
+        byte[] data = new byte[200000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write(bytes("5a00030d40"));
+        outputStream.write(data);
+        JsonArray array = new CBORReader(new ByteArrayInputStream(outputStream.toByteArray())).read().getAsJsonArray();
+        assertEquals(data.length, array.size());
+        assertEquals(data[data.length - 1], array.get(data.length - 1).getAsByte());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedByteString() throws IOException {
+        // Declared length is not allocated upfront
+        read("5a7fffffff0102");
+    }
+
+    @Test
+    public void readArrayElementByElement() throws IOException {
+        CBORReader reader = new CBORReader(new ByteArrayInputStream(bytes("9f0102ff")));
+        assertEquals(-1, reader.readArrayHeader());
+        assertFalse(reader.readBreak());
+        assertEquals(1, reader.read().getAsInt());
+        assertFalse(reader.readBreak());
+        assertEquals(2, reader.read().getAsInt());
+        assertTrue(reader.readBreak());
+        assertFalse(reader.hasNext());
+    }
+
+    private static String write(String json) throws IOException {
+        return write(new JsonParser().parse(json));
+    }
+
+    private static String write(JsonElement element) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        new CBORWriter(outputStream).write(element);
+        StringBuilder result = new StringBuilder();
+        for (byte b : outputStream.toByteArray()) {
+            result.append(String.format("%02x", b & 0xff));
+        }
+        return result.toString();
+    }
+
+    private static JsonElement read(String hex) throws IOException {
+        return new CBORReader(new ByteArrayInputStream(bytes(hex))).read();
+    }
+
+    private static byte[] bytes(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return result;
+    }
+
+    private static class Entity {
+        private Long id;
+        private String name;
+        private float ratio;
+        private double amount;
+        private boolean active;
+        private byte[] data;
+        private Entity[] children;
+    }
+}
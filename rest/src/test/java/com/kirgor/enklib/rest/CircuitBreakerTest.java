@@ -0,0 +1,92 @@
+package com.kirgor.enklib.rest;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.recordFailure(3);
+        breaker.recordFailure(3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest(1000));
+
+        // Success resets the count
+        breaker.recordSuccess();
+        breaker.recordFailure(3);
+        breaker.recordFailure(3);
+        assertEquals(2, breaker.getConsecutiveFailures());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.recordFailure(3);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(1000));
+    }
+
+    @Test
+    public void halfOpenProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.recordFailure(1);
+        assertFalse(breaker.allowRequest(50));
+        Thread.sleep(60);
+
+        // Only one request is let through after open time
+        assertTrue(breaker.allowRequest(50));
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(50));
+
+        breaker.recordSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+        assertTrue(breaker.allowRequest(50));
+    }
+
+    @Test
+    public void failedProbeOpensAgain() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker();
+        breaker.recordFailure(2);
+        breaker.recordFailure(2);
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest(50));
+
+        // Failed probe opens the breaker and restarts open time
+        breaker.recordFailure(100);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest(50));
+    }
+
+    @Test
+    public void singleProbeAmongConcurrentCallers() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker();
+        breaker.recordFailure(1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger allowed = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (breaker.allowRequest(0)) {
+                        allowed.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, allowed.get());
+    }
+}
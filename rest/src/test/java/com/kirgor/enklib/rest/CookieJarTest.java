@@ -0,0 +1,153 @@
+package com.kirgor.enklib.rest;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CookieJarTest {
+    @Test
+    public void parseAttributes() {
+        CookieJar cookieJar = new CookieJar();
+        cookieJar.addFromHeader("sid = abc=1 ; Domain=.Example.com; Path=/api; Secure; HttpOnly; Max-Age=60",
+                URI.create("https://www.example.com/login"));
+        List<CookieJar.Cookie> cookies = cookieJar.getCookies();
+        assertEquals(1, cookies.size());
+
+        CookieJar.Cookie cookie = cookies.get(0);
+        assertEquals("sid", cookie.getName());
+        assertEquals("abc=1", cookie.getValue());
+        assertEquals("example.com", cookie.getDomain());
+        assertFalse(cookie.isHostOnly());
+        assertEquals("/api", cookie.getPath());
+        assertTrue(cookie.isSecure());
+        long expectedExpiry = System.currentTimeMillis() + 60 * 1000;
+        assertTrue(Math.abs(cookie.getExpiryTime() - expectedExpiry) < 5000);
+    }
+
+    @Test
+    public void parseDefaults() {
+        CookieJar cookieJar = new CookieJar();
+        cookieJar.addFromHeader("sid=abc", URI.create("http://Example.com/api/users/1"));
+        CookieJar.Cookie cookie = cookieJar.getCookies().get(0);
+        assertEquals("example.com", cookie.getDomain());
+        assertTrue(cookie.isHostOnly());
+        assertEquals("/api/users", cookie.getPath());
+        assertFalse(cookie.isSecure());
+        assertEquals(Long.MAX_VALUE, cookie.getExpiryTime());
+    }
+
+    @Test
+    public void ignoreInvalidCookies() {
+        CookieJar cookieJar = new CookieJar();
+        URI uri = URI.create("http://www.example.com/");
+        cookieJar.addFromHeader("=abc", uri);
+        cookieJar.addFromHeader("noValue", uri);
+        cookieJar.addFromHeader("sid=abc; Domain=other.com", uri);
+        cookieJar.addFromHeader("sid=abc; Domain=ample.com", uri);
+        assertTrue(cookieJar.getCookies().isEmpty());
+        assertNull(cookieJar.getCookieHeader(uri));
+    }
+
+    @Test
+    public void matchDomain() {
+        CookieJar cookieJar = new CookieJar();
+        cookieJar.addFromHeader("host=1", URI.create("http://example.com/"));
+        cookieJar.addFromHeader("domain=2; Domain=example.com", URI.create("http://example.com/"));
+        assertEquals("domain=2; host=1", sorted(cookieJar.getCookieHeader(URI.create("http://example.com/"))));
+        assertEquals("domain=2", cookieJar.getCookieHeader(URI.create("http://api.example.com/")));
+        assertNull(cookieJar.getCookieHeader(URI.create("http://badexample.com/")));
+    }
+
+    @Test
+    public void matchPath() {
+        CookieJar cookieJar = new CookieJar();
+        cookieJar.addFromHeader("root=1; Path=/", URI.create("http://example.com/"));
+        cookieJar.addFromHeader("api=2; Path=/api", URI.create("http://example.com/"));
+        URI host = URI.create("http://example.com");
+
+        // Cookies with more specific paths go first
+        assertEquals("api=2; root=1", cookieJar.getCookieHeader(URI.create("http://example.com/api/users")));
+        assertEquals("api=2; root=1", cookieJar.getCookieHeader(URI.create("http://example.com/api")));
+        assertEquals("root=1", cookieJar.getCookieHeader(URI.create("http://example.com/apis")));
+        assertEquals("root=1", cookieJar.getCookieHeader(host));
+    }
+
+    @Test
+    public void matchSecure() {
+        CookieJar cookieJar = new CookieJar();
+        cookieJar.addFromHeader("sid=abc; Secure", URI.create("https://example.com/"));
+        assertEquals("sid=abc", cookieJar.getCookieHeader(URI.create("https://example.com/")));
+        assertNull(cookieJar.getCookieHeader(URI.create("http://example.com/")));
+    }
+
+    @Test
+    public void replaceAndRemove() {
+        CookieJar cookieJar = new CookieJar();
+        URI uri = URI.create("http://example.com/");
+        cookieJar.addFromHeader("sid=1", uri);
+        assertEquals("sid=1", cookieJar.getCookieHeader(uri));
+
+        // Cached header is rebuilt when value changes
+        cookieJar.addFromHeader("sid=2", uri);
+        assertEquals(1, cookieJar.getCookies().size());
+        assertEquals("sid=2", cookieJar.getCookieHeader(uri));
+
+        cookieJar.remove("sid");
+        assertNull(cookieJar.getCookieHeader(uri));
+    }
+
+    @Test
+    public void expiry() throws InterruptedException {
+        CookieJar cookieJar = new CookieJar();
+        URI uri = URI.create("http://example.com/");
+        cookieJar.addFromHeader("sid=1", uri);
+        cookieJar.addFromHeader("old=1; Expires=Wed, 21 Oct 2015 07:28:00 GMT", uri);
+        assertEquals("sid=1", cookieJar.getCookieHeader(uri));
+
+        // Max-Age has priority over Expires
+        cookieJar.addFromHeader("new=1; Max-Age=60; Expires=Wed, 21 Oct 2015 07:28:00 GMT", uri);
+        assertEquals("new=1; sid=1", sorted(cookieJar.getCookieHeader(uri)));
+
+        // Zero Max-Age removes the cookie
+        cookieJar.addFromHeader("sid=1; Max-Age=0", uri);
+        assertEquals("new=1", cookieJar.getCookieHeader(uri));
+
+        cookieJar.add(new CookieJar.Cookie("short", "1", "example.com", true, "/", System.currentTimeMillis() + 50, false));
+        assertEquals("new=1; short=1", sorted(cookieJar.getCookieHeader(uri)));
+        Thread.sleep(60);
+        assertEquals("new=1", cookieJar.getCookieHeader(uri));
+        assertEquals(1, cookieJar.getCookies().size());
+    }
+
+    @Test
+    public void manualCookieOverridesServerCookie() {
+        CookieJar cookieJar = new CookieJar();
+        URI uri = URI.create("http://example.com/api");
+        cookieJar.addFromHeader("sid=server; Path=/", uri);
+        cookieJar.addFromHeader("lang=en; Path=/", uri);
+        cookieJar.add(new CookieJar.Cookie("sid", "manual"));
+        assertEquals("lang=en; sid=manual", sorted(cookieJar.getCookieHeader(uri)));
+
+        // Server cookie is sent again after the manual one is removed
+        cookieJar.remove("sid");
+        cookieJar.addFromHeader("sid=server; Path=/", uri);
+        assertEquals("lang=en; sid=server", sorted(cookieJar.getCookieHeader(uri)));
+    }
+
+    private static String sorted(String cookieHeader) {
+        String[] cookies = cookieHeader.split("; ");
+        Arrays.sort(cookies);
+        StringBuilder stringBuilder = new StringBuilder();
+        for (String cookie : cookies) {
+            if (stringBuilder.length() > 0) {
+                stringBuilder.append("; ");
+            }
+            stringBuilder.append(cookie);
+        }
+        return stringBuilder.toString();
+    }
+}
@@ -0,0 +1,76 @@
+package com.kirgor.enklib.rest;
+
+import org.apache.http.entity.ByteArrayEntity;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DecodingEntityTest {
+    private static final String CONTENT = "Content, which is long enough to be compressed. Content, which is long enough.";
+
+    @Test
+    public void gzip() throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        GZIPOutputStream outputStream = new GZIPOutputStream(buffer);
+        outputStream.write(CONTENT.getBytes("UTF-8"));
+        outputStream.close();
+        CompressionStats stats = new CompressionStats();
+        assertEquals(CONTENT, decode(buffer.toByteArray(), "gzip", stats));
+        assertEquals(buffer.size(), stats.getResponseWireBytes());
+        assertEquals(CONTENT.length(), stats.getResponseDecodedBytes());
+    }
+
+    @Test
+    public void zlibDeflate() throws IOException {
+        assertEquals(CONTENT, decode(deflate(false), "deflate", new CompressionStats()));
+    }
+
+    @Test
+    public void rawDeflate() throws IOException {
+        assertEquals(CONTENT, decode(deflate(true), "deflate", new CompressionStats()));
+    }
+
+    @Test
+    public void identity() throws IOException {
+        DecodingEntity entity = new DecodingEntity(new ByteArrayEntity(CONTENT.getBytes("UTF-8")), new CompressionStats());
+        assertEquals(CONTENT.length(), entity.getContentLength());
+        assertEquals(CONTENT, read(entity.getContent()));
+    }
+
+    private static byte[] deflate(boolean raw) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, raw);
+        DeflaterOutputStream outputStream = new DeflaterOutputStream(buffer, deflater);
+        outputStream.write(CONTENT.getBytes("UTF-8"));
+        outputStream.close();
+        deflater.end();
+        return buffer.toByteArray();
+    }
+
+    private static String decode(byte[] data, String encoding, CompressionStats stats) throws IOException {
+        ByteArrayEntity wrappedEntity = new ByteArrayEntity(data);
+        wrappedEntity.setContentEncoding(encoding);
+        DecodingEntity entity = new DecodingEntity(wrappedEntity, stats);
+        assertNull(entity.getContentEncoding());
+        assertEquals(-1, entity.getContentLength());
+        return read(entity.getContent());
+    }
+
+    private static String read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return result.toString("UTF-8");
+    }
+}
@@ -0,0 +1,63 @@
+package com.kirgor.enklib.rest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyTrackerTest {
+    @Test
+    public void notEnoughSamples() {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 0; i < 19; i++) {
+            tracker.record(10);
+        }
+        assertEquals(-1, tracker.getPercentile(50));
+        tracker.record(10);
+        assertEquals(10, tracker.getPercentile(50));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 100; i >= 1; i--) {
+            tracker.record(i);
+        }
+        assertEquals(1, tracker.getPercentile(0));
+        assertEquals(50, tracker.getPercentile(50));
+        assertEquals(95, tracker.getPercentile(95));
+        assertEquals(100, tracker.getPercentile(100));
+    }
+
+    @Test
+    public void recentSamplesOnly() {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 0; i < 256; i++) {
+            tracker.record(1000);
+        }
+        // Ring buffer overwrites the oldest samples
+        for (int i = 0; i < 256; i++) {
+            tracker.record(10);
+        }
+        assertEquals(10, tracker.getPercentile(100));
+    }
+
+    @Test
+    public void cachedValue() {
+        LatencyTracker tracker = new LatencyTracker();
+        for (int i = 0; i < 20; i++) {
+            tracker.record(10);
+        }
+        assertEquals(10, tracker.getPercentile(90));
+
+        // Value is recalculated only after several new samples
+        for (int i = 0; i < 15; i++) {
+            tracker.record(1000);
+        }
+        assertEquals(10, tracker.getPercentile(90));
+        tracker.record(1000);
+        assertEquals(1000, tracker.getPercentile(90));
+
+        // Other percentile is not taken from the cache
+        assertEquals(10, tracker.getPercentile(10));
+    }
+}
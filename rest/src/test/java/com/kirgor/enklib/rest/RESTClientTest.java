@@ -0,0 +1,175 @@
+package com.kirgor.enklib.rest;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+public class RESTClientTest {
+    private static final Gson GSON = new Gson();
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private String baseUrl;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        serverExecutor.shutdownNow();
+    }
+
+    @Test
+    public void coalesceConcurrentGets() throws Exception {
+        final AtomicInteger requestCount = new AtomicInteger();
+        final CountDownLatch received = new CountDownLatch(1);
+        final CountDownLatch respond = new CountDownLatch(1);
+        server.createContext("/item", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requestCount.incrementAndGet();
+                received.countDown();
+                try {
+                    respond.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                Item item = new Item();
+                item.name = "shared";
+                send(exchange, GSON.toJson(item).getBytes("UTF-8"), false);
+            }
+        });
+
+        final JSONClient client = new JSONClient(baseUrl);
+        client.setCoalesceGetRequests(true);
+        final Item[] results = new Item[2];
+        Thread[] threads = new Thread[2];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = client.get(Item.class, "/item").getEntity();
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+
+        // Second request is issued while the first one is in flight
+        threads[0].start();
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        threads[1].start();
+        Thread.sleep(200);
+        respond.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+
+        assertEquals(1, requestCount.get());
+        assertEquals("shared", results[0].name);
+        assertSame(results[0], results[1]);
+
+        // Request, which has completed, is not shared anymore
+        assertEquals("shared", client.get(Item.class, "/item").getEntity().name);
+        assertEquals(2, requestCount.get());
+    }
+
+    @Test
+    public void compressPayloadsAboveThreshold() throws Exception {
+        final AtomicReference<String> requestEncoding = new AtomicReference<String>();
+        server.createContext("/echo", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+                requestEncoding.set(encoding);
+                InputStream inputStream = exchange.getRequestBody();
+                if ("gzip".equals(encoding)) {
+                    inputStream = new GZIPInputStream(inputStream);
+                }
+                String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                send(exchange, readAll(inputStream), acceptEncoding != null && acceptEncoding.contains("gzip"));
+            }
+        });
+
+        JSONClient client = new JSONClient(baseUrl);
+        client.setRequestCompressionThreshold(100);
+        Item small = new Item();
+        small.name = "small";
+        assertEquals("small", client.post(Item.class, "/echo", small).getEntity().name);
+        assertNull(requestEncoding.get());
+
+        Item large = new Item();
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            name.append("large ");
+        }
+        large.name = name.toString();
+        assertEquals(large.name, client.post(Item.class, "/echo", large).getEntity().name);
+        assertEquals("gzip", requestEncoding.get());
+
+        CompressionStats stats = client.getCompressionStats();
+        assertEquals(1, stats.getCompressedRequests());
+        assertTrue(stats.getRequestWireBytes() < stats.getRequestDecodedBytes());
+        assertTrue(stats.getResponseWireBytes() < stats.getResponseDecodedBytes());
+    }
+
+    private static void send(HttpExchange exchange, byte[] body, boolean compress) throws IOException {
+        if (compress) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            GZIPOutputStream gzipOutputStream = new GZIPOutputStream(buffer);
+            gzipOutputStream.write(body);
+            gzipOutputStream.close();
+            body = buffer.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        outputStream.write(body);
+        outputStream.close();
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = inputStream.read(buffer)) != -1) {
+            result.write(buffer, 0, count);
+        }
+        return result.toByteArray();
+    }
+
+    private static class Item {
+        private String name;
+    }
+}
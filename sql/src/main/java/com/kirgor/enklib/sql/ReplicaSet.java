@@ -0,0 +1,240 @@
+package com.kirgor.enklib.sql;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * {@link DataSource} for read-only work, which spreads connections over read replicas.
+ * <p/>
+ * Replica is chosen round-robin or as the one with the least number of open connections, see {@link Strategy}.
+ * If replica fails to give connection, it's skipped for retry delay and other replicas are tried,
+ * then the primary {@link DataSource}, so read-only work continues while replicas are down.
+ */
+public class ReplicaSet implements DataSource {
+    /**
+     * Strategy of choosing replica for the next connection.
+     */
+    public static enum Strategy {
+        /**
+         * Replicas are used in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * Replica with the least number of connections, which are currently open, is used.
+         */
+        LEAST_LOADED
+    }
+
+    private final DataSource primary;
+    private final Replica[] replicas;
+    private final Strategy strategy;
+    private final long retryDelay;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final AtomicInteger fallbackCount = new AtomicInteger();
+
+    /**
+     * Creates round-robin replica set, which retries failed replicas after 30 seconds.
+     *
+     * @param primary  Primary {@link DataSource}, which is used when all replicas fail.
+     * @param replicas Replica {@link DataSource} instances.
+     */
+    public ReplicaSet(DataSource primary, List<DataSource> replicas) {
+        this(primary, replicas, Strategy.ROUND_ROBIN, 30 * 1000L);
+    }
+
+    /**
+     * Creates replica set.
+     *
+     * @param primary    Primary {@link DataSource}, which is used when all replicas fail.
+     * @param replicas   Replica {@link DataSource} instances.
+     * @param strategy   Strategy of choosing replica.
+     * @param retryDelay Time in milliseconds, during which replica isn't used after it has failed to give connection.
+     */
+    public ReplicaSet(DataSource primary, List<DataSource> replicas, Strategy strategy, long retryDelay) {
+        this.primary = primary;
+        this.replicas = new Replica[replicas.size()];
+        for (int i = 0; i < this.replicas.length; i++) {
+            this.replicas[i] = new Replica(replicas.get(i));
+        }
+        this.strategy = strategy;
+        this.retryDelay = retryDelay;
+    }
+
+    /**
+     * Gets primary {@link DataSource}.
+     */
+    public DataSource getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Gets replica {@link DataSource} instances.
+     */
+    public List<DataSource> getReplicas() {
+        List<DataSource> result = new ArrayList<DataSource>();
+        for (Replica replica : replicas) {
+            result.add(replica.dataSource);
+        }
+        return result;
+    }
+
+    /**
+     * Gets number of connections, which are currently open on the replica with specified index.
+     */
+    public int getOpenConnectionCount(int replicaIndex) {
+        return replicas[replicaIndex].openConnections.get();
+    }
+
+    /**
+     * Gets number of connections, which were taken from the primary, because no replica was available.
+     */
+    public int getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * Gets connection from the chosen replica or from the primary, if all replicas fail.
+     *
+     * @throws SQLException If primary fails too.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return getConnection(null, null);
+    }
+
+    /**
+     * Gets connection with specified credentials from the chosen replica or from the primary, if all replicas fail.
+     *
+     * @throws SQLException If primary fails too.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long now = System.currentTimeMillis();
+        int start = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+        boolean[] tried = new boolean[replicas.length];
+        for (int attempt = 0; attempt < replicas.length; attempt++) {
+            int index = choose(start, attempt, tried, now);
+            if (index < 0) {
+                break;
+            }
+            tried[index] = true;
+            Replica replica = replicas[index];
+            try {
+                Connection connection = username == null
+                        ? replica.dataSource.getConnection()
+                        : replica.dataSource.getConnection(username, password);
+                replica.downUntil = 0;
+                return strategy == Strategy.LEAST_LOADED ? replica.track(connection) : connection;
+            } catch (SQLException ex) {
+                replica.downUntil = now + retryDelay;
+            }
+        }
+
+        fallbackCount.incrementAndGet();
+        return username == null ? primary.getConnection() : primary.getConnection(username, password);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return primary.getLogWriter();
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        primary.setLogWriter(out);
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        primary.setLoginTimeout(seconds);
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return primary.getLoginTimeout();
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Replica set is not a wrapper for " + iface.getName() + ".");
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Chooses index of the replica, which hasn't been tried yet and isn't down.
+     *
+     * @return Replica index or -1 if there is none.
+     */
+    private int choose(int start, int attempt, boolean[] tried, long now) {
+        int result = -1;
+        for (int i = 0; i < replicas.length; i++) {
+            int index = (start + attempt + i) % replicas.length;
+            if (tried[index] || replicas[index].downUntil > now) {
+                continue;
+            }
+            if (strategy == Strategy.ROUND_ROBIN) {
+                return index;
+            }
+            if (result < 0 || replicas[index].openConnections.get() < replicas[result].openConnections.get()) {
+                result = index;
+            }
+        }
+        return result;
+    }
+
+    private static class Replica {
+        private final DataSource dataSource;
+        private final AtomicInteger openConnections = new AtomicInteger();
+        private volatile long downUntil;
+
+        private Replica(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        /**
+         * Wraps connection, so number of open connections is decreased when it's closed.
+         */
+        private Connection track(final Connection connection) {
+            openConnections.incrementAndGet();
+            final AtomicBoolean closed = new AtomicBoolean();
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class},
+                    new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if (method.getName().equals("close") && closed.compareAndSet(false, true)) {
+                                openConnections.decrementAndGet();
+                            }
+                            try {
+                                return method.invoke(connection, args);
+                            } catch (InvocationTargetException ex) {
+                                throw ex.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+}
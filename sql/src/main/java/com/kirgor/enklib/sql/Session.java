@@ -19,6 +19,16 @@ import javax.sql.DataSource;
  */
 public class Session implements Closeable {
     private Connection connection;
+    private DataSource dataSource;
+    private Boolean pendingAutoCommit;
+    private Boolean pendingReadOnly;
+    private Boolean originalAutoCommit;
+    private Boolean originalReadOnly;
+    private DataSource readOnlyDataSource;
+    private Session readOnlySession;
+    private long connectedAt;
+    private long closedAt;
+    private long readOnlyHoldTime;
     private Dialect dialect;
 
     /**
@@ -30,6 +40,7 @@ public class Session implements Closeable {
     public Session(Connection connection, Dialect dialect) {
         this.connection = connection;
         this.dialect = dialect;
+        this.connectedAt = System.nanoTime();
     }
 
     /**
@@ -43,6 +54,27 @@ public class Session implements Closeable {
         this(dataSource.getConnection(), dialect);
     }
 
+    /**
+     * Creates {@link Session}, which will wrap {@link Connection} retrieved from {@link DataSource}.
+     * <p/>
+     * Lazy session retrieves connection only when it's needed for the first time, so code paths, which
+     * don't use the database, don't borrow connection from the pool at all.
+     *
+     * @param dataSource {@link DataSource}, from which Connection will be retrieved.
+     * @param dialect    {@link Dialect} instance, which will convert database field names.
+     * @param lazy       Specifies whether connection is retrieved on first use rather than right now.
+     * @throws SQLException In general SQL error case.
+     */
+    public Session(DataSource dataSource, Dialect dialect, boolean lazy) throws SQLException {
+        this.dialect = dialect;
+        if (lazy) {
+            this.dataSource = dataSource;
+        } else {
+            this.connection = dataSource.getConnection();
+            this.connectedAt = System.nanoTime();
+        }
+    }
+
     /**
      * Creates {@link Session}, which will create {@link Connection} from specified parameters and then wrap it.
      *
@@ -65,6 +97,57 @@ public class Session implements Closeable {
         return dialect;
     }
 
+    /**
+     * Sets {@link DataSource} of read replicas (e.g. {@link ReplicaSet}), which serves read-only calls
+     * outside of transactions. See {@link #getReadOnlySession()}.
+     */
+    public void setReadOnlyDataSource(DataSource readOnlyDataSource) {
+        this.readOnlyDataSource = readOnlyDataSource;
+    }
+
+    /**
+     * Gets session for read-only calls. It's separate lazy session on read-only {@link DataSource},
+     * which is closed together with this session.
+     * <p/>
+     * This session itself is returned if read-only {@link DataSource} is not set or transaction is in progress,
+     * so reads inside transaction see its changes.
+     *
+     * @throws SQLException In general SQL error case.
+     */
+    public Session getReadOnlySession() throws SQLException {
+        if (readOnlyDataSource == null || !isAutoCommit()) {
+            return this;
+        }
+        if (readOnlySession == null) {
+            readOnlySession = new Session(readOnlyDataSource, dialect, true);
+            readOnlySession.setAutoCommit(true);
+            readOnlySession.setReadOnly(true);
+        }
+        return readOnlySession;
+    }
+
+    /**
+     * Indicates whether session holds connection, which is false for lazy session until it's used.
+     */
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Gets time in nanoseconds, during which session has held connection, including its read-only session.
+     * If session is not closed yet, time until now is returned. Unused lazy session returns 0.
+     */
+    public long getConnectionHoldTime() {
+        long result = readOnlyHoldTime;
+        if (readOnlySession != null) {
+            result += readOnlySession.getConnectionHoldTime();
+        }
+        if (connection != null) {
+            result += (closedAt != 0 ? closedAt : System.nanoTime()) - connectedAt;
+        }
+        return result;
+    }
+
     /**
      * Indicates whether underlying connection is in auto-commit mode.
      *
@@ -72,6 +155,13 @@ public class Session implements Closeable {
      * @throws SQLException
      */
     public boolean isAutoCommit() throws SQLException {
+        if (connection == null && pendingAutoCommit != null) {
+            return pendingAutoCommit;
+        }
+        if (connection == null && dataSource != null) {
+            // Connection, which is not retrieved yet, is in auto-commit mode by JDBC contract
+            return true;
+        }
         return connection.getAutoCommit();
     }
 
@@ -82,7 +172,27 @@ public class Session implements Closeable {
      * @throws SQLException
      */
     public void setAutoCommit(boolean autoCommit) throws SQLException {
-        connection.setAutoCommit(autoCommit);
+        if (connection == null && dataSource != null) {
+            // Applied when connection is retrieved
+            pendingAutoCommit = autoCommit;
+        } else {
+            applyAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Sets underlying connection read-only mode, which is a hint for the driver to optimize read-only transactions.
+     *
+     * @param readOnly True if read-only, otherwise false.
+     * @throws SQLException
+     */
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        if (connection == null && dataSource != null) {
+            // Applied when connection is retrieved
+            pendingReadOnly = readOnly;
+        } else {
+            applyReadOnly(readOnly);
+        }
     }
 
     /**
@@ -96,6 +206,30 @@ public class Session implements Closeable {
         createPreparedStatement(query, 0, params).execute();
     }
 
+    /**
+     * Executes SQL query, which returns nothing, for each set of parameters in single JDBC batch,
+     * so many rows can be inserted or updated with one round trip.
+     *
+     * @param query      SQL query string.
+     * @param paramsList Sets of parameters, which will be placed instead of '?' signs.
+     * @return Update counts of each set of parameters.
+     * @throws SQLException In general SQL error case.
+     */
+    public int[] executeBatch(String query, List<Object[]> paramsList) throws SQLException {
+        PreparedStatement stat = getConnection().prepareStatement(query);
+        try {
+            for (Object[] params : paramsList) {
+                for (int i = 0; i < params.length; i++) {
+                    stat.setObject(i + 1, params[i]);
+                }
+                stat.addBatch();
+            }
+            return stat.executeBatch();
+        } finally {
+            stat.close();
+        }
+    }
+
     /**
      * Executes SQL query, which returns list of entities.
      *
@@ -190,23 +324,102 @@ public class Session implements Closeable {
      * Commits changes in the current transaction
      */
     public void commit() throws SQLException {
-        connection.commit();
+        // Lazy session, which has not been used, has nothing to commit
+        if (connection != null) {
+            connection.commit();
+        }
     }
 
     /**
-     * Closes SQL connection.
+     * Rolls back changes in the current transaction.
+     */
+    public void rollback() throws SQLException {
+        // Lazy session, which has not been used, has nothing to roll back
+        if (connection != null) {
+            connection.rollback();
+        }
+    }
+
+    /**
+     * Closes SQL connection and read-only session, if it was used.
+     * <p/>
+     * Auto-commit and read-only modes changed by this session are restored first, since connection usually
+     * goes back to the pool and may be given to the code, which writes. Uncommitted work is rolled back.
      *
      * @throws IOException
      */
     @Override
     public void close() throws IOException {
         try {
-            connection.close();
+            if (readOnlySession != null) {
+                Session session = readOnlySession;
+                readOnlySession = null;
+                try {
+                    session.close();
+                } finally {
+                    readOnlyHoldTime += session.getConnectionHoldTime();
+                }
+            }
+        } finally {
+            closeConnection();
+        }
+    }
+
+    private void closeConnection() throws IOException {
+        if (connection == null || closedAt != 0) {
+            return;
+        }
+        closedAt = System.nanoTime();
+        try {
+            try {
+                if (originalAutoCommit != null && originalAutoCommit != connection.getAutoCommit()) {
+                    if (!connection.getAutoCommit()) {
+                        connection.rollback();
+                    }
+                    connection.setAutoCommit(originalAutoCommit);
+                }
+                if (originalReadOnly != null && originalReadOnly != connection.isReadOnly()) {
+                    connection.setReadOnly(originalReadOnly);
+                }
+            } finally {
+                connection.close();
+            }
         } catch (SQLException ex) {
             throw new IOException(ex);
         }
     }
 
+    private void applyAutoCommit(boolean autoCommit) throws SQLException {
+        if (originalAutoCommit == null) {
+            originalAutoCommit = connection.getAutoCommit();
+        }
+        connection.setAutoCommit(autoCommit);
+    }
+
+    private void applyReadOnly(boolean readOnly) throws SQLException {
+        if (originalReadOnly == null) {
+            originalReadOnly = connection.isReadOnly();
+        }
+        connection.setReadOnly(readOnly);
+    }
+
+    /**
+     * Gets underlying connection, retrieving it from {@link DataSource} in case of lazy session.
+     */
+    private Connection getConnection() throws SQLException {
+        if (connection == null) {
+            connection = dataSource.getConnection();
+            connectedAt = System.nanoTime();
+            if (pendingAutoCommit != null) {
+                applyAutoCommit(pendingAutoCommit);
+            }
+            if (pendingReadOnly != null) {
+                applyReadOnly(pendingReadOnly);
+            }
+        }
+        return connection;
+    }
+
     /**
      * Creates {@link Connection} instance from supplied driver, JDBC URL and user credentials.
      */
@@ -220,7 +433,7 @@ public class Session implements Closeable {
      * Creates {@link PreparedStatement} instance from supplied query string and parameters.
      */
     private PreparedStatement createPreparedStatement(String query, int fetchSize, Object... params) throws SQLException {
-        PreparedStatement stat = connection.prepareStatement(query);
+        PreparedStatement stat = getConnection().prepareStatement(query);
         stat.setFetchSize(fetchSize);
         for (int i = 0; i < params.length; i++) {
             stat.setObject(i + 1, params[i]);
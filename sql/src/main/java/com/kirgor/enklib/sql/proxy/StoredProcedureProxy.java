@@ -39,6 +39,7 @@ public abstract class StoredProcedureProxy {
         classPath.add(LikePrefix.class);
         classPath.add(BitMask.class);
         classPath.add(Timestamp.class);
+        classPath.add(ReadOnly.class);
 
         String name = "Proxy" + UUID.randomUUID().toString().replace("-", "");
         String code = buildProxyCode(name, interfaceClass, dialect, classPath);
@@ -113,20 +114,23 @@ public abstract class StoredProcedureProxy {
             String escapedQuery = dialect.buildStoredProcedureQuery(dialect.toDatabaseName(method.getName()),
                     parameterClasses.length).replace("\"", "\\\"");
 
+            // Read-only methods are called on the read-only session, which can be connected to replica
+            String target = method.getAnnotation(ReadOnly.class) != null ? "session.getReadOnlySession()" : "session";
+
             // The rest of method body depends on its return type
             String callStart;
             Class entityClass;
             if (returnType == Void.TYPE) {
-                callStart = "session.execute";
+                callStart = target + ".execute";
                 entityClass = null;
             } else if (returnType == List.class) {
-                callStart = "return session.getList";
+                callStart = "return " + target + ".getList";
                 entityClass = (Class) parameterizedReturnType.getActualTypeArguments()[0];
             } else if (returnType == Cursor.class) {
-                callStart = "return session.getCursor";
+                callStart = "return " + target + ".getCursor";
                 entityClass = (Class) parameterizedReturnType.getActualTypeArguments()[0];
             } else {
-                callStart = "return session.getSingleOrNull";
+                callStart = "return " + target + ".getSingleOrNull";
                 entityClass = returnType;
             }
 
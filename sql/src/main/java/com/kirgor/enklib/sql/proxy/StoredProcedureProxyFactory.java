@@ -3,16 +3,18 @@ package com.kirgor.enklib.sql.proxy;
 import com.kirgor.enklib.sql.Session;
 import com.kirgor.enklib.sql.dialect.Dialect;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Creates instances of stored procedure proxies, while dealing
  * with creating classes for them and caching for future use.
+ * <p/>
+ * Factory is thread-safe, so single instance can be shared by concurrent requests.
  */
 @SuppressWarnings("unchecked")
 public class StoredProcedureProxyFactory {
     private Dialect dialect;
-    private HashMap<Class, Class> proxyClassesByInterface = new HashMap<Class, Class>();
+    private final ConcurrentHashMap<Class, Class> proxyClassesByInterface = new ConcurrentHashMap<Class, Class>();
 
     /**
      * Creates factory, which will generate proxies for specified {@link Dialect}.
@@ -35,12 +37,21 @@ public class StoredProcedureProxyFactory {
     public <T> T getProxy(Class<T> interfaceClass, Session session) throws Exception {
         Class proxyClass = proxyClassesByInterface.get(interfaceClass);
         if (proxyClass == null) {
-            proxyClass = StoredProcedureProxy.createProxyClass(interfaceClass, dialect);
-            proxyClassesByInterface.put(interfaceClass, proxyClass);
+            proxyClass = createProxyClass(interfaceClass);
         }
 
         StoredProcedureProxy result = (StoredProcedureProxy) proxyClass.newInstance();
         result.setSession(session);
         return (T) result;
     }
+
+    private synchronized Class createProxyClass(Class interfaceClass) throws Exception {
+        // Compilation is expensive, so concurrent first requests wait for the single one
+        Class proxyClass = proxyClassesByInterface.get(interfaceClass);
+        if (proxyClass == null) {
+            proxyClass = StoredProcedureProxy.createProxyClass(interfaceClass, dialect);
+            proxyClassesByInterface.put(interfaceClass, proxyClass);
+        }
+        return proxyClass;
+    }
 }
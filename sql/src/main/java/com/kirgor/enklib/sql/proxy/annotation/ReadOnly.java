@@ -0,0 +1,15 @@
+package com.kirgor.enklib.sql.proxy.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks stored procedure proxy method, which only reads data, so it can be called on read replica.
+ * See {@link com.kirgor.enklib.sql.Session#getReadOnlySession()}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface ReadOnly {
+}
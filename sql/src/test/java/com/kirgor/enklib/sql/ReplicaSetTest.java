@@ -0,0 +1,94 @@
+package com.kirgor.enklib.sql;
+
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import javax.sql.DataSource;
+
+import static org.junit.Assert.*;
+
+public class ReplicaSetTest {
+    @Test
+    public void roundRobin() throws SQLException {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource first = new StubDataSource("first");
+        StubDataSource second = new StubDataSource("second");
+        ReplicaSet replicaSet = new ReplicaSet(primary, Arrays.<DataSource>asList(first, second));
+        for (int i = 0; i < 4; i++) {
+            replicaSet.getConnection();
+        }
+        assertEquals(2, first.connections.size());
+        assertEquals(2, second.connections.size());
+        assertEquals(0, primary.connections.size());
+    }
+
+    @Test
+    public void leastLoaded() throws SQLException {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource first = new StubDataSource("first");
+        StubDataSource second = new StubDataSource("second");
+        ReplicaSet replicaSet = new ReplicaSet(primary, Arrays.<DataSource>asList(first, second),
+                ReplicaSet.Strategy.LEAST_LOADED, 1000);
+        Connection connection = replicaSet.getConnection();
+        replicaSet.getConnection();
+        replicaSet.getConnection();
+        assertEquals(3, replicaSet.getOpenConnectionCount(0) + replicaSet.getOpenConnectionCount(1));
+
+        // The replica, which has less open connections, is chosen
+        replicaSet.getConnection();
+        assertEquals(2, replicaSet.getOpenConnectionCount(0));
+        assertEquals(2, replicaSet.getOpenConnectionCount(1));
+
+        // Connection closed twice is counted once
+        connection.close();
+        connection.close();
+        assertEquals(3, replicaSet.getOpenConnectionCount(0) + replicaSet.getOpenConnectionCount(1));
+    }
+
+    @Test
+    public void retryDelay() throws Exception {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource first = new StubDataSource("first");
+        StubDataSource second = new StubDataSource("second");
+        ReplicaSet replicaSet = new ReplicaSet(primary, Arrays.<DataSource>asList(first, second),
+                ReplicaSet.Strategy.ROUND_ROBIN, 100);
+        first.failing = true;
+        for (int i = 0; i < 4; i++) {
+            replicaSet.getConnection();
+        }
+        assertEquals(4, second.connections.size());
+
+        // Failed replica is skipped until retry delay passes
+        first.failing = false;
+        replicaSet.getConnection();
+        replicaSet.getConnection();
+        assertEquals(0, first.connections.size());
+        Thread.sleep(150);
+        replicaSet.getConnection();
+        replicaSet.getConnection();
+        assertEquals(1, first.connections.size());
+    }
+
+    @Test
+    public void fallbackToPrimary() throws SQLException {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource first = new StubDataSource("first");
+        first.failing = true;
+        ReplicaSet replicaSet = new ReplicaSet(primary, Arrays.<DataSource>asList(first));
+        replicaSet.getConnection();
+        replicaSet.getConnection();
+        assertEquals(2, primary.connections.size());
+        assertEquals(2, replicaSet.getFallbackCount());
+    }
+
+    @Test(expected = SQLException.class)
+    public void primaryFails() throws SQLException {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource first = new StubDataSource("first");
+        primary.failing = true;
+        first.failing = true;
+        new ReplicaSet(primary, Arrays.<DataSource>asList(first)).getConnection();
+    }
+}
@@ -0,0 +1,73 @@
+package com.kirgor.enklib.sql;
+
+import com.kirgor.enklib.sql.dialect.PostgreSQLDialect;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import javax.sql.DataSource;
+
+import static org.junit.Assert.*;
+
+public class SessionTest {
+    @Test
+    public void restoreModesOnClose() throws Exception {
+        StubDataSource dataSource = new StubDataSource("primary");
+        Session session = new Session(dataSource, new PostgreSQLDialect(), true);
+        session.setAutoCommit(false);
+        session.setReadOnly(true);
+        session.execute("UPDATE test SET value = 1");
+        session.commit();
+        session.close();
+
+        StubDataSource.StubConnection connection = dataSource.last();
+        assertTrue(connection.closed);
+        assertTrue(connection.autoCommit);
+        assertFalse(connection.readOnly);
+        assertEquals(1, connection.rollbackCount);
+    }
+
+    @Test
+    public void restoreReadOnlyOfPrimaryFallback() throws Exception {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource replica = new StubDataSource("replica");
+        replica.failing = true;
+        Session session = new Session(primary, new PostgreSQLDialect(), true);
+        session.setReadOnlyDataSource(new ReplicaSet(primary, Collections.<DataSource>singletonList(replica)));
+        session.getReadOnlySession().execute("SELECT 1");
+        session.close();
+
+        // Read-only session has got the connection from the primary, it must not go back to the pool read-only
+        StubDataSource.StubConnection connection = primary.last();
+        assertTrue(connection.closed);
+        assertFalse(connection.readOnly);
+    }
+
+    @Test
+    public void closeConnectionWhenReadOnlySessionFails() throws Exception {
+        StubDataSource primary = new StubDataSource("primary");
+        StubDataSource replica = new StubDataSource("replica");
+        Session session = new Session(primary, new PostgreSQLDialect(), false);
+        session.setReadOnlyDataSource(new ReplicaSet(primary, Arrays.<DataSource>asList(replica)));
+        session.getReadOnlySession().execute("SELECT 1");
+        replica.failingClose = true;
+        try {
+            session.close();
+            fail();
+        } catch (IOException e) {
+            assertTrue(primary.last().closed);
+        }
+    }
+
+    @Test
+    public void keepModesSetBeforeSession() throws Exception {
+        StubDataSource dataSource = new StubDataSource("primary");
+        StubDataSource.StubConnection connection = new StubDataSource.StubConnection(dataSource);
+        connection.readOnly = true;
+        Session session = new Session(connection.proxy, new PostgreSQLDialect());
+        session.close();
+        assertTrue(connection.readOnly);
+        assertEquals(0, connection.rollbackCount);
+    }
+}
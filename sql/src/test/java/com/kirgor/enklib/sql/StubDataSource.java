@@ -0,0 +1,126 @@
+package com.kirgor.enklib.sql;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * {@link DataSource}, which gives connections only keeping their auto-commit, read-only and closed state.
+ * Statements of these connections do nothing.
+ */
+class StubDataSource implements DataSource {
+    final String name;
+    final List<StubConnection> connections = new ArrayList<StubConnection>();
+    boolean failing;
+    boolean failingClose;
+
+    StubDataSource(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (failing) {
+            throw new SQLException(name + " is down.");
+        }
+        StubConnection connection = new StubConnection(this);
+        connections.add(connection);
+        return connection.proxy;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    StubConnection last() {
+        return connections.get(connections.size() - 1);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        throw new SQLException();
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return false;
+    }
+
+    static class StubConnection implements InvocationHandler {
+        final StubDataSource dataSource;
+        final Connection proxy;
+        boolean autoCommit = true;
+        boolean readOnly;
+        boolean closed;
+        int rollbackCount;
+
+        StubConnection(StubDataSource dataSource) {
+            this.dataSource = dataSource;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class[]{Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("getAutoCommit")) {
+                return autoCommit;
+            } else if (name.equals("setAutoCommit")) {
+                autoCommit = (Boolean) args[0];
+            } else if (name.equals("isReadOnly")) {
+                return readOnly;
+            } else if (name.equals("setReadOnly")) {
+                readOnly = (Boolean) args[0];
+            } else if (name.equals("prepareStatement")) {
+                return Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                        new Class[]{PreparedStatement.class}, new InvocationHandler() {
+                            @Override
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                return method.getReturnType() == boolean.class ? false : null;
+                            }
+                        });
+            } else if (name.equals("rollback")) {
+                rollbackCount++;
+            } else if (name.equals("close")) {
+                closed = true;
+                if (dataSource.failingClose) {
+                    throw new SQLException(dataSource.name + " has failed to close connection.");
+                }
+            }
+            return null;
+        }
+    }
+}